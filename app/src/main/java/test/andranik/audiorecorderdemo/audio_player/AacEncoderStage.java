@@ -0,0 +1,147 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes the samples to AAC LC with {@link MediaCodec}, writing an ADTS (.aac) file.
+ * ADTS needs no muxer, which keeps it available below API 18 and makes the output streamable.
+ */
+public class AacEncoderStage implements PcmStage {
+
+    public static final int DEFAULT_BIT_RATE = 64000;
+
+    private static final String MIME_TYPE = "audio/mp4a-latm";
+    private static final long TIMEOUT_US = 10000;
+    private static final int MAX_INPUT_SIZE = 16 * 1024;
+
+    private final File file;
+    private final int bitRate;
+
+    private PcmFormat format;
+    private MediaCodec codec;
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+    private MediaCodec.BufferInfo bufferInfo;
+    private FileOutputStream output;
+
+    private final byte[] header = new byte[AdtsFrameReader.HEADER_SIZE];
+    private byte[] frame = new byte[2048];
+
+    private long queuedSamples;
+
+    public AacEncoderStage(File file, int bitRate) {
+        this.file = file;
+        this.bitRate = bitRate;
+    }
+
+    @Override
+    public void onStart(PcmFormat format) throws IOException {
+        this.format = format;
+        queuedSamples = 0;
+
+        MediaFormat mediaFormat = MediaFormat.createAudioFormat(MIME_TYPE, format.getSampleRate(), format.getChannelCount());
+        mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE);
+
+        codec = MediaCodec.createEncoderByType(MIME_TYPE);
+        codec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        codec.start();
+
+        inputBuffers = codec.getInputBuffers();
+        outputBuffers = codec.getOutputBuffers();
+        bufferInfo = new MediaCodec.BufferInfo();
+        output = new FileOutputStream(file);
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        while (count > 0) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0) {
+                drain(false);
+                continue;
+            }
+
+            ByteBuffer input = inputBuffers[index];
+            input.clear();
+            input.order(ByteOrder.nativeOrder());
+
+            int toQueue = Math.min(count, input.remaining() / PcmFormat.BYTES_PER_SAMPLE);
+            for (int i = 0; i < toQueue; i++) {
+                input.putShort(samples[offset + i]);
+            }
+            codec.queueInputBuffer(index, 0, toQueue * PcmFormat.BYTES_PER_SAMPLE, presentationTimeUs(), 0);
+
+            queuedSamples += toQueue;
+            offset += toQueue;
+            count -= toQueue;
+
+            drain(false);
+        }
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        try {
+            int index;
+            while ((index = codec.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                drain(false);
+            }
+            codec.queueInputBuffer(index, 0, 0, presentationTimeUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+        } finally {
+            codec.stop();
+            codec.release();
+            output.close();
+        }
+    }
+
+    private long presentationTimeUs() {
+        return queuedSamples / format.getChannelCount() * 1000000L / format.getSampleRate();
+    }
+
+    private void drain(boolean untilEndOfStream) throws IOException {
+        while (true) {
+            int index = codec.dequeueOutputBuffer(bufferInfo, untilEndOfStream ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEndOfStream) {
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (index >= 0) {
+                boolean codecConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (!codecConfig && bufferInfo.size > 0) {
+                    writeFrame(outputBuffers[index]);
+                }
+                codec.releaseOutputBuffer(index, false);
+
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeFrame(ByteBuffer encoded) throws IOException {
+        if (frame.length < bufferInfo.size) {
+            frame = new byte[bufferInfo.size];
+        }
+        encoded.position(bufferInfo.offset);
+        encoded.limit(bufferInfo.offset + bufferInfo.size);
+        encoded.get(frame, 0, bufferInfo.size);
+
+        AdtsFrameReader.writeHeader(header, bufferInfo.size, format.getSampleRate(), format.getChannelCount());
+        output.write(header);
+        output.write(frame, 0, bufferInfo.size);
+    }
+}
@@ -0,0 +1,145 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an AAC ADTS stream into frames. Each frame keeps its 7 or 9 byte header,
+ * so frames can be concatenated back into a playable .aac file.
+ */
+class AdtsFrameReader {
+
+    static final int HEADER_SIZE = 7;
+
+    private static final int AAC_PROFILE_LC = 2;
+
+    private static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private final InputStream in;
+
+    private final byte[] header = new byte[HEADER_SIZE];
+
+    AdtsFrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Blocks until a whole frame has been read, skipping garbage before the next sync word.
+     *
+     * @return the frame, or null at the end of the stream
+     */
+    ByteBuffer readFrame() throws IOException {
+        if (!readSync()) {
+            return null;
+        }
+
+        if (!readFully(header, 2, HEADER_SIZE - 2)) {
+            return null;
+        }
+
+        int frameLength = getFrameLength(header, 0);
+        if (frameLength < HEADER_SIZE) {
+            throw new IOException("Corrupt ADTS header, frame length " + frameLength);
+        }
+
+        byte[] frame = new byte[frameLength];
+        System.arraycopy(header, 0, frame, 0, HEADER_SIZE);
+        if (!readFully(frame, HEADER_SIZE, frameLength - HEADER_SIZE)) {
+            throw new EOFException("ADTS stream ended inside a frame");
+        }
+
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * @return the 13 bit frame length, header included
+     */
+    static int getFrameLength(byte[] data, int offset) {
+        return ((data[offset + 3] & 0x03) << 11) | ((data[offset + 4] & 0xff) << 3) | ((data[offset + 5] & 0xe0) >> 5);
+    }
+
+    /**
+     * Fills in a 7 byte header (AAC LC, no CRC) for a frame of {@code payloadLength} bytes.
+     */
+    static void writeHeader(byte[] header, int payloadLength, int sampleRate, int channelCount) {
+        int frameLength = payloadLength + HEADER_SIZE;
+        int sampleRateIndex = getSampleRateIndex(sampleRate);
+
+        header[0] = (byte) 0xff;
+        header[1] = (byte) 0xf1; // MPEG-4, layer 0, no CRC
+        header[2] = (byte) (((AAC_PROFILE_LC - 1) << 6) | (sampleRateIndex << 2) | (channelCount >> 2));
+        header[3] = (byte) (((channelCount & 3) << 6) | (frameLength >> 11));
+        header[4] = (byte) ((frameLength & 0x7ff) >> 3);
+        header[5] = (byte) (((frameLength & 7) << 5) | 0x1f);
+        header[6] = (byte) 0xfc;
+    }
+
+    static int getSampleRateIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("AAC doesn't support " + sampleRate + " Hz");
+    }
+
+    static int getSampleRate(byte[] header, int offset) {
+        return SAMPLE_RATES[(header[offset + 2] & 0x3c) >> 2];
+    }
+
+    static int getChannelConfig(byte[] header, int offset) {
+        return ((header[offset + 2] & 0x01) << 2) | ((header[offset + 3] & 0xc0) >> 6);
+    }
+
+    /**
+     * @return the MPEG-4 audio object type, 2 for AAC LC
+     */
+    static int getAudioObjectType(byte[] header, int offset) {
+        return ((header[offset + 2] & 0xc0) >> 6) + 1;
+    }
+
+    /**
+     * @return 7, or 9 when the header is followed by a CRC
+     */
+    static int getHeaderSize(byte[] header, int offset) {
+        return (header[offset + 1] & 0x01) == 0 ? HEADER_SIZE + 2 : HEADER_SIZE;
+    }
+
+    static boolean isSync(byte[] data, int offset) {
+        return (data[offset] & 0xff) == 0xff && (data[offset + 1] & 0xf6) == 0xf0;
+    }
+
+    private boolean readSync() throws IOException {
+        int previous = in.read();
+        if (previous == -1) {
+            return false;
+        }
+
+        int current;
+        while ((current = in.read()) != -1) {
+            header[0] = (byte) previous;
+            header[1] = (byte) current;
+            if (isSync(header, 0)) {
+                return true;
+            }
+            previous = current;
+        }
+        return false;
+    }
+
+    private boolean readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read == -1) {
+                return false;
+            }
+            offset += read;
+            length -= read;
+        }
+        return true;
+    }
+}
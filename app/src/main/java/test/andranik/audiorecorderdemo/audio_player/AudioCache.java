@@ -0,0 +1,629 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Size-bounded cache of the downloaded audio files, evicting the least recently played ones.
+ * <p>
+ * The index lives in memory and is persisted in an append-only journal:
+ * <pre>
+ *     PUT key size time
+ *     READ key time
+ *     REMOVE key
+ *     ALIAS key target
+ * </pre>
+ * Replaying the journal restores both the entries and their access order. An alias points a url
+ * key at a content key when identical audio was downloaded from several urls. Lookups only touch the
+ * in-memory index; journal writes and file deletions happen on a single background thread.
+ * <p>
+ * {@link #map(String)} hands out memory-mapped views of the entries, keeping the mappings of the
+ * most recently read ones so that hot clips are served from the page cache without being reopened.
+ */
+public class AudioCache {
+    public static final String TAG = "AudioCache";
+
+    public static final long DEFAULT_MAX_SIZE = 100 * 1024 * 1024;
+
+    static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String MAGIC = "AudioCache 1";
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String ALIAS = "ALIAS";
+
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static final long STALE_PARTIAL_MILLIS = 7 * 24 * 60 * 60 * 1000L; // resumable downloads nobody came back for
+    private static final long STALE_TMP_MILLIS = 60 * 60 * 1000L; // anything being written right now is younger
+
+    private static final int MAPPINGS_SIZE = 8;
+
+    private final File directory;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(); // least recently played first, moved by touch() only
+
+    private final Map<String, String> aliases = new ConcurrentHashMap<>(); // read by resolve() without the lock
+
+    private final LinkedHashMap<String, ByteBuffer> mappings = new LinkedHashMap<>(16, 0.75f, true); // by entry key
+
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+
+    private long maxSize;
+    private long size;
+    private int redundantOpCount;
+    private boolean initialized;
+    private volatile boolean loaded;
+
+    private Writer journalWriter;
+
+    public AudioCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Loads the journal. Called lazily by every other method, but better started with
+     * {@link #initializeInBackground()} so that the first lookup doesn't have to read it.
+     */
+    public synchronized void initialize() {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "could not create " + directory);
+        }
+
+        File journal = new File(directory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+            } catch (IOException e) {
+                Log.w(TAG, "journal is corrupt, rebuilding it", e);
+                entries.clear();
+                aliases.clear();
+                size = 0;
+                rebuildFromDirectory();
+            }
+        } else {
+            rebuildFromDirectory(); // first run: adopt what the old 24 hours sweep left behind, if it is keyed
+        }
+
+        submit(this::rewriteJournal);
+        trimToSize();
+        loaded = true;
+    }
+
+    /**
+     * Loads the journal on the io thread, safe to call from the main thread.
+     */
+    public void initializeInBackground() {
+        submit(this::initialize);
+    }
+
+    /**
+     * @return true once the journal is loaded, from then on lookups don't touch the disk
+     */
+    public boolean isInitialized() {
+        return loaded;
+    }
+
+    public synchronized boolean contains(String key) {
+        initialize();
+        return entries.containsKey(resolve(key));
+    }
+
+    /**
+     * @return the name of the file stored for {@code key}, which differs from the key when the
+     * content was deduplicated. Doesn't wait for the journal, so aliases are only followed once it
+     * is loaded; cheap enough for the main thread.
+     */
+    public String resolve(String key) {
+        String target = aliases.get(key);
+        return target != null ? target : key;
+    }
+
+    /**
+     * @return the size of the cached file, or 0 if {@code key} is not in the cache
+     */
+    public synchronized long sizeOf(String key) {
+        initialize();
+
+        Entry entry = entries.get(resolve(key));
+        return entry != null ? entry.size : 0;
+    }
+
+    /**
+     * Maps the cached file read-only. The mapping is shared with other readers and stays valid when
+     * the entry is evicted or replaced, it just isn't handed out anymore then. Doesn't count as a play,
+     * see {@link #touch(String)}.
+     *
+     * @return a view of the whole file, positioned at 0, that the caller is free to move
+     * @throws FileNotFoundException if {@code key} is not in the cache
+     */
+    public ByteBuffer map(String key) throws IOException {
+        Entry entry;
+        ByteBuffer mapping;
+        synchronized (this) {
+            initialize();
+
+            key = resolve(key);
+            entry = entries.get(key);
+            if (entry == null) {
+                throw new FileNotFoundException("Not cached: " + key);
+            }
+            mapping = mappings.get(key);
+        }
+
+        if (mapping == null) {
+            File file = new File(directory, key);
+            mapping = AudioUtils.map(file, 0, file.length()); // outside the lock, it's a system call
+
+            synchronized (this) {
+                if (entries.get(key) == entry) { // not replaced in the meantime
+                    mappings.put(key, mapping);
+                    Iterator<ByteBuffer> iterator = mappings.values().iterator();
+                    while (mappings.size() > MAPPINGS_SIZE) {
+                        iterator.next();
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        return mapping.duplicate();
+    }
+
+    /**
+     * Registers a file that was just written to the cache directory under {@code key}.
+     */
+    public synchronized void put(String key) {
+        initialize();
+        mappings.remove(key); // mapped the previous file
+
+        long fileSize = new File(directory, key).length();
+        long time = System.currentTimeMillis();
+
+        Entry previous = entries.remove(key);
+        entries.put(key, new Entry(fileSize, time));
+        if (previous != null) {
+            size -= previous.size;
+            redundantOpCount++;
+        }
+        size += fileSize;
+
+        appendJournal(PUT + ' ' + key + ' ' + fileSize + ' ' + time);
+        trimToSize();
+    }
+
+    /**
+     * Registers a file that was just written under {@code key}, storing it under the hash of its
+     * content. When the same content is already cached the new copy is dropped and {@code key}
+     * becomes an alias of the existing entry. Reads the whole file, so don't call it on the main thread.
+     *
+     * @return the name the content is stored under
+     */
+    public String putDeduplicated(String key) throws IOException {
+        File file = new File(directory, key);
+        String contentKey = CacheKey.forContent(file);
+
+        synchronized (this) {
+            initialize();
+
+            if (entries.containsKey(contentKey)) {
+                if (!file.delete()) {
+                    Log.w(TAG, "could not delete duplicate " + file);
+                }
+                touch(contentKey);
+            } else {
+                if (!file.renameTo(new File(directory, contentKey))) {
+                    throw new IOException("could not rename " + file + " to " + contentKey);
+                }
+                put(contentKey);
+            }
+
+            Entry previous = entries.remove(key); // a copy cached before deduplication was enabled
+            if (previous != null) {
+                size -= previous.size;
+                mappings.remove(key);
+                appendJournal(REMOVE + ' ' + key);
+            }
+
+            aliases.put(key, contentKey);
+            appendJournal(ALIAS + ' ' + key + ' ' + contentKey);
+        }
+
+        return contentKey;
+    }
+
+    /**
+     * Marks the entry as just played, moving it to the end of the eviction order.
+     */
+    public synchronized void touch(String key) {
+        initialize();
+
+        key = resolve(key);
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+
+        entries.put(key, entry); // to the end of the eviction order
+        entry.accessTime = System.currentTimeMillis();
+        redundantOpCount++;
+        appendJournal(READ + ' ' + key + ' ' + entry.accessTime);
+    }
+
+    /**
+     * Same as {@link #touch(String)} for a full path, ignoring files outside the cache directory.
+     * Recorded on the io thread while the journal is still loading, so the main thread doesn't wait for it.
+     */
+    public void touchPath(String path) {
+        File file = new File(path);
+        if (!directory.equals(file.getParentFile())) {
+            return;
+        }
+
+        if (loaded) {
+            touch(file.getName());
+        } else {
+            submit(() -> touch(file.getName()));
+        }
+    }
+
+    public synchronized void remove(String key) {
+        initialize();
+
+        key = resolve(key);
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+
+        size -= entry.size;
+        redundantOpCount++;
+        removeAliasesOf(key);
+        mappings.remove(key);
+        appendJournal(REMOVE + ' ' + key);
+
+        String removedKey = key;
+        submit(() -> deleteEntryFiles(removedKey));
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        if (initialized) {
+            trimToSize();
+        }
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long size() {
+        initialize();
+        return size;
+    }
+
+    /**
+     * Evicts the least recently played entries until the cache fits its byte budget.
+     */
+    public synchronized void trimToSize() {
+        trimToSize(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Evicts at most {@code maxEvictions} of the least recently played entries, so that a large
+     * cleanup can be done in steps without holding the lock for long.
+     *
+     * @return the number of entries evicted, less than {@code maxEvictions} once the cache fits
+     */
+    public synchronized int trimToSize(int maxEvictions) {
+        initialize();
+
+        int evicted = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && evicted < maxEvictions && iterator.hasNext()) {
+            evicted++;
+            Map.Entry<String, Entry> eldest = iterator.next();
+            String key = eldest.getKey();
+
+            iterator.remove();
+            size -= eldest.getValue().size;
+            redundantOpCount++;
+            removeAliasesOf(key);
+            mappings.remove(key);
+
+            appendJournal(REMOVE + ' ' + key);
+            submit(() -> deleteEntryFiles(key));
+        }
+        return evicted;
+    }
+
+    /**
+     * Deletes the files among {@code names} (in the cache directory) that no entry accounts for:
+     * sidecars of clips that are gone, clips missing from the journal, and temporary files left
+     * behind by a crash or an abandoned download. The lock is only held for the lookups.
+     *
+     * @return the number of files deleted
+     */
+    int deleteOrphans(List<String> names) {
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        for (String name : names) {
+            File file = new File(directory, name);
+            if (isOrphan(name, file, now) && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private boolean isOrphan(String name, File file, long now) {
+        if (name.startsWith(JOURNAL_FILE)) {
+            return false;
+        }
+        if (name.endsWith(".part") || name.endsWith(".meta")) {
+            return now - file.lastModified() > STALE_PARTIAL_MILLIS;
+        }
+        if (name.endsWith(".tmp") || name.contains(Transcoder.TMP_SUFFIX)) {
+            return now - file.lastModified() > STALE_TMP_MILLIS;
+        }
+
+        String clip = getSidecarClip(name);
+        if (clip != null) {
+            synchronized (this) {
+                if (entries.containsKey(clip)) {
+                    return false;
+                }
+            }
+            return !new File(directory, clip).exists();
+        }
+
+        synchronized (this) {
+            if (entries.containsKey(name)) {
+                return false;
+            }
+        }
+        return now - file.lastModified() > STALE_TMP_MILLIS; // not one just being committed
+    }
+
+    /**
+     * @return the clip {@code name} is a sidecar of, null if it is no sidecar
+     */
+    private static String getSidecarClip(String name) {
+        for (String suffix : new String[]{PeakFile.SUFFIX, FrameIndex.SUFFIX, Loudness.SUFFIX}) {
+            if (name.endsWith(suffix)) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        return null;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    private void removeAliasesOf(String target) {
+        Iterator<String> iterator = aliases.values().iterator();
+        while (iterator.hasNext()) {
+            if (target.equals(iterator.next())) {
+                iterator.remove(); // dangling aliases are dropped from the journal on the next rewrite
+            }
+        }
+    }
+
+    private void deleteEntryFiles(String key) {
+        File file = new File(directory, key);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "could not delete " + file);
+        }
+        PeakFile.forAudio(file.getPath()).delete();
+        FrameIndex.forAudio(file.getPath()).delete();
+        Loudness.forAudio(file.getPath()).delete();
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+        try {
+            if (!MAGIC.equals(reader.readLine())) {
+                throw new IOException("unexpected journal header");
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line);
+            }
+
+            Iterator<String> iterator = aliases.values().iterator();
+            while (iterator.hasNext()) {
+                if (!entries.containsKey(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        try {
+            if (PUT.equals(parts[0]) && parts.length == 4) {
+                Entry previous = entries.remove(parts[1]);
+                entries.put(parts[1], new Entry(Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                if (previous != null) {
+                    size -= previous.size;
+                    redundantOpCount++;
+                }
+                size += Long.parseLong(parts[2]);
+            } else if (READ.equals(parts[0]) && parts.length == 3) {
+                Entry entry = entries.remove(parts[1]);
+                if (entry != null) {
+                    entry.accessTime = Long.parseLong(parts[2]);
+                    entries.put(parts[1], entry);
+                }
+                redundantOpCount++;
+            } else if (ALIAS.equals(parts[0]) && parts.length == 3) {
+                aliases.put(parts[1], parts[2]);
+            } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+                Entry entry = entries.remove(parts[1]);
+                if (entry != null) {
+                    size -= entry.size;
+                }
+                redundantOpCount++;
+            } else if (!line.isEmpty()) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    private void rebuildFromDirectory() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, (first, second) -> {
+            long diff = first.lastModified() - second.lastModified();
+            return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+        });
+
+        for (File file : files) {
+            if (!file.isFile() || !isClip(file.getName())) {
+                continue; // sidecars and temporary files are left to deleteOrphans()
+            }
+            if (!CacheKey.isKey(file.getName())) {
+                // named after the url's last path segment before files were keyed, no lookup finds it anymore
+                if (!file.delete()) {
+                    Log.w(TAG, "could not delete " + file);
+                }
+                continue;
+            }
+            entries.put(file.getName(), new Entry(file.length(), file.lastModified()));
+            size += file.length();
+        }
+    }
+
+    private boolean isClip(String name) {
+        return !name.startsWith(JOURNAL_FILE) && !name.endsWith(".part") && !name.endsWith(".meta")
+                && !name.endsWith(PeakFile.SUFFIX) && !name.endsWith(FrameIndex.SUFFIX)
+                && !name.endsWith(Loudness.SUFFIX) && !name.endsWith(Transcoder.TMP_SUFFIX);
+    }
+
+    private void appendJournal(String line) {
+        submit(() -> {
+            try {
+                if (journalWriter == null) {
+                    journalWriter = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(new File(directory, JOURNAL_FILE), true), "US-ASCII"));
+                }
+                journalWriter.write(line);
+                journalWriter.write('\n');
+                journalWriter.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "could not write the journal", e);
+            }
+        });
+
+        if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= entries.size()) {
+            redundantOpCount = 0;
+            submit(this::rewriteJournal);
+        }
+    }
+
+    /**
+     * Writes a compact journal from a snapshot of the index, replacing the current one atomically.
+     * Runs on the io thread, after every line appended before it was submitted.
+     */
+    private void rewriteJournal() {
+        List<String> lines;
+        synchronized (this) {
+            lines = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                lines.add(PUT + ' ' + entry.getKey() + ' ' + entry.getValue().size + ' ' + entry.getValue().accessTime);
+            }
+            for (Map.Entry<String, String> alias : aliases.entrySet()) {
+                lines.add(ALIAS + ' ' + alias.getKey() + ' ' + alias.getValue());
+            }
+        }
+
+        File journal = new File(directory, JOURNAL_FILE);
+        File tmp = new File(directory, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            IOUtils.closeQuietly(journalWriter);
+            journalWriter = null;
+
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII"));
+            writer.write(MAGIC);
+            writer.write('\n');
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+
+            if (!tmp.renameTo(journal)) {
+                throw new IOException("could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "could not rewrite the journal", e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Blocks until everything handed to the io thread so far has run, e.g. the journal writes.
+     */
+    void awaitPendingWrites() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        submit(done::countDown);
+        done.await();
+    }
+
+    private void submit(Runnable runnable) {
+        ioExecutor.execute(runnable);
+    }
+
+    private static class Entry {
+        private final long size;
+        private long accessTime;
+
+        private Entry(long size, long accessTime) {
+            this.size = size;
+            this.accessTime = accessTime;
+        }
+    }
+}
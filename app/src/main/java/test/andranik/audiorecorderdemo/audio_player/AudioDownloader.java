@@ -2,7 +2,10 @@ package test.andranik.audiorecorderdemo.audio_player;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
+import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -12,8 +15,10 @@ import okio.BufferedSource;
 import okio.Okio;
 import rx.Observable;
 import rx.Subscriber;
+import rx.Subscription;
 import rx.android.schedulers.AndroidSchedulers;
 import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
 import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
 
 
@@ -23,89 +28,460 @@ import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
 public class AudioDownloader {
 
     public static final int DOWNLOAD_CHUNK_SIZE = 2048; //Same as Okio Segment.SIZE
+    public static final int MAX_RESUME_ATTEMPTS = 3; // each attempt continues from the ".part" file
+
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    public static final int PRIORITY_PREFETCH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_USER = 2; // the clip the user tapped
+
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+
     private OkHttpClient client;
 
+    private final DownloadScheduler scheduler = new DownloadScheduler(this::executeTask, DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+
+    private final Map<String, ProgressiveFile> progressiveFiles = new HashMap<>();
+
+    private int segmentCount = 1;
+
     public AudioDownloader() {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
-        //TODO experiment with options
-        client = builder.build();
+        this(new OkHttpClient.Builder().build()); //TODO experiment with options
+    }
+
+    public AudioDownloader(OkHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Enables the segmented mode: files large enough are fetched as {@code segmentCount}
+     * concurrent byte ranges. Servers without range support are still read as a single stream.
+     *
+     * @param segmentCount number of parallel connections per file, 1 disables the segmented mode
+     */
+    public void setSegmentCount(int segmentCount) {
+        this.segmentCount = Math.max(1, segmentCount);
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        scheduler.setMaxConcurrent(maxConcurrentDownloads);
     }
 
     public void startDownload(String url, AudioDownloadListener listener){
-        listener.onAudioDownloadStarted(AudioUtils.getAudioFilePath(url));
+        startDownload(url, listener, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Requests for a url that is already being fetched join that fetch instead of starting a new one.
+     *
+     * @param priority one of {@link #PRIORITY_PREFETCH}, {@link #PRIORITY_NORMAL}, {@link #PRIORITY_USER};
+     *                 decides the order in which queued downloads start
+     */
+    public void startDownload(String url, AudioDownloadListener listener, int priority){
+        // synchronous once the cache index is loaded, only the very first lookup goes to the disk
+        AudioUtils.isCached(url).subscribe(cached -> {
+            listener.onAudioDownloadStarted(AudioUtils.getAudioFilePath(url));
+
+            if (cached) {
+                listener.onAudioDownloadFinished(AudioUtils.getAudioFilePath(url), true);
+                return;
+            }
+
+            scheduler.enqueue(url, listener, priority, false);
+        }, ExceptionTracker::trackException);
+    }
+
+    /**
+     * Queues a background download of {@code url} behind every other request, unless it is cached.
+     * The listener hears nothing about urls that are already cached.
+     *
+     * @param priority ranks the url among the other prefetches only
+     * @return emits whether the download was queued, once subscribed to
+     */
+    Observable<Boolean> prefetch(String url, AudioDownloadListener listener, int priority) {
+        return AudioUtils.isCached(url).map(cached -> {
+            if (!cached) {
+                scheduler.enqueue(url, listener, priority, true);
+            }
+            return !cached;
+        });
+    }
+
+    /**
+     * @return true while a download of {@code url} is queued or running
+     */
+    boolean isDownloading(String url) {
+        return scheduler.isScheduled(url);
+    }
+
+    void setPrefetchGate(DownloadScheduler.PrefetchGate prefetchGate) {
+        scheduler.setPrefetchGate(prefetchGate);
+    }
+
+    /**
+     * Re-evaluates whether queued prefetches may start, e.g. after the network policy changed.
+     */
+    public void resumePrefetches() {
+        scheduler.promotePending();
+    }
 
-        if(AudioUtils.checkIfFileExists(url)){
-            listener.onAudioDownloadFinished(AudioUtils.getAudioFilePath(url), true);
+    /**
+     * Starts (or joins) the download of {@code url} with {@link #PRIORITY_USER} and gives access
+     * to the file while it is being written, so that playback can start before it is complete.
+     * Such downloads always use a single stream, since segments arrive out of order.
+     */
+    ProgressiveFile startProgressiveDownload(String url, AudioDownloadListener listener) {
+        ProgressiveFile progressiveFile;
+        synchronized (progressiveFiles) {
+            progressiveFile = progressiveFiles.get(url);
+            if (progressiveFile == null) {
+                progressiveFile = new ProgressiveFile(new File(AudioUtils.getPartialFilePath(url)));
+                progressiveFiles.put(url, progressiveFile);
+            }
+        }
+
+        startDownload(url, listener, PRIORITY_USER);
+        return progressiveFile;
+    }
+
+    private ProgressiveFile getProgressiveFile(String url) {
+        synchronized (progressiveFiles) {
+            return progressiveFiles.get(url);
+        }
+    }
+
+    private void finishProgressiveFile(String url, Throwable error) {
+        ProgressiveFile progressiveFile;
+        synchronized (progressiveFiles) {
+            progressiveFile = progressiveFiles.remove(url);
+        }
+        if (progressiveFile == null) {
             return;
         }
 
-        getDownloadObservable(url)
+        if (error == null) {
+            progressiveFile.onCompleted(new File(AudioUtils.getAudioFilePath(url)));
+        } else {
+            progressiveFile.onFailed(error instanceof IOException ? (IOException) error : new IOException(error));
+        }
+    }
+
+    /**
+     * Moves the finished ".part" file into the cache, in step with the readers of a progressive download.
+     *
+     * @return the final path of the file
+     */
+    private String commitDownload(String url, PartialDownload partial, String path) throws IOException {
+        ProgressiveFile progressiveFile = getProgressiveFile(url);
+        String cachedPath;
+        if (progressiveFile == null) {
+            partial.commit(new File(path));
+            cachedPath = AudioUtils.onFileCached(url);
+        } else {
+            synchronized (progressiveFile) {
+                partial.commit(new File(path));
+                cachedPath = AudioUtils.onFileCached(url);
+                progressiveFile.onCompleted(new File(cachedPath));
+            }
+        }
+
+        FrameIndex.buildInBackground(cachedPath); // ready for seeking by the time it is played
+        Loudness.analyzeInBackground(cachedPath);
+        return cachedPath;
+    }
+
+    /**
+     * Stops delivering events to the listener. The fetch itself is cancelled once no listener
+     * is left; whatever was downloaded stays in the ".part" file for the next attempt.
+     */
+    public void cancelDownload(String url, AudioDownloadListener listener) {
+        scheduler.cancel(url, listener);
+    }
+
+    private Subscription executeTask(DownloadTask task) {
+        String url = task.getUrl();
+
+        return task.asWorker(getDownloadObservable(task))
+                .retry(AudioDownloader::shouldRetry)
                 .onBackpressureBuffer()
                 .subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(new Subscriber<DownloadStatus>() {
                     @Override
                     public void onCompleted() {
-                        listener.onAudioDownloadComplete(url);
+                        scheduler.onTaskFinished(task);
+                        finishProgressiveFile(url, null);
+                        task.onAudioDownloadComplete(url);
                     }
 
                     @Override
                     public void onError(Throwable e) {
-                        listener.onAudioDownloadError(e);
+                        scheduler.onTaskFinished(task);
+                        finishProgressiveFile(url, e);
+                        task.onAudioDownloadFinished(AudioUtils.getAudioFilePath(url), false);
+                        task.onAudioDownloadError(e);
                         ExceptionTracker.trackException(e);
                     }
 
                     @Override
                     public void onNext(DownloadStatus downloadStatus) {
                         if (downloadStatus.isFinished()){
-                            listener.onAudioDownloadFinished(downloadStatus.getPath(), downloadStatus.isSuccessful());
+                            task.onAudioDownloadFinished(downloadStatus.getPath(), downloadStatus.isSuccessful());
                         } else if(downloadStatus.isSuccessful()){
-                            listener.onAudioDownloadProgress(downloadStatus.getPath(), downloadStatus.getProgress());
+                            task.onAudioDownloadProgress(downloadStatus.getPath(), downloadStatus.getProgress());
                         }
                     }
                 });
     }
 
-    private Observable<DownloadStatus> getDownloadObservable(String url){
+    private Observable<DownloadStatus> getDownloadObservable(DownloadTask task){
+        String url = task.getUrl();
+        if (segmentCount <= 1) {
+            return getSingleStreamObservable(url);
+        }
+
+        return Observable.defer(() -> {
+            if (getProgressiveFile(url) != null || PartialDownload.load(url).canResume()) {
+                // being streamed, or finishing what an earlier single stream started
+                return getSingleStreamObservable(url);
+            }
+
+            SegmentedDownload download;
+            try {
+                download = SegmentedDownload.prepare(client, url, segmentCount);
+            } catch (IOException e) {
+                // some servers and proxies choke on HEAD, the GET decides whether the file is reachable
+                ExceptionTracker.trackException(e);
+                download = null;
+            }
+
+            return download == null ? getSingleStreamObservable(url) : getSegmentedObservable(task, download);
+        });
+    }
+
+    private Observable<DownloadStatus> getSegmentedObservable(DownloadTask task, SegmentedDownload download) {
+        String url = task.getUrl();
+        String path = AudioUtils.getAudioFilePath(url);
+        PartialDownload partial = PartialDownload.load(url);
+        try {
+            download.resume(partial);
+        } catch (IOException e) {
+            return Observable.error(e);
+        }
+        long contentLength = download.getContentLength();
+        long[] totalRead = {partial.getCompletedBytes()};
+
+        return download.download(partial, task)
+                .map(read -> {
+                    totalRead[0] += read;
+                    return (int) ((totalRead[0] * 100) / contentLength);
+                })
+                .distinctUntilChanged()
+                .filter(progress -> progress < 100)
+                .map(progress -> DownloadStatus.create(path, progress))
+                .concatWith(Observable.defer(() -> {
+                    String cachedPath;
+                    try {
+                        cachedPath = commitDownload(url, partial, path);
+                    } catch (IOException e) {
+                        return Observable.error(e);
+                    }
+                    return Observable.just(DownloadStatus.create(cachedPath, 100, true, true));
+                }))
+                .doOnError(ExceptionTracker::trackException); // the completed ranges stay for the retry
+    }
+
+    private Observable<DownloadStatus> getSingleStreamObservable(String url){
         return Observable.create(subscriber -> {
+            String path = AudioUtils.getAudioFilePath(url);
+            PartialDownload partial = PartialDownload.load(url);
+            Response response = null;
+            BufferedSink sink = null;
             try {
-                Request request = new Request.Builder().url(url).build();
+                response = execute(newRequest(url, partial), subscriber);
+                if (response.code() == HTTP_RANGE_NOT_SATISFIABLE && partial.canResume()) {
+                    // what we have on disk doesn't match the remote file anymore, start over right away
+                    response.close();
+                    partial.discard();
+                    response = execute(newRequest(url, partial), subscriber);
+                }
+                if (!response.isSuccessful()) {
+                    throw new HttpStatusException(response.code(), url);
+                }
 
-                Response response = client.newCall(request).execute();
                 ResponseBody body = response.body();
-                long contentLength = body.contentLength();
-                BufferedSource source = body.source();
+                long offset = 0;
+                if (response.code() == HTTP_PARTIAL_CONTENT
+                        && partial.canResume()
+                        && getContentRangeStart(response) == partial.getBytesWritten()) {
+                    offset = partial.getBytesWritten();
+                } else {
+                    // full body (the validator didn't match or the server ignores ranges)
+                    partial.reset();
+                }
 
-                String path = AudioUtils.getAudioFilePath(url);
-                File file = new File(path);
-                BufferedSink sink = Okio.buffer(Okio.sink(file));
+                long contentLength = body.contentLength() < 0 ? -1 : offset + body.contentLength();
+                partial.setValidators(response.header("ETag"), response.header("Last-Modified"));
+                partial.setContentLength(contentLength);
+                partial.setBytesWritten(offset);
 
-                long totalRead = 0;
+                BufferedSource source = body.source();
+                sink = partial.openSink();
+                partial.save();
+
+                long totalRead = offset;
                 long read = 0;
                 int lastUpdatedProgress = 0;
                 while ((read = (source.read(sink.buffer(), DOWNLOAD_CHUNK_SIZE))) != -1) {
+                    sink.emitCompleteSegments();
                     totalRead += read;
-                    int progress = (int) ((totalRead * 100) / contentLength);
 
+                    ProgressiveFile progressiveFile = getProgressiveFile(url);
+                    if (progressiveFile != null) {
+                        // only complete segments were written, the rest is still in the buffer
+                        progressiveFile.onProgress(totalRead - sink.buffer().size(), contentLength);
+                    }
+
+                    if (subscriber.isUnsubscribed()) {
+                        savePartialQuietly(partial, sink); // cancelled, keep it for the next request
+                        return;
+                    }
+                    if (contentLength <= 0) {
+                        continue;
+                    }
+
+                    int progress = (int) ((totalRead * 100) / contentLength);
                     if(progress > lastUpdatedProgress){
                         lastUpdatedProgress = progress;
+
+                        sink.flush();
+                        partial.setBytesWritten(totalRead);
+                        partial.save();
+
                         subscriber.onNext(DownloadStatus.create(path, progress));
                     }
                 }
-                sink.writeAll(source);
-                sink.flush();
                 sink.close();
+                sink = null;
+                partial.setBytesWritten(totalRead);
 
-                subscriber.onNext(DownloadStatus.create(path, 100, true, true));
+                ProgressiveFile progressiveFile = getProgressiveFile(url);
+                if (progressiveFile != null) {
+                    progressiveFile.onProgress(totalRead, contentLength); // the tail was still buffered
+                }
+
+                if (contentLength >= 0 && totalRead != contentLength) {
+                    partial.save();
+                    throw new IOException("Expected " + contentLength + " bytes but got " + totalRead + " for " + url);
+                }
+
+                String cachedPath = commitDownload(url, partial, path);
+
+                subscriber.onNext(DownloadStatus.create(cachedPath, 100, true, true));
                 subscriber.onCompleted();
             } catch (IOException e) {
-                subscriber.onNext(DownloadStatus.create(AudioUtils.getAudioFilePath(url), -1, true, false));
+                savePartialQuietly(partial, sink);
                 subscriber.onError(e);
                 ExceptionTracker.trackException(e);
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
             }
         });
     }
 
+    /**
+     * Executes the call, cancelling it when the subscriber unsubscribes so that a cancelled download
+     * doesn't stay blocked in a read.
+     */
+    private Response execute(Request request, Subscriber<?> subscriber) throws IOException {
+        Call call = client.newCall(request);
+        subscriber.add(Subscriptions.create(call::cancel));
+        return call.execute();
+    }
+
+    /**
+     * @return a GET continuing the ".part" file if there is one to resume
+     */
+    private static Request newRequest(String url, PartialDownload partial) {
+        Request.Builder requestBuilder = new Request.Builder().url(url);
+        if (partial.canResume()) {
+            requestBuilder
+                    .header("Range", "bytes=" + partial.getBytesWritten() + "-")
+                    .header("If-Range", partial.getIfRange());
+        }
+        return requestBuilder.build();
+    }
+
+    /**
+     * Keeps whatever reached the disk so that the next attempt can continue from there.
+     */
+    private static void savePartialQuietly(PartialDownload partial, BufferedSink sink) {
+        try {
+            if (sink != null) {
+                sink.close();
+            }
+        } catch (IOException e) {
+            ExceptionTracker.trackException(e);
+        }
+
+        if (!partial.getPartFile().exists()) {
+            return;
+        }
+
+        try {
+            partial.setBytesWritten(partial.getPartFile().length());
+            partial.save();
+        } catch (IOException e) {
+            ExceptionTracker.trackException(e);
+        }
+    }
+
+    private static long getContentRangeStart(Response response) {
+        String contentRange = response.header("Content-Range"); // bytes 1000-1999/2000
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean shouldRetry(int attempt, Throwable e) {
+        if (attempt > MAX_RESUME_ATTEMPTS || !(e instanceof IOException)) {
+            return false;
+        }
+        // client errors won't go away by asking again
+        return !(e instanceof HttpStatusException) || ((HttpStatusException) e).getCode() >= 500;
+    }
+
+    static class HttpStatusException extends IOException {
+        private final int code;
+
+        HttpStatusException(int code, String url) {
+            super("Unexpected response code " + code + " for " + url);
+            this.code = code;
+        }
+
+        int getCode() {
+            return code;
+        }
+    }
 
     private static class DownloadStatus{
         private String path;
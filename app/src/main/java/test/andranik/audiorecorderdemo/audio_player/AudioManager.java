@@ -1,6 +1,22 @@
 package test.andranik.audiorecorderdemo.audio_player;
 
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
 
 /**
  * Created by andranik on 7/11/16.
@@ -13,6 +29,12 @@ public class AudioManager {
 
     private AudioDownloader audioDownloader;
 
+    private Prefetcher prefetcher;
+
+    private AudioUploader audioUploader;
+
+    private OkHttpClient httpClient;
+
     public AudioManager() {
     }
 
@@ -30,12 +52,38 @@ public class AudioManager {
         return this;
     }
 
+    public AudioManager setAudioLevelListener(AudioRecorder.AudioLevelListener listener) {
+        if (audioRecorder == null) {
+            throw new AudioManagerException("need to call initAudioRecorder() first");
+        }
+        audioRecorder.setLevelListener(listener);
+
+        return this;
+    }
+
     public AudioManager initAudioDownloader() {
-        audioDownloader = new AudioDownloader();
+        audioDownloader = new AudioDownloader(getHttpClient());
+        prefetcher = new Prefetcher(audioDownloader);
 
         return this;
     }
 
+    /**
+     * @param endpoint url that starts a resumable upload session
+     */
+    public AudioManager initAudioUploader(String endpoint) {
+        audioUploader = new AudioUploader(getHttpClient(), endpoint);
+
+        return this;
+    }
+
+    private OkHttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpClient = new OkHttpClient.Builder().build(); //TODO experiment with options
+        }
+        return httpClient;
+    }
+
     public AudioRecorder getAudioRecorder() {
         return audioRecorder;
     }
@@ -48,6 +96,10 @@ public class AudioManager {
         return audioDownloader;
     }
 
+    public AudioUploader getAudioUploader() {
+        return audioUploader;
+    }
+
 
     public void startDownloadFile(String url, AudioDownloader.AudioDownloadListener listener) {
         if (audioDownloader == null) {
@@ -57,7 +109,222 @@ public class AudioManager {
         audioDownloader.startDownload(url, listener);
     }
 
-    public void startRecording() {
+    public void startDownloadFile(String url, AudioDownloader.AudioDownloadListener listener, int priority) {
+        if (audioDownloader == null) {
+            throw new AudioManagerException("need to call initAudioDownloader() first");
+        }
+
+        audioDownloader.startDownload(url, listener, priority);
+    }
+
+    public void cancelDownloadFile(String url, AudioDownloader.AudioDownloadListener listener) {
+        if (audioDownloader == null) {
+            return;
+        }
+
+        audioDownloader.cancelDownload(url, listener);
+    }
+
+    /**
+     * Plays a remote clip while it is being downloaded into the cache. Before Android 6.0 the
+     * clip starts playing when the download finishes.
+     */
+    public void startStreaming(String url, AudioDownloader.AudioDownloadListener listener) {
+        if (audioDownloader == null) {
+            throw new AudioManagerException("need to call initAudioDownloader() first");
+        }
+        if (audioPlayer == null) {
+            throw new AudioManagerException("need to call initAudioPlayer() first");
+        }
+
+        AudioUtils.isCached(url).subscribe(cached -> {
+            if (cached) {
+                startPlaying(AudioUtils.getAudioFilePath(url));
+                return;
+            }
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                ProgressiveFile progressiveFile = audioDownloader.startProgressiveDownload(url, listener);
+                audioPlayer.startPlaying(AudioUtils.getAudioFilePath(url), new StreamingMediaDataSource(progressiveFile));
+            } else {
+                audioDownloader.startDownload(url, new PlayWhenDownloadedListener(listener), AudioDownloader.PRIORITY_USER);
+            }
+        }, ExceptionTracker::trackException);
+    }
+
+    /**
+     * Downloads the clips into the cache in the background, one at a time and only while no
+     * other download is running, so that they play instantly once tapped.
+     *
+     * @param priority orders these urls among the other prefetched ones, higher first
+     */
+    public void prefetch(List<String> urls, int priority) {
+        if (prefetcher == null) {
+            throw new AudioManagerException("need to call initAudioDownloader() first");
+        }
+
+        prefetcher.prefetch(urls, priority);
+    }
+
+    public void cancelPrefetch() {
+        if (prefetcher == null) {
+            return;
+        }
+
+        prefetcher.cancel();
+    }
+
+    /**
+     * @param byteBudget how many bytes prefetching may download until {@link #resetPrefetchBudget()}
+     */
+    public void setPrefetchByteBudget(long byteBudget) {
+        if (prefetcher == null) {
+            throw new AudioManagerException("need to call initAudioDownloader() first");
+        }
+
+        prefetcher.setByteBudget(byteBudget);
+        audioDownloader.resumePrefetches();
+    }
+
+    public void resetPrefetchBudget() {
+        if (prefetcher == null) {
+            return;
+        }
+
+        prefetcher.resetBudget();
+        audioDownloader.resumePrefetches();
+    }
+
+    /**
+     * @param networkPolicy e.g. {@link ConnectivityNetworkPolicy} to pause prefetching on metered
+     *                      networks; null allows prefetching on any network
+     */
+    public void setPrefetchNetworkPolicy(NetworkPolicy networkPolicy) {
+        if (prefetcher == null) {
+            throw new AudioManagerException("need to call initAudioDownloader() first");
+        }
+
+        prefetcher.setNetworkPolicy(networkPolicy);
+        audioDownloader.resumePrefetches();
+    }
+
+    /**
+     * Call when the network changes, so that prefetches paused by the network policy can continue.
+     */
+    public void onNetworkChanged() {
+        if (audioDownloader == null) {
+            return;
+        }
+
+        audioDownloader.resumePrefetches();
+    }
+
+    /**
+     * @param backend    {@link AudioRecorder#BACKEND_MEDIA_RECORDER} or {@link AudioRecorder#BACKEND_PCM}
+     * @param pcmEncoder output of the PCM backend, {@link AudioRecorder#PCM_ENCODER_AAC} or {@link AudioRecorder#PCM_ENCODER_WAV}
+     */
+    public void setRecordingBackend(@AudioRecorder.Backend int backend, @AudioRecorder.PcmEncoder int pcmEncoder) {
+        if (audioRecorder == null) {
+            throw new AudioManagerException("need to call initAudioRecorder() first");
+        }
+
+        audioRecorder.setBackend(backend);
+        audioRecorder.setPcmEncoder(pcmEncoder);
+    }
+
+    /**
+     * See {@link AudioRecorder#setEncodingProfile(EncodingProfile)}.
+     */
+    public void setEncodingProfile(EncodingProfile profile) {
+        if (audioRecorder == null) {
+            throw new AudioManagerException("need to call initAudioRecorder() first");
+        }
+
+        audioRecorder.setEncodingProfile(profile);
+    }
+
+    /**
+     * Re-encodes a finished recording to {@code profile} in the background, e.g. before uploading it.
+     *
+     * @return the new path of the recording, on the main thread
+     */
+    public Observable<String> transcodeRecording(RecordingSession session, EncodingProfile profile) {
+        String fileName = session.getFileName();
+        releasePreparedRecording(session); // the file is replaced
+        return AudioUtils.getTranscoder().transcode(session, profile)
+                .doOnNext(path -> {
+                    // prepared or measured again while transcoding
+                    releasePreparedPlayer(fileName);
+                    releasePreparedPlayer(path);
+                });
+    }
+
+    /**
+     * Re-encodes the cached clip of {@code url} to {@code profile} in the background.
+     *
+     * @return whether it was transcoded, false if it already fits the profile
+     */
+    public Observable<Boolean> transcodeCachedFile(String url, EncodingProfile profile) {
+        return AudioUtils.isCached(url).flatMap(cached -> {
+            if (!cached) {
+                return Observable.error(new FileNotFoundException("Not cached: " + url));
+            }
+
+            String path = AudioUtils.getAudioFilePath(url);
+            releasePreparedPlayer(path);
+            return AudioUtils.getTranscoder().transcode(path, profile)
+                    .doOnNext(transcoded -> {
+                        if (transcoded) {
+                            releasePreparedPlayer(path); // prepared or measured again while transcoding
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Trims silence from recordings made with the PCM backend, see {@link AudioRecorder#setTrimSilence(boolean, int)}.
+     */
+    public void setTrimSilence(boolean trimSilence, int maxPauseMillis) {
+        if (audioRecorder == null) {
+            throw new AudioManagerException("need to call initAudioRecorder() first");
+        }
+
+        audioRecorder.setTrimSilence(trimSilence, maxPauseMillis);
+    }
+
+    /**
+     * Call while the recording screen is visible: the microphone stays open and recordings start
+     * with the half second said before the tap. Needs the RECORD_AUDIO permission.
+     *
+     * @return false if the microphone couldn't be opened
+     */
+    public boolean startWarmCapture() {
+        if (audioRecorder == null) {
+            throw new AudioManagerException("need to call initAudioRecorder() first");
+        }
+
+        return audioRecorder.startWarmCapture();
+    }
+
+    public void stopWarmCapture() {
+        if (audioRecorder != null) {
+            audioRecorder.stopWarmCapture();
+        }
+    }
+
+    /**
+     * Waveform of a recording or of the cached clip of a url, see {@link WaveformIndex#getPeaks(String, int)}.
+     */
+    public Observable<short[]> loadWaveform(String pathOrUrl, int width) {
+        String path = pathOrUrl.startsWith("/") ? pathOrUrl : AudioUtils.getAudioFilePath(pathOrUrl);
+        return AudioUtils.getWaveformIndex().getPeaks(path, width);
+    }
+
+    /**
+     * @return the new recording with its own file, null if it couldn't be started. The previous
+     * recordings are left alone, so they can still be uploaded while this one is recorded.
+     */
+    public RecordingSession startRecording() {
         if (audioRecorder == null) {
             throw new AudioManagerException("need to call initAudioRecorder() first");
         }
@@ -66,7 +333,35 @@ public class AudioManager {
             audioPlayer.stopPlaying();
         }
 
-        audioRecorder.startRecording();
+        return audioRecorder.startRecording();
+    }
+
+    /**
+     * Starts recording and gives the encoded AAC frames while the recording is in progress,
+     * e.g. for {@link AudioUploader#startLiveUpload}.
+     */
+    public Observable<ByteBuffer> startLiveRecording() {
+        if (audioRecorder == null) {
+            throw new AudioManagerException("need to call initAudioRecorder() first");
+        }
+
+        if (audioPlayer != null && audioPlayer.isPlaying()) {
+            audioPlayer.stopPlaying();
+        }
+
+        return audioRecorder.startLiveRecording();
+    }
+
+    /**
+     * Records and uploads at the same time: frames are sent to {@code url} as they are encoded.
+     */
+    public void startLiveRecordingUpload(String url, AudioUploader.AudioUploadListener listener) {
+        if (audioUploader == null) {
+            throw new AudioManagerException("need to call initAudioUploader() first");
+        }
+
+        Observable<ByteBuffer> frames = startLiveRecording();
+        audioUploader.startLiveUpload(audioRecorder.getFileName(), url, frames, listener);
     }
 
     public void stopRecording() {
@@ -88,8 +383,76 @@ public class AudioManager {
         audioPlayer.startPlaying(path);
     }
 
+    /**
+     * Prepares players for clips that are likely to be played next, by file path or url.
+     */
+    public void preparePlayback(List<String> pathsOrUrls) {
+        if (audioPlayer == null) {
+            return;
+        }
+
+        List<String> paths = new ArrayList<>(pathsOrUrls.size());
+        for (String pathOrUrl : pathsOrUrls) {
+            paths.add(pathOrUrl.startsWith("/") ? pathOrUrl : AudioUtils.getAudioFilePath(pathOrUrl));
+        }
+        audioPlayer.preparePlayers(paths);
+    }
+
+    public void releasePreparedPlayback() {
+        if (audioPlayer != null) {
+            audioPlayer.releasePreparedPlayers();
+        }
+    }
+
+    /**
+     * Plays the clips back to back without gaps, e.g. "play all unread". Takes file paths or urls of cached clips.
+     */
+    public void playQueue(List<String> pathsOrUrls) {
+        if (audioPlayer == null) {
+            throw new AudioManagerException("need to call initAudioPlayer() first");
+        }
+
+        List<String> paths = new ArrayList<>(pathsOrUrls.size());
+        for (String pathOrUrl : pathsOrUrls) {
+            paths.add(pathOrUrl.startsWith("/") ? pathOrUrl : AudioUtils.getAudioFilePath(pathOrUrl));
+        }
+        audioPlayer.playQueue(paths);
+    }
+
+    /**
+     * See {@link AudioPlayer#setPlaybackSpeed(float)}.
+     */
+    public void setPlaybackSpeed(float speed) {
+        if (audioPlayer == null) {
+            throw new AudioManagerException("need to call initAudioPlayer() first");
+        }
+
+        audioPlayer.setPlaybackSpeed(speed);
+    }
+
+    /**
+     * See {@link AudioPlayer#seekTo(long)}.
+     */
+    public void seekTo(long millis) {
+        if (audioPlayer != null) {
+            audioPlayer.seekTo(millis);
+        }
+    }
+
+    public void skipToNext() {
+        if (audioPlayer != null) {
+            audioPlayer.skipToNext();
+        }
+    }
+
+    public void skipToPrevious() {
+        if (audioPlayer != null) {
+            audioPlayer.skipToPrevious();
+        }
+    }
+
     public void startPlayingRecordedFile() {
-        if (audioRecorder == null || audioPlayer == null) {
+        if (audioRecorder == null || audioPlayer == null || audioRecorder.getFileName() == null) {
             return;
         }
 
@@ -133,11 +496,33 @@ public class AudioManager {
             stopRecording();
         }
 
-        if (audioRecorder != null) {
+        if (audioRecorder != null && audioRecorder.getSession() != null) {
+            releasePreparedRecording(audioRecorder.getSession());
             audioRecorder.delete();
         }
     }
 
+    /**
+     * Moves a finished recording into the cache as the clip of {@code url}, see {@link RecordingSession#moveToCache(String)}.
+     *
+     * @return the new path of the recording, on the main thread
+     */
+    public Observable<String> moveRecordingToCache(RecordingSession session, String url) {
+        releasePreparedRecording(session); // the file is moving
+        return session.moveToCache(url)
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    private void releasePreparedRecording(RecordingSession session) {
+        releasePreparedPlayer(session.getFileName());
+    }
+
+    private void releasePreparedPlayer(String path) {
+        if (audioPlayer != null) {
+            audioPlayer.releasePreparedPlayer(path);
+        }
+    }
+
     public String getBase64() {
         if (audioRecorder == null) {
             return null;
@@ -150,4 +535,118 @@ public class AudioManager {
         }
         return null;
     }
+
+    public void startUploadFile(String path, AudioUploader.AudioUploadListener listener) {
+        if (audioUploader == null) {
+            throw new AudioManagerException("need to call initAudioUploader() first");
+        }
+
+        audioUploader.startUpload(path, listener);
+    }
+
+    /**
+     * Uploads the last recording, see {@link #startUploadRecording(RecordingSession, AudioUploader.AudioUploadListener)}.
+     */
+    public void startUploadRecordedFile(AudioUploader.AudioUploadListener listener) {
+        if (audioRecorder == null) {
+            throw new AudioManagerException("need to call initAudioRecorder() first");
+        }
+        if (audioRecorder.getSession() == null) {
+            return;
+        }
+
+        startUploadRecording(audioRecorder.getSession(), listener);
+    }
+
+    /**
+     * Uploads the recording as soon as its file is complete. Recordings have files of their own, so
+     * several of them can be uploaded while the next one is recorded.
+     */
+    public void startUploadRecording(RecordingSession session, AudioUploader.AudioUploadListener listener) {
+        if (audioUploader == null) {
+            throw new AudioManagerException("need to call initAudioUploader() first");
+        }
+
+        session.whenFinished()
+                .subscribe(finished -> audioUploader.startUpload(finished.getFileName(), listener), listener::onAudioUploadError);
+    }
+
+    public void cancelUploadFile(String path) {
+        if (audioUploader == null) {
+            return;
+        }
+
+        audioUploader.cancelUpload(path);
+    }
+
+    /**
+     * Base64 encodes the recorded file straight into {@code out} without loading it in memory.
+     */
+    public void writeBase64(OutputStream out) throws IOException {
+        if (audioRecorder == null) {
+            throw new AudioManagerException("need to call initAudioRecorder() first");
+        }
+
+        audioRecorder.writeBase64(out);
+    }
+
+    /**
+     * @return a request body uploading the recorded file as Base64 text, encoded while it is sent
+     */
+    public RequestBody getBase64RequestBody() {
+        if (audioRecorder == null) {
+            throw new AudioManagerException("need to call initAudioRecorder() first");
+        }
+
+        return new Base64RequestBody(new File(audioRecorder.getFileName()));
+    }
+
+    /**
+     * Maps the cached clip of {@code url} in the background, loading the cache index first if needed.
+     *
+     * @return emits, on the main thread, a request body uploading the clip from the memory mapping,
+     * so it is never read into the heap; fails with a {@link FileNotFoundException} if the url is not cached
+     */
+    public Observable<RequestBody> getCachedRequestBody(String url, MediaType contentType) {
+        return Observable.<RequestBody>fromCallable(() -> new MappedRequestBody(
+                AudioUtils.getCache().map(AudioUtils.getFileNameFromUri(url)), contentType))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    private class PlayWhenDownloadedListener implements AudioDownloader.AudioDownloadListener {
+        private final AudioDownloader.AudioDownloadListener listener;
+
+        private PlayWhenDownloadedListener(AudioDownloader.AudioDownloadListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onAudioDownloadStarted(String path) {
+            listener.onAudioDownloadStarted(path);
+        }
+
+        @Override
+        public void onAudioDownloadFinished(String path, boolean successful) {
+            listener.onAudioDownloadFinished(path, successful);
+            if (successful) {
+                startPlaying(path);
+            }
+        }
+
+        @Override
+        public void onAudioDownloadProgress(String path, int percentPlayed) {
+            listener.onAudioDownloadProgress(path, percentPlayed);
+        }
+
+        @Override
+        public void onAudioDownloadError(Throwable e) {
+            listener.onAudioDownloadError(e);
+        }
+
+        @Override
+        public void onAudioDownloadComplete(String url) {
+            listener.onAudioDownloadComplete(url);
+        }
+    }
 }
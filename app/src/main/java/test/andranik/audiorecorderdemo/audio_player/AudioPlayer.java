@@ -1,13 +1,17 @@
 package test.andranik.audiorecorderdemo.audio_player;
 
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
 import android.media.MediaPlayer;
+import android.media.audiofx.LoudnessEnhancer;
+import android.os.Build;
 import android.util.Log;
+import android.util.LruCache;
 
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
 
 import rx.Observable;
-import rx.Subscriber;
-import rx.Subscription;
 import rx.android.schedulers.AndroidSchedulers;
 import rx.schedulers.Schedulers;
 import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
@@ -23,23 +27,59 @@ public class AudioPlayer {
     public static final int PLAY_STATUS_PAUSED = 1;
     public static final int PLAY_STATUS_PLAYING = 2;
 
+    private static final int LOUDNESS_CACHE_SIZE = 64;
+
     private MediaPlayer mediaPlayer;
 
     private AudioPlayListener playListener;
 
-    private Subscription playProgressSubscription;
-
     private int playStatus;
 
     private String currentPlayingFileName;
 
     private String fileName;
 
+    private final AudioProgress progress = new AudioProgress();
+
+    private final MediaPlayerPool playerPool = new MediaPlayerPool(MediaPlayerPool.DEFAULT_CAPACITY);
+
+    private AudioQueueListener queueListener;
+
+    private List<String> queue;
+
+    private int queueIndex = -1;
+
+    private MediaPlayer nextPlayer; // the following queue item, chained with setNextMediaPlayer once prepared
+
+    private boolean nextPrepared;
+
+    private float playbackSpeed = 1f;
+
+    private StretchedPlayback stretchedPlayback; // replaces mediaPlayer for other speeds before API 23
+
+    private FrameIndex frameIndex; // of fileName, loaded in the background
+
+    private boolean normalizeLoudness = true;
+
+    private final LruCache<String, Loudness> loudnessCache = new LruCache<>(LOUDNESS_CACHE_SIZE); // read from the sidecars
+
+    private LoudnessEnhancer loudnessEnhancer; // boosts quiet clips on API 19+
+
     public AudioPlayer() {
         playStatus = PLAY_STATUS_STOPPED;
     }
 
     public void startPlaying(String fileName) {
+        startPlaying(fileName, null);
+    }
+
+    /**
+     * Plays data that may still be arriving, e.g. a clip being downloaded.
+     *
+     * @param fileName identifies the clip in the listener callbacks
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public void startPlaying(String fileName, MediaDataSource dataSource) {
         this.fileName = fileName;
         if (isPlaying()) {
             if (fileName.equals(currentPlayingFileName)) {
@@ -49,21 +89,55 @@ public class AudioPlayer {
             }
         }
 
+        clearQueue(); // a single clip replaces the queue
+        play(fileName, dataSource);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void play(String fileName, MediaDataSource dataSource) {
+        this.fileName = fileName;
+
         Log.d(TAG, "startPlaying: " + fileName);
 
-        mediaPlayer = new MediaPlayer();
-        try {
-            mediaPlayer.setDataSource(fileName);
-            mediaPlayer.prepareAsync();
-            mediaPlayer.setOnPreparedListener(mp -> {
-                mp.start();
+        AudioUtils.getCache().touchPath(fileName);
+
+        frameIndex = null;
+        if (dataSource == null) {
+            loadFrameIndex(fileName);
+            loadLoudness(fileName, true);
+        }
 
-                playStatus = PLAY_STATUS_PLAYING;
-                currentPlayingFileName = fileName;
+        if (dataSource == null && needsStretchedPlayback()) {
+            startStretchedPlayback(0, false);
+            playStatus = PLAY_STATUS_PLAYING;
+            currentPlayingFileName = fileName;
 
-                notifyPlayStarted();
-                startPlayProgress();
+            notifyPlayStarted();
+            startPlayProgress();
+            return;
+        }
+
+        if (dataSource == null) {
+            // a prepared player is handed to the listener before acquire() returns, and prepareNext()
+            // needs mediaPlayer to chain the following item to it
+            mediaPlayer = playerPool.acquire(fileName, mp -> {
+                mediaPlayer = mp;
+                onPlayerPrepared(mp);
             });
+            if (mediaPlayer != null) {
+                return; // prepared ahead, started already or as soon as it is ready
+            }
+        }
+
+        mediaPlayer = new MediaPlayer();
+        try {
+            if (dataSource != null) {
+                mediaPlayer.setDataSource(dataSource);
+            } else {
+                mediaPlayer.setDataSource(fileName);
+            }
+            mediaPlayer.prepareAsync();
+            mediaPlayer.setOnPreparedListener(this::onPlayerPrepared);
         } catch (Exception e) {
             ExceptionTracker.trackException(e);
             Log.e(TAG, "prepare() failed");
@@ -71,21 +145,219 @@ public class AudioPlayer {
         }
     }
 
+    private void onPlayerPrepared(MediaPlayer mp) {
+        if (!mp.isPlaying()) { // a chained queue item is started by the platform
+            mp.start();
+        }
+        applyPlaybackSpeed(mp);
+        applyLoudness(mp);
+
+        playStatus = PLAY_STATUS_PLAYING;
+        currentPlayingFileName = fileName;
+
+        notifyPlayStarted();
+        startPlayProgress();
+
+        mp.setOnCompletionListener(completionListener);
+        if (queue != null) {
+            prepareNext();
+        }
+    }
+
+    /**
+     * Plays the files one after another without gaps: the next one is prepared while the current one
+     * plays and chained to it with {@link MediaPlayer#setNextMediaPlayer}. The listeners get the usual
+     * started/stopped calls for every item.
+     */
+    public void playQueue(List<String> fileNames) {
+        stopPlaying();
+        if (fileNames.isEmpty()) {
+            return;
+        }
+
+        queue = new ArrayList<>(fileNames);
+        queueIndex = 0;
+        notifyQueueItemChanged();
+        play(queue.get(0), null);
+    }
+
+    /**
+     * Plays the next queue item right away, even when paused. Stops at the end of the queue.
+     */
+    public void skipToNext() {
+        if (queue == null) {
+            return;
+        }
+        advanceTo(queueIndex + 1);
+    }
+
+    /**
+     * Plays the previous queue item, or restarts the first one.
+     */
+    public void skipToPrevious() {
+        if (queue == null) {
+            return;
+        }
+        advanceTo(Math.max(0, queueIndex - 1));
+    }
+
+    /**
+     * @return the index of the playing queue item, -1 without a queue
+     */
+    public int getQueueIndex() {
+        return queue != null ? queueIndex : -1;
+    }
+
+    private final MediaPlayer.OnCompletionListener completionListener = mp -> {
+        if (mp == mediaPlayer) {
+            onPlaybackCompleted();
+        }
+    };
+
+    private final StretchedPlayback.Callback stretchedCallback = new StretchedPlayback.Callback() {
+        @Override
+        public void onStretchedPlaybackCompleted(StretchedPlayback playback) {
+            if (playback == stretchedPlayback) {
+                onPlaybackCompleted();
+            }
+        }
+
+        @Override
+        public void onStretchedPlaybackError(StretchedPlayback playback) {
+            if (playback == stretchedPlayback) {
+                stopPlaying();
+                notifyPlayError();
+            }
+        }
+    };
+
+    private void onPlaybackCompleted() {
+        if (queue != null) {
+            advanceTo(queueIndex + 1);
+        } else if (!isStopped()) {
+            stopPlaying(); // the last tick may land just before the end
+        }
+    }
+
+    private void advanceTo(int index) {
+        List<String> items = queue;
+        if (index >= items.size()) {
+            stopPlaying();
+            if (queueListener != null) queueListener.onAudioQueueFinished();
+            return;
+        }
+
+        // hand the chained player over before stopPlaying() would release it
+        MediaPlayer next = null;
+        boolean prepared = nextPrepared;
+        if (index == queueIndex + 1) {
+            next = nextPlayer;
+            nextPlayer = null;
+        } else {
+            releaseNextPlayer(); // prepared for an item that isn't played next anymore
+        }
+
+        stopPlaying();
+        queue = items;
+        queueIndex = index;
+        notifyQueueItemChanged();
+
+        String itemFileName = items.get(index);
+        if (next == null) {
+            play(itemFileName, null);
+            return;
+        }
+
+        fileName = itemFileName;
+        mediaPlayer = next;
+        if (prepared) {
+            onPlayerPrepared(next);
+        } else {
+            next.setOnPreparedListener(this::onPlayerPrepared);
+        }
+    }
+
+    private void prepareNext() {
+        releaseNextPlayer();
+        if (queueIndex + 1 >= queue.size() || needsStretchedPlayback()) {
+            return; // stretched playback can't be chained, the next item starts on completion
+        }
+
+        String nextFileName = queue.get(queueIndex + 1);
+        loadLoudness(nextFileName, true);
+        MediaPlayer.OnPreparedListener onNextPrepared = mp -> {
+            nextPlayer = mp;
+            nextPrepared = true;
+            if (mediaPlayer != null) {
+                mediaPlayer.setNextMediaPlayer(mp);
+            }
+        };
+
+        MediaPlayer pooled = playerPool.acquire(nextFileName, onNextPrepared);
+        if (pooled != null) {
+            nextPlayer = pooled;
+            return;
+        }
+
+        MediaPlayer player = new MediaPlayer();
+        try {
+            player.setDataSource(nextFileName);
+            player.setOnPreparedListener(onNextPrepared);
+            player.prepareAsync();
+            nextPlayer = player;
+        } catch (Exception e) {
+            ExceptionTracker.trackException(e);
+            player.release(); // played without chaining when it is its turn, reporting the error then
+        }
+    }
+
+    private void releaseNextPlayer() {
+        if (nextPlayer != null) {
+            if (mediaPlayer != null) {
+                mediaPlayer.setNextMediaPlayer(null);
+            }
+            nextPlayer.release();
+            nextPlayer = null;
+        }
+        nextPrepared = false;
+    }
+
+    private void clearQueue() {
+        releaseNextPlayer();
+        queue = null;
+        queueIndex = -1;
+    }
+
+    private void notifyQueueItemChanged() {
+        if (queueListener != null) queueListener.onAudioQueueItemChanged(queueIndex, queue.get(queueIndex));
+    }
+
     private void notifyPlayError() {
         if (playListener != null) playListener.onAudioPlayError();
     }
 
     public void stopPlaying() {
-        if (mediaPlayer == null) {
+        clearQueue();
+
+        releaseLoudnessEnhancer();
+
+        if (mediaPlayer == null && stretchedPlayback == null) {
             playStatus = PLAY_STATUS_STOPPED;
             return;
         }
-        if (mediaPlayer.isPlaying()) {
-            mediaPlayer.stop();
+
+        if (stretchedPlayback != null) {
+            stretchedPlayback.release();
+            stretchedPlayback = null;
         }
+        if (mediaPlayer != null) {
+            if (mediaPlayer.isPlaying()) {
+                mediaPlayer.stop();
+            }
 
-        mediaPlayer.release();
-        mediaPlayer = null;
+            mediaPlayer.release();
+            mediaPlayer = null;
+        }
 
         playStatus = PLAY_STATUS_STOPPED;
 
@@ -94,9 +366,43 @@ public class AudioPlayer {
     }
 
 
+    /**
+     * Prepares players for the given files, e.g. the visible rows of a list, so playing one of
+     * them starts immediately. Only the most recently requested ones (3 by default) are kept.
+     */
+    public void preparePlayers(List<String> fileNames) {
+        for (String name : fileNames) {
+            playerPool.prepare(name);
+            loadLoudness(name, false);
+        }
+    }
+
+    public void setPreparedPlayerCount(int count) {
+        playerPool.setCapacity(count);
+    }
+
+    /**
+     * Drops the player prepared for {@code fileName} and what is known about it, e.g. because the file is overwritten.
+     */
+    public void releasePreparedPlayer(String fileName) {
+        playerPool.release(fileName);
+        loudnessCache.remove(fileName);
+    }
+
+    /**
+     * Releases all players prepared ahead, call it when the list goes away.
+     */
+    public void releasePreparedPlayers() {
+        playerPool.releaseAll();
+    }
+
     public void pausePlaying() {
         //TODO need more checks
-        mediaPlayer.pause();
+        if (stretchedPlayback != null) {
+            stretchedPlayback.pause();
+        } else {
+            mediaPlayer.pause();
+        }
 
         playStatus = PLAY_STATUS_PAUSED;
 
@@ -106,7 +412,12 @@ public class AudioPlayer {
 
     public void resumePlaying() {
         //TODO need more checks
-        mediaPlayer.start();
+        if (stretchedPlayback != null) {
+            stretchedPlayback.resume();
+        } else {
+            mediaPlayer.start();
+            applyPlaybackSpeed(mediaPlayer);
+        }
 
         playStatus = PLAY_STATUS_PLAYING;
 
@@ -115,53 +426,233 @@ public class AudioPlayer {
     }
 
     private void startPlayProgress() {
-        playProgressSubscription = Observable
-                .interval(100, TimeUnit.MILLISECONDS)
-                .takeUntil(aLong -> aLong > mediaPlayer.getDuration() / 100)
-                .map(aLong1 -> {
-                    int[] result = new int[3];
-
-                    final int time = mediaPlayer.getCurrentPosition();
-                    final int maxTime = mediaPlayer.getDuration();
-
-                    result[0] = time / 1000;
-                    result[1] = (maxTime - time) / 1000;
-                    result[2] = (time * 100) / maxTime;
-
-                    return result;
-                })
-                .subscribeOn(Schedulers.computation())
+        ProgressClock.getInstance().add(progressSession);
+    }
+
+    private void stopPlayProgress() {
+        ProgressClock.getInstance().remove(progressSession);
+    }
+
+    private void pausePlayProgress() {
+        stopPlayProgress();
+    }
+
+    private void resumePlayProgress() {
+        startPlayProgress();
+    }
+
+    private final ProgressClock.Session progressSession = this::onProgressTick;
+
+    private void onProgressTick() {
+        if (!isPlaying()) {
+            return;
+        }
+
+        // content time in both cases, independent of the playback speed
+        long position;
+        long duration;
+        if (stretchedPlayback != null) {
+            position = stretchedPlayback.getCurrentPosition();
+            duration = stretchedPlayback.getDuration();
+        } else if (mediaPlayer != null) {
+            position = mediaPlayer.getCurrentPosition();
+            duration = mediaPlayer.getDuration();
+        } else {
+            return;
+        }
+
+        if (duration <= 0) {
+            return; // not known yet, e.g. while streaming
+        }
+        progress.set(Math.min(position, duration), duration);
+        notifyPlayProgress(progress.getTimeElapsed(), progress.getTimeLeft(), progress.getPercent());
+    }
+
+    /**
+     * Plays faster or slower without changing the pitch, e.g. 1.25, 1.5 or 2. Kept for later clips and
+     * across pause/resume. Uses {@code PlaybackParams} on API 23+; older versions decode and
+     * time-stretch the clip themselves ({@link StretchedPlayback}), which only works for files.
+     */
+    public void setPlaybackSpeed(float speed) {
+        playbackSpeed = Math.max(TimeStretcher.MIN_SPEED, Math.min(TimeStretcher.MAX_SPEED, speed));
+
+        if (stretchedPlayback != null) {
+            stretchedPlayback.setSpeed(playbackSpeed);
+            return;
+        }
+        if (mediaPlayer == null || isStopped()) {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if (isPlaying()) {
+                applyPlaybackSpeed(mediaPlayer); // while paused it would start playback, resumePlaying() applies it
+            }
+        } else if (needsStretchedPlayback() && mediaPlayer.getDuration() > 0) {
+            // switch over to the stretched path at the current position
+            long position = mediaPlayer.getCurrentPosition();
+            releaseNextPlayer();
+            mediaPlayer.release();
+            mediaPlayer = null;
+            startStretchedPlayback(position, isPaused());
+        }
+    }
+
+    public float getPlaybackSpeed() {
+        return playbackSpeed;
+    }
+
+    private boolean needsStretchedPlayback() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.M && playbackSpeed != 1f;
+    }
+
+    private void startStretchedPlayback(long positionMillis, boolean paused) {
+        stretchedPlayback = new StretchedPlayback(fileName, positionMillis, playbackSpeed, frameIndex, stretchedCallback);
+        stretchedPlayback.setGain(dbToLinear(getLoudnessGainDb()));
+        if (paused) {
+            stretchedPlayback.pause();
+        }
+        stretchedPlayback.start();
+    }
+
+    /**
+     * Jumps to {@code millis} of the current clip, staying paused if it was. Once the {@link FrameIndex}
+     * of the clip is loaded this lands exactly on the start of the frame containing {@code millis}.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    public void seekTo(long millis) {
+        if (isStopped()) {
+            return;
+        }
+
+        long target = frameIndex != null ? frameIndex.alignMillis(millis) : Math.max(0, millis);
+        if (stretchedPlayback != null) {
+            boolean paused = isPaused();
+            stretchedPlayback.release();
+            startStretchedPlayback(target, paused);
+        } else if (mediaPlayer != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                mediaPlayer.seekTo(target, MediaPlayer.SEEK_CLOSEST); // the frame start, not the nearest sync point
+            } else {
+                mediaPlayer.seekTo((int) target);
+            }
+        }
+    }
+
+    /**
+     * Loads the frame index of {@code name}, building it first if the file has none yet.
+     */
+    private void loadFrameIndex(String name) {
+        Observable.fromCallable(() -> {
+            FrameIndex index = FrameIndex.load(name);
+            return index != null ? index : FrameIndex.build(name);
+        })
+                .subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Subscriber<int[]>() {
-                    @Override
-                    public void onCompleted() {
-                        stopPlaying();
+                .subscribe(index -> {
+                    if (name.equals(fileName)) {
+                        frameIndex = index;
                     }
+                }, ExceptionTracker::trackException);
+    }
 
-                    @Override
-                    public void onError(Throwable e) {
-                        stopPlaying();
-                    }
+    /**
+     * Plays every clip at about {@link Loudness#TARGET_LUFS}, using the loudness measured once when
+     * it was downloaded or recorded. On by default. Quiet clips are only boosted on API 19+.
+     */
+    public void setLoudnessNormalization(boolean normalizeLoudness) {
+        this.normalizeLoudness = normalizeLoudness;
+        applyLoudness();
+    }
 
-                    @Override
-                    public void onNext(int[] ints) {
-                        notifyPlayProgress(ints[0], ints[1], ints[2]);
+    /**
+     * Reads the loudness of {@code name} into the cache, measuring it first if {@code analyze} and it has no sidecar.
+     */
+    private void loadLoudness(String name, boolean analyze) {
+        if (loudnessCache.get(name) != null) {
+            return;
+        }
+
+        Observable.fromCallable(() -> {
+            Loudness loudness = Loudness.read(name);
+            return loudness != null || !analyze ? loudness : Loudness.analyze(name);
+        })
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(loudness -> {
+                    if (loudness == null) {
+                        return;
+                    }
+                    loudnessCache.put(name, loudness);
+                    if (name.equals(fileName)) {
+                        applyLoudness();
                     }
-                });
+                }, ExceptionTracker::trackException);
     }
 
-    private void stopPlayProgress() {
-        if (playProgressSubscription != null && !playProgressSubscription.isUnsubscribed()) {
-            playProgressSubscription.unsubscribe();
+    private float getLoudnessGainDb() {
+        Loudness loudness = normalizeLoudness && fileName != null ? loudnessCache.get(fileName) : null;
+        return loudness != null ? loudness.getGainDb() : 0;
+    }
+
+    private void applyLoudness() {
+        if (stretchedPlayback != null) {
+            stretchedPlayback.setGain(dbToLinear(getLoudnessGainDb()));
+        } else if (mediaPlayer != null) {
+            applyLoudness(mediaPlayer);
         }
     }
 
-    private void pausePlayProgress() {
-        stopPlayProgress(); //TODO test
+    /**
+     * Attenuates with the player volume; boosts with a {@link LoudnessEnhancer} on its audio session.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void applyLoudness(MediaPlayer mp) {
+        float gainDb = getLoudnessGainDb();
+        float volume = gainDb < 0 ? dbToLinear(gainDb) : 1f;
+        mp.setVolume(volume, volume);
+
+        releaseLoudnessEnhancer();
+        if (gainDb > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            try {
+                loudnessEnhancer = new LoudnessEnhancer(mp.getAudioSessionId());
+                loudnessEnhancer.setTargetGain(Math.round(gainDb * 100)); // millibels
+                loudnessEnhancer.setEnabled(true);
+            } catch (RuntimeException e) {
+                ExceptionTracker.trackException(e); // plays at the original level then
+                releaseLoudnessEnhancer();
+            }
+        }
     }
 
-    private void resumePlayProgress() {
-        startPlayProgress(); // TODO test
+    private void releaseLoudnessEnhancer() {
+        if (loudnessEnhancer != null) {
+            loudnessEnhancer.release();
+            loudnessEnhancer = null;
+        }
+    }
+
+    private static float dbToLinear(float db) {
+        return (float) Math.pow(10, db / 20);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void applyPlaybackSpeed(MediaPlayer mp) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        try {
+            mp.setPlaybackParams(mp.getPlaybackParams().setSpeed(playbackSpeed));
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            ExceptionTracker.trackException(e);
+        }
+    }
+
+    /**
+     * @return the progress of the current clip, updated in place while it plays
+     */
+    public AudioProgress getProgress() {
+        return progress;
     }
 
     public boolean isPlaying() {
@@ -196,14 +687,24 @@ public class AudioPlayer {
         if (playListener != null)
             playListener.onAudioPlayProgress(timeElapsed, timeLeft, percentPlayed);
         if (percentPlayed == 100) {
-            stopPlaying();
+            onPlayProgressFinished();
         }
     }
 
+    private void onPlayProgressFinished() {
+        if (queue == null) {
+            stopPlaying();
+        } // a queue moves on when the player completes, see completionListener
+    }
+
     public void setPlayListener(AudioPlayListener playListener) {
         this.playListener = playListener;
     }
 
+    public void setQueueListener(AudioQueueListener queueListener) {
+        this.queueListener = queueListener;
+    }
+
     public interface AudioPlayListener {
         void onAudioPlayStarted(String path);
 
@@ -217,4 +718,10 @@ public class AudioPlayer {
 
         void onAudioPlayError();
     }
+
+    public interface AudioQueueListener {
+        void onAudioQueueItemChanged(int index, String path);
+
+        void onAudioQueueFinished();
+    }
 }
@@ -0,0 +1,50 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+/**
+ * Progress of a playback or recording session. Each session owns one instance and updates it in
+ * place on every tick, read it on the main thread only.
+ */
+public class AudioProgress {
+
+    private long positionMillis;
+    private long durationMillis;
+
+    private int timeElapsed;
+    private int timeLeft;
+    private int percent;
+
+    void set(long positionMillis, long durationMillis) {
+        this.positionMillis = positionMillis;
+        this.durationMillis = durationMillis;
+
+        timeElapsed = (int) (positionMillis / 1000);
+        timeLeft = (int) Math.max(0, (durationMillis - positionMillis) / 1000);
+        percent = durationMillis > 0 ? (int) Math.min(100, positionMillis * 100 / durationMillis) : 0;
+    }
+
+    public long getPositionMillis() {
+        return positionMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return whole seconds played or recorded
+     */
+    public int getTimeElapsed() {
+        return timeElapsed;
+    }
+
+    /**
+     * @return whole seconds left
+     */
+    public int getTimeLeft() {
+        return timeLeft;
+    }
+
+    public int getPercent() {
+        return percent;
+    }
+}
@@ -1,24 +1,26 @@
 package test.andranik.audiorecorderdemo.audio_player;
 
 import android.media.MediaRecorder;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
-import android.util.Base64;
 import android.util.Log;
+import android.view.Choreographer;
 
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
 
 import rx.Observable;
-import rx.Subscriber;
-import rx.Subscription;
-import rx.android.schedulers.AndroidSchedulers;
-import rx.schedulers.Schedulers;
+import rx.subjects.ReplaySubject;
 import test.andranik.audiorecorderdemo.App;
 import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
 
@@ -38,52 +40,309 @@ public class AudioRecorder {
     public static final int DURATION_SHORT = 12 * 1000;
     public static final int DURATION_LONG = 30 * 1000;
 
+    @IntDef({BACKEND_MEDIA_RECORDER, BACKEND_PCM})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Backend {
+    }
+
+    public static final int BACKEND_MEDIA_RECORDER = 0;
+    public static final int BACKEND_PCM = 1; // AudioRecord + our own pipeline, see PcmCaptureEngine
+
+    @IntDef({PCM_ENCODER_AAC, PCM_ENCODER_WAV})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface PcmEncoder {
+    }
+
+    public static final int PCM_ENCODER_AAC = 0;
+    public static final int PCM_ENCODER_WAV = 1;
+
+    private static final String MP4_EXTENSION = ".m4a";
+    private static final String ADTS_EXTENSION = ".aac";
+    private static final String WAV_EXTENSION = ".wav";
+
+    private static final int PCM_SAMPLE_RATE = 44100;
+
+    private static final int WAVEFORM_CHUNK = 32; // peaks handed out per frame at most
+
     private int maxDuration = 12 * 1000; // 12 seconds by default
 
-    private String fileName;
+    private RecordingSession session; // the current or the last recording
 
     private MediaRecorder mediaRecorder;
 
     private AudioRecordListener recordListener;
 
-    private Subscription recordProgressSubscription;
+    private final AudioProgress progress = new AudioProgress();
+
+    private long recordStartTime;
 
     private boolean isRecording;
 
+    private ParcelFileDescriptor liveWriteSide;
+
+    private ReplaySubject<ByteBuffer> liveFrames;
+
+    @Backend
+    private int backend = BACKEND_MEDIA_RECORDER;
+
+    @PcmEncoder
+    private int pcmEncoder = PCM_ENCODER_AAC;
+
+    private EncodingProfile encodingProfile; // null for the defaults of each backend
+
+    private PcmCaptureEngine captureEngine;
+
+    private AudioLevelListener levelListener;
+
+    private LevelMeterStage levelMeter;
+
+    private boolean trimSilence;
+
+    private int maxPauseMillis = SilenceTrimmer.MAX_HOLDBACK_MILLIS;
+
+    private SilenceTrimmer silenceTrimmer;
+
+    private boolean levelMetering;
+
+    private final short[] waveformChunk = new short[WAVEFORM_CHUNK];
+
+    private long waveformPosition;
+
 
     public AudioRecorder(@Duration int maxDuration) {
         this.maxDuration = maxDuration;
+    }
 
-        fileName = App.getInstance().getFilesDir().getAbsolutePath() + "/current.m4a";
+    /**
+     * Records into a new file, so the previous recordings can still be uploaded or encoded meanwhile.
+     *
+     * @return the new recording, null if already recording or the microphone couldn't be opened
+     */
+    RecordingSession startRecording() {
+        return startRecording(false);
     }
 
-    void startRecording() {
+    /**
+     * Records AAC in ADTS framing through a pipe, so the encoded frames can be consumed (e.g. uploaded)
+     * while the recording is still in progress. The frames are also written to the file of {@link #getSession()}.
+     *
+     * @return every frame of the recording, replayed to late subscribers, completing when it stops.
+     * Each frame is a separate array-backed buffer including its ADTS header; don't modify it.
+     */
+    Observable<ByteBuffer> startLiveRecording() {
+        startRecording(true);
+
+        if (liveFrames == null) {
+            return Observable.error(new IOException("Could not start live recording"));
+        }
+        return liveFrames.asObservable();
+    }
+
+    private RecordingSession startRecording(boolean live) {
         App.getInstance().getUiHandler().removeCallbacks(stopRecordRunnable);
 
         if (isRecording) {
-            return;
+            return null;
         }
 
+        liveFrames = null;
+
+        if (!live && (backend == BACKEND_PCM || isWarm())) {
+            return startPcmRecording();
+        }
+        if (captureEngine != null) {
+            captureEngine.release(); // MediaRecorder needs the microphone
+        }
+
+        session = RecordingSession.create(live ? ADTS_EXTENSION : MP4_EXTENSION);
+        String fileName = session.getFileName();
+        levelMeter = null;
+
         mediaRecorder = new MediaRecorder();
         mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        mediaRecorder.setOutputFile(fileName);
-        mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
 
+        ParcelFileDescriptor liveReadSide = null;
         try {
+            if (live) {
+                ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+                liveReadSide = pipe[0];
+                liveWriteSide = pipe[1];
+
+                mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.AAC_ADTS);
+                mediaRecorder.setOutputFile(liveWriteSide.getFileDescriptor());
+            } else {
+                mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+                mediaRecorder.setOutputFile(fileName);
+            }
+            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+            if (encodingProfile != null) {
+                mediaRecorder.setAudioSamplingRate(encodingProfile.getSampleRate());
+                mediaRecorder.setAudioChannels(encodingProfile.getChannelCount());
+                mediaRecorder.setAudioEncodingBitRate(encodingProfile.getBitRate());
+            }
+
             mediaRecorder.prepare();
             mediaRecorder.start();
             isRecording = true;
+
+            if (live) {
+                liveFrames = ReplaySubject.create();
+                startLiveReader(liveReadSide, fileName, liveFrames);
+            }
+
             notifyRecordStarted();
             startRecordProgress();
+            startLevelMetering();
+            return session;
         } catch (IOException e) {
             ExceptionTracker.trackException(e);
             Log.e(TAG, "prepare() failed");
+
+            closeQuietly(liveReadSide);
+            closeLiveWriteSide();
+            session.onStopped(false);
+            return null;
+        }
+    }
+
+    private RecordingSession startPcmRecording() {
+        session = RecordingSession.create(pcmEncoder == PCM_ENCODER_WAV ? WAV_EXTENSION : ADTS_EXTENSION);
+        String fileName = session.getFileName();
+
+        PcmStage encoder;
+        if (pcmEncoder == PCM_ENCODER_WAV) {
+            encoder = new WavEncoderStage(new File(fileName));
+        } else {
+            int bitRate = encodingProfile != null ? encodingProfile.getBitRate() : AacEncoderStage.DEFAULT_BIT_RATE;
+            encoder = new AacEncoderStage(new File(fileName), bitRate);
+        }
+        if (encodingProfile != null) {
+            // captured at PCM_SAMPLE_RATE either way, so warm capture doesn't depend on the profile
+            encoder = new PcmPipeline(new Resampler(encodingProfile.getSampleRate(), encodingProfile.getChannelCount()), encoder);
+        }
+
+        PcmPipeline pipeline;
+        if (trimSilence) {
+            // the UI meters everything that is captured, the sidecar only what is kept
+            levelMeter = new LevelMeterStage(null);
+            silenceTrimmer = new SilenceTrimmer();
+            silenceTrimmer.setMaxPauseMillis(maxPauseMillis);
+            pipeline = new PcmPipeline(levelMeter, silenceTrimmer, new LevelMeterStage(PeakFile.forAudio(fileName)),
+                    new LoudnessMeter(Loudness.forAudio(fileName)), encoder);
+        } else {
+            levelMeter = new LevelMeterStage(PeakFile.forAudio(fileName));
+            silenceTrimmer = null;
+            pipeline = new PcmPipeline(levelMeter, new LoudnessMeter(Loudness.forAudio(fileName)), encoder);
+        }
+
+        RecordingSession recording = session;
+        try {
+            getCaptureEngine().start(pipeline, successful -> onPcmCaptureStopped(recording, successful));
+            isRecording = true;
+
+            notifyRecordStarted();
+            startRecordProgress();
+            startLevelMetering();
+            return recording;
+        } catch (IOException e) {
+            ExceptionTracker.trackException(e);
+            Log.e(TAG, "AudioRecord start failed");
+            recording.onStopped(false);
+            return null;
+        }
+    }
+
+    private PcmCaptureEngine getCaptureEngine() {
+        if (captureEngine == null) {
+            captureEngine = new PcmCaptureEngine(new PcmFormat(PCM_SAMPLE_RATE, 1));
+        }
+        return captureEngine;
+    }
+
+    /**
+     * Keeps the microphone open and the last {@link PcmCaptureEngine#PRE_ROLL_MILLIS} buffered, so the
+     * next recording starts with what was said just before the tap. Recordings use the PCM backend
+     * while warm. Call {@link #stopWarmCapture()} as soon as the recording screen is hidden.
+     *
+     * @return false if the microphone couldn't be opened
+     */
+    boolean startWarmCapture() {
+        try {
+            getCaptureEngine().startWarm();
+            return true;
+        } catch (IOException e) {
+            ExceptionTracker.trackException(e);
+            Log.e(TAG, "warm capture failed");
+            return false;
+        }
+    }
+
+    void stopWarmCapture() {
+        if (captureEngine != null) {
+            captureEngine.stopWarm();
+        }
+    }
+
+    private boolean isWarm() {
+        return captureEngine != null && captureEngine.isWarm();
+    }
+
+    private void onPcmCaptureStopped(RecordingSession recording, boolean successful) {
+        stopLevelMetering();
+        isRecording = false;
+        if (silenceTrimmer != null && !silenceTrimmer.hasSpeech()) {
+            successful = false; // nothing but silence, the file is empty
+        }
+        onRecordingStopped(recording, successful);
+    }
+
+    /**
+     * Splits what MediaRecorder writes into the pipe into ADTS frames, until the write side is closed.
+     */
+    private static void startLiveReader(ParcelFileDescriptor readSide, String outputFile, ReplaySubject<ByteBuffer> frames) {
+        new Thread(() -> {
+            InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(readSide);
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(outputFile);
+                AdtsFrameReader reader = new AdtsFrameReader(in);
+
+                ByteBuffer frame;
+                while ((frame = reader.readFrame()) != null) {
+                    out.write(frame.array(), 0, frame.limit());
+                    frames.onNext(frame);
+                }
+                out.close();
+                out = null;
+
+                frames.onCompleted();
+            } catch (IOException e) {
+                ExceptionTracker.trackException(e);
+                frames.onError(e);
+            } finally {
+                IOUtils.closeQuietly(in);
+                IOUtils.closeQuietly(out);
+            }
+        }, "AudioRecorder-live").start();
+    }
+
+    private void closeLiveWriteSide() {
+        closeQuietly(liveWriteSide); // the reader sees the end of the stream once MediaRecorder is released too
+        liveWriteSide = null;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor descriptor) {
+        if (descriptor == null) {
+            return;
+        }
+        try {
+            descriptor.close();
+        } catch (IOException ignored) {
         }
     }
 
     void stopRecording() {
-        if (mediaRecorder == null) {
+        if (mediaRecorder == null && (captureEngine == null || !captureEngine.isRecording())) {
             return;
         }
 
@@ -93,18 +352,32 @@ public class AudioRecorder {
     private Runnable stopRecordRunnable = new Runnable() {
         @Override
         public void run() {
+            if (captureEngine != null && captureEngine.isRecording()) {
+                // the engine drains and finalizes the file, then reports through onPcmCaptureStopped
+                captureEngine.stop();
+                stopRecordProgress();
+                return;
+            }
+
+            stopLevelMetering();
             try {
                 if (mediaRecorder != null) {
                     mediaRecorder.stop();
                     mediaRecorder.release();
                     mediaRecorder = null;
                 }
-                notifyRecordStopped(true);
+                closeLiveWriteSide();
+                onRecordingStopped(session, true);
                 stopRecordProgress();
             } catch (RuntimeException e) {
                 // meaning user just tapped on the recorder and released without passing even a second.Catch that and behave as nothing happened.
+                if (mediaRecorder != null) {
+                    mediaRecorder.release();
+                    mediaRecorder = null;
+                }
+                closeLiveWriteSide();
                 stopRecordProgress();
-                notifyRecordStopped(false);
+                onRecordingStopped(session, false);
             }
 
             isRecording = false;
@@ -115,6 +388,15 @@ public class AudioRecorder {
         if (recordListener != null) recordListener.onAudioRecordStarted();
     }
 
+    private void onRecordingStopped(RecordingSession recording, boolean success) {
+        if (success) {
+            FrameIndex.buildInBackground(recording.getFileName());
+            Loudness.analyzeInBackground(recording.getFileName()); // measured while recording with the PCM backend
+        }
+        recording.onStopped(success);
+        notifyRecordStopped(success);
+    }
+
     private void notifyRecordStopped(boolean success) {
         if (recordListener != null) recordListener.onAudioRecordStopped(success);
     }
@@ -128,49 +410,129 @@ public class AudioRecorder {
         this.recordListener = recordListener;
     }
 
+    public void setLevelListener(AudioLevelListener levelListener) {
+        this.levelListener = levelListener;
+    }
+
     public void setMaxDuration(@Duration int maxDuration) {
         this.maxDuration = maxDuration;
     }
 
+    /**
+     * Takes effect with the next recording. Live recordings always use MediaRecorder.
+     */
+    public void setBackend(@Backend int backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Drops leading and trailing silence from PCM backend recordings (and shortens pauses longer than
+     * {@code maxPauseMillis}) before they are encoded. A recording without speech is reported as not
+     * successfully stopped. Takes effect with the next recording.
+     */
+    public void setTrimSilence(boolean trimSilence, int maxPauseMillis) {
+        this.trimSilence = trimSilence;
+        this.maxPauseMillis = maxPauseMillis;
+    }
+
+    /**
+     * Sample rate, channels and bit rate of the next recordings, e.g. {@link EncodingProfile#VOICE};
+     * null for the defaults of the backend. The PCM backend always captures at 44.1 kHz and
+     * resamples to the profile before encoding.
+     */
+    public void setEncodingProfile(EncodingProfile encodingProfile) {
+        this.encodingProfile = encodingProfile;
+    }
+
+    /**
+     * Output of the {@link #BACKEND_PCM} backend: AAC in ADTS framing, or uncompressed WAV.
+     */
+    public void setPcmEncoder(@PcmEncoder int pcmEncoder) {
+        this.pcmEncoder = pcmEncoder;
+    }
+
     private void startRecordProgress() {
-        recordProgressSubscription = Observable
-                .interval(100, TimeUnit.MILLISECONDS)
-                .takeUntil(aLong -> aLong > maxDuration / 100)
-                .map(aLong1 -> {
-                    int time = aLong1.intValue() / 10;
-                    int maxTime = maxDuration / 1000;
-                    int[] result = new int[3];
-
-                    result[0] = time;
-                    result[1] = (maxTime - time);
-                    result[2] = (int) ((aLong1 * 10) / maxTime);
-
-                    return result;
-                })
-                .subscribeOn(Schedulers.computation())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Subscriber<int[]>() {
-                    @Override
-                    public void onCompleted() {
-                        stopRecording();
-                    }
-
-                    @Override
-                    public void onError(Throwable e) {
-                        e.printStackTrace();
-                        stopRecording();
-                    }
-
-                    @Override
-                    public void onNext(int[] ints) {
-                        notifyRecordProgress(ints[0], ints[1], ints[2]);
-                    }
-                });
+        recordStartTime = SystemClock.elapsedRealtime();
+        ProgressClock.getInstance().add(progressSession);
     }
 
     private void stopRecordProgress() {
-        if (recordProgressSubscription != null && !recordProgressSubscription.isUnsubscribed()) {
-            recordProgressSubscription.unsubscribe();
+        ProgressClock.getInstance().remove(progressSession);
+    }
+
+    private final ProgressClock.Session progressSession = this::onProgressTick;
+
+    private void onProgressTick() {
+        long elapsed = captureEngine != null && captureEngine.isRecording()
+                ? captureEngine.getRecordingMillis()
+                : SystemClock.elapsedRealtime() - recordStartTime;
+
+        progress.set(elapsed, maxDuration);
+        notifyRecordProgress(progress.getTimeElapsed(), progress.getTimeLeft(), progress.getPercent());
+
+        if (elapsed >= maxDuration) {
+            stopRecordProgress();
+            stopRecording();
+        }
+    }
+
+    /**
+     * @return the progress of the current recording, updated in place while recording
+     */
+    public AudioProgress getProgress() {
+        return progress;
+    }
+
+    private void startLevelMetering() {
+        levelMetering = true;
+        waveformPosition = 0;
+        Choreographer.getInstance().removeFrameCallback(levelFrameCallback);
+        Choreographer.getInstance().postFrameCallback(levelFrameCallback);
+    }
+
+    private void stopLevelMetering() {
+        levelMetering = false;
+        Choreographer.getInstance().removeFrameCallback(levelFrameCallback);
+    }
+
+    /**
+     * Runs once per display frame while recording, so levels are never delivered faster than they can be drawn.
+     */
+    private final Choreographer.FrameCallback levelFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!levelMetering) {
+                return;
+            }
+            dispatchLevel();
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    private void dispatchLevel() {
+        if (levelListener == null) {
+            return;
+        }
+
+        if (levelMeter != null) {
+            long peakCount = levelMeter.getPeakCount();
+            if (peakCount == waveformPosition) {
+                return; // nothing new since the last frame
+            }
+
+            long from = Math.max(waveformPosition, peakCount - WAVEFORM_CHUNK);
+            int count = levelMeter.copyPeaks(from, waveformChunk, 0, (int) (peakCount - from));
+            waveformPosition = peakCount;
+
+            levelListener.onAudioLevel(levelMeter.getRms(), levelMeter.getPeak());
+            levelListener.onWaveform(waveformChunk, 0, count);
+        } else if (mediaRecorder != null) {
+            try {
+                float peak = mediaRecorder.getMaxAmplitude() / (float) Short.MAX_VALUE; // max since the previous call
+                levelListener.onAudioLevel(-1, peak);
+            } catch (IllegalStateException ignored) {
+                // not started yet or already stopped
+            }
         }
     }
 
@@ -178,26 +540,43 @@ public class AudioRecorder {
         return isRecording;
     }
 
+    /**
+     * Deletes the last recording, see {@link RecordingSession#delete()}.
+     */
     boolean delete() {
-        File file = new File(fileName);
-        return file.delete();
+        return session != null && session.delete();
     }
 
+    /**
+     * Holds the whole encoded recording in memory, prefer {@link #writeBase64(OutputStream)}.
+     */
     String getBase64() throws IOException {
-        File file = new File(fileName);
-        if (!file.exists()) {
-            throw new FileNotFoundException("The audio file was not found");
-        }
+        File file = new File(getFileName());
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) (file.length() * 4 / 3 + file.length() / 57 + 4));
+        AudioUtils.writeBase64(file, out);
 
-        String rawBase64 = Base64.encodeToString(
-                FileUtils.readFileToByteArray(file),
-                Base64.DEFAULT);
+        return out.toString("US-ASCII"); // TODO may be will need to format it here and add metadata
+    }
 
-        return rawBase64; // TODO may be will need to format it here and add metadata
+    /**
+     * Streams the Base64 encoded recording into {@code out} using a fixed size buffer.
+     */
+    void writeBase64(OutputStream out) throws IOException {
+        AudioUtils.writeBase64(new File(getFileName()), out);
     }
 
+    /**
+     * @return the file of the current or the last recording, null before the first one
+     */
     public String getFileName() {
-        return fileName;
+        return session != null ? session.getFileName() : null;
+    }
+
+    /**
+     * @return the current or the last recording, null before the first one
+     */
+    public RecordingSession getSession() {
+        return session;
     }
 
     public interface AudioRecordListener {
@@ -207,4 +586,21 @@ public class AudioRecorder {
 
         void onAudioRecordProgress(int timeElapsed, int timeLeft, int percentPlayed);
     }
+
+    /**
+     * Called on the main thread, at most once per display frame while recording.
+     */
+    public interface AudioLevelListener {
+        /**
+         * @param rms  0..1 of full scale, -1 with the MediaRecorder backend where only the peak is known
+         * @param peak 0..1 of full scale
+         */
+        void onAudioLevel(float rms, float peak);
+
+        /**
+         * New waveform peaks (0..32767), {@link LevelMeterStage#PEAKS_PER_SECOND} per second of audio.
+         * The array is reused, copy what you keep. Not available with the MediaRecorder backend.
+         */
+        void onWaveform(short[] peaks, int offset, int count);
+    }
 }
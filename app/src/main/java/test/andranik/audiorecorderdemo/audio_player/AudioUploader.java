@@ -0,0 +1,548 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import rx.Observable;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
+
+/**
+ * Uploads files in chunks using the resumable upload protocol:
+ * <ol>
+ *     <li>POST to the endpoint with X-Upload-Content-Length, the session url comes back in Location</li>
+ *     <li>PUT chunks to the session url with "Content-Range: bytes start-end/total", answered with
+ *     308 and "Range: bytes=0-last" until the final chunk gets a 200/201</li>
+ *     <li>PUT with "Content-Range: bytes *&#47;total" and no body asks how much the server has</li>
+ * </ol>
+ * The session url and the confirmed offset are kept in a sidecar next to the file, so an
+ * interrupted upload continues where the server left off, even after a restart.
+ */
+public class AudioUploader {
+
+    public static final int UPLOAD_CHUNK_SIZE = 256 * 1024; // the protocol wants multiples of 256 KB
+    public static final int MAX_CHUNK_RETRIES = 3;
+
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_GONE = 410;
+
+    private static final String UPLOAD_STATE_SUFFIX = ".upload";
+
+    private static final MediaType CONTENT_TYPE = MediaType.parse("audio/mp4");
+
+    private final OkHttpClient client;
+
+    private final String endpoint;
+
+    private final Map<String, Subscription> uploads = new HashMap<>();
+
+    public AudioUploader(OkHttpClient client, String endpoint) {
+        this.client = client;
+        this.endpoint = endpoint;
+    }
+
+    public void startUpload(String path, AudioUploadListener listener) {
+        listener.onAudioUploadStarted(path);
+
+        Subscriber<UploadStatus> subscriber = new Subscriber<UploadStatus>() {
+            @Override
+            public void onCompleted() {
+                removeUpload(path, this);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                removeUpload(path, this);
+                listener.onAudioUploadFinished(path, false);
+                listener.onAudioUploadError(e);
+                ExceptionTracker.trackException(e);
+            }
+
+            @Override
+            public void onNext(UploadStatus uploadStatus) {
+                if (uploadStatus.isFinished()) {
+                    listener.onAudioUploadFinished(path, true);
+                    listener.onAudioUploadComplete(path, uploadStatus.getResponse());
+                } else {
+                    listener.onAudioUploadProgress(path, uploadStatus.getProgress());
+                }
+            }
+        };
+
+        Subscription previous;
+        synchronized (uploads) {
+            previous = uploads.put(path, subscriber);
+        }
+        if (previous != null) {
+            previous.unsubscribe();
+        }
+
+        getUploadObservable(path)
+                .onBackpressureBuffer()
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(subscriber);
+    }
+
+    /**
+     * Streams frames to {@code url} in a single chunked POST as they are produced, e.g. by
+     * {@link AudioRecorder#startLiveRecording()}, so that most of a recording has been sent by the
+     * time it stops. Not resumable: if it fails, upload the recorded file with {@link #startUpload}.
+     *
+     * @param path the file the frames are recorded to, reported to the listener
+     */
+    public void startLiveUpload(String path, String url, Observable<ByteBuffer> frames, AudioUploadListener listener) {
+        listener.onAudioUploadStarted(path);
+
+        Subscriber<String> subscriber = new Subscriber<String>() {
+            @Override
+            public void onCompleted() {
+                removeUpload(path, this);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                removeUpload(path, this);
+                listener.onAudioUploadFinished(path, false);
+                listener.onAudioUploadError(e);
+                ExceptionTracker.trackException(e);
+            }
+
+            @Override
+            public void onNext(String response) {
+                listener.onAudioUploadFinished(path, true);
+                listener.onAudioUploadComplete(path, response);
+            }
+        };
+
+        Subscription previous;
+        synchronized (uploads) {
+            previous = uploads.put(path, subscriber);
+        }
+        if (previous != null) {
+            previous.unsubscribe();
+        }
+
+        Observable.<String>create(s -> {
+            Request request = new Request.Builder()
+                    .url(url)
+                    .post(new LiveRequestBody(frames))
+                    .build();
+
+            Response response = null;
+            try {
+                response = client.newCall(request).execute();
+                if (!response.isSuccessful()) {
+                    throw new UploadStatusException(response.code(), url);
+                }
+                s.onNext(response.body().string());
+                s.onCompleted();
+            } catch (IOException e) {
+                s.onError(e);
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+        })
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(subscriber);
+    }
+
+    /**
+     * Stops the upload after the current chunk. It continues from there on the next {@link #startUpload}.
+     */
+    public void cancelUpload(String path) {
+        Subscription subscription;
+        synchronized (uploads) {
+            subscription = uploads.remove(path);
+        }
+        if (subscription != null) {
+            subscription.unsubscribe();
+        }
+    }
+
+    /**
+     * Forgets the upload session of the file, the next upload starts from scratch.
+     */
+    public static void discardUploadState(String path) {
+        new File(path + UPLOAD_STATE_SUFFIX).delete();
+    }
+
+    private void removeUpload(String path, Subscription subscription) {
+        synchronized (uploads) {
+            if (uploads.get(path) == subscription) {
+                uploads.remove(path);
+            }
+        }
+    }
+
+    private Observable<UploadStatus> getUploadObservable(String path) {
+        return Observable.create(subscriber -> {
+            try {
+                File file = new File(path);
+                if (!file.exists()) {
+                    throw new IOException("The audio file was not found");
+                }
+
+                UploadState state = UploadState.load(file, endpoint);
+                long total = file.length();
+                ByteBuffer mapping = AudioUtils.map(file, 0, total); // sliced for every chunk attempt
+                long offset = -1; // no session yet
+                boolean offsetKnown = state.sessionUrl == null;
+
+                int retries = 0;
+                int lastUpdatedProgress = -1;
+                while (!subscriber.isUnsubscribed()) {
+                    ChunkResult result;
+                    try {
+                        if (!offsetKnown) {
+                            offset = queryOffset(state, total);
+                            offsetKnown = true;
+                        }
+                        if (offset < 0) {
+                            state.sessionUrl = createSession(total);
+                            offset = 0;
+                            state.offset = 0;
+                            state.save();
+                        }
+
+                        int progress = total == 0 ? 100 : (int) ((offset * 100) / total);
+                        if (progress > lastUpdatedProgress) {
+                            lastUpdatedProgress = progress;
+                            subscriber.onNext(UploadStatus.create(progress));
+                        }
+
+                        result = uploadChunk(state, mapping, offset, total);
+                        retries = 0;
+                    } catch (IOException e) {
+                        if (e instanceof UploadStatusException && ((UploadStatusException) e).getCode() < 500) {
+                            throw e;
+                        }
+                        if (++retries > MAX_CHUNK_RETRIES) {
+                            throw e;
+                        }
+
+                        Thread.sleep(RETRY_BACKOFF_MILLIS << (retries - 1));
+                        offsetKnown = state.sessionUrl == null; // the chunk may have partly arrived, ask the server
+                        continue;
+                    }
+
+                    if (result.completed) {
+                        state.delete();
+                        subscriber.onNext(UploadStatus.create(result.response));
+                        subscriber.onCompleted();
+                        return;
+                    }
+
+                    offset = result.offset;
+                    state.offset = offset;
+                    state.save();
+                }
+            } catch (IOException e) {
+                subscriber.onError(e);
+            } catch (InterruptedException e) {
+                subscriber.onError(e);
+            }
+        });
+    }
+
+    private String createSession(long total) throws IOException {
+        Request request = new Request.Builder()
+                .url(endpoint)
+                .header("X-Upload-Content-Type", CONTENT_TYPE.toString())
+                .header("X-Upload-Content-Length", String.valueOf(total))
+                .post(RequestBody.create(null, new byte[0]))
+                .build();
+
+        Response response = client.newCall(request).execute();
+        try {
+            String location = response.header("Location");
+            if (!response.isSuccessful() || location == null) {
+                throw new UploadStatusException(response.code(), endpoint);
+            }
+            return response.request().url().resolve(location).toString();
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * @return the offset the server expects next, or -1 if the session is gone
+     */
+    private long queryOffset(UploadState state, long total) throws IOException {
+        Request request = new Request.Builder()
+                .url(state.sessionUrl)
+                .header("Content-Range", "bytes */" + total)
+                .put(RequestBody.create(null, new byte[0]))
+                .build();
+
+        Response response = client.newCall(request).execute();
+        try {
+            if (response.code() == HTTP_NOT_FOUND || response.code() == HTTP_GONE) {
+                return -1;
+            }
+            if (response.isSuccessful()) {
+                return total; // already complete, the next chunk request returns the final response
+            }
+            if (response.code() != HTTP_RESUME_INCOMPLETE) {
+                throw new UploadStatusException(response.code(), state.sessionUrl);
+            }
+            return parseNextOffset(response);
+        } finally {
+            response.close();
+        }
+    }
+
+    private ChunkResult uploadChunk(UploadState state, ByteBuffer mapping, long offset, long total) throws IOException {
+        long length = Math.min(UPLOAD_CHUNK_SIZE, total - offset);
+        ByteBuffer chunk = mapping.duplicate();
+        chunk.position((int) offset);
+        chunk.limit((int) (offset + length));
+
+        String contentRange = length > 0
+                ? "bytes " + offset + "-" + (offset + length - 1) + "/" + total
+                : "bytes */" + total;
+
+        Request request = new Request.Builder()
+                .url(state.sessionUrl)
+                .header("Content-Range", contentRange)
+                .put(new MappedRequestBody(chunk, CONTENT_TYPE))
+                .build();
+
+        Response response = client.newCall(request).execute();
+        try {
+            ChunkResult result = new ChunkResult();
+            if (response.isSuccessful()) {
+                result.completed = true;
+                result.response = response.body().string();
+            } else if (response.code() == HTTP_RESUME_INCOMPLETE) {
+                result.offset = parseNextOffset(response);
+            } else if (response.code() == HTTP_NOT_FOUND || response.code() == HTTP_GONE) {
+                result.offset = -1; // the session expired, start a new one
+            } else {
+                throw new UploadStatusException(response.code(), state.sessionUrl);
+            }
+            return result;
+        } finally {
+            response.close();
+        }
+    }
+
+    static class UploadStatusException extends IOException {
+        private final int code;
+
+        UploadStatusException(int code, String url) {
+            super("Unexpected response code " + code + " for " + url);
+            this.code = code;
+        }
+
+        int getCode() {
+            return code;
+        }
+    }
+
+    private static long parseNextOffset(Response response) {
+        String range = response.header("Range"); // bytes=0-262143
+        if (range == null) {
+            return 0;
+        }
+
+        int dash = range.lastIndexOf('-');
+        try {
+            return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the frames while they arrive, flushing every {@link #FLUSH_SIZE} bytes so that
+     * they go out as HTTP chunks instead of waiting for the end of the recording.
+     */
+    private static class LiveRequestBody extends RequestBody {
+        private static final MediaType LIVE_CONTENT_TYPE = MediaType.parse("audio/aac");
+        private static final long FLUSH_SIZE = 2 * 1024;
+
+        private final Observable<ByteBuffer> frames;
+
+        private LiveRequestBody(Observable<ByteBuffer> frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return LIVE_CONTENT_TYPE;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            try {
+                for (ByteBuffer frame : frames.toBlocking().toIterable()) {
+                    sink.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    if (sink.buffer().size() >= FLUSH_SIZE) {
+                        sink.flush();
+                    }
+                }
+            } catch (RuntimeException e) {
+                // toIterable() rethrows the recorder's IOException wrapped
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+            sink.flush();
+        }
+    }
+
+    private static class ChunkResult {
+        private boolean completed;
+        private long offset;
+        private String response;
+    }
+
+    private static class UploadState {
+        private static final String KEY_ENDPOINT = "endpoint";
+        private static final String KEY_SESSION_URL = "sessionUrl";
+        private static final String KEY_OFFSET = "offset";
+        private static final String KEY_FILE_LENGTH = "fileLength";
+        private static final String KEY_FILE_LAST_MODIFIED = "fileLastModified";
+
+        private File stateFile;
+        private File file;
+        private String endpoint;
+        private String sessionUrl;
+        private long offset;
+
+        static UploadState load(File file, String endpoint) {
+            UploadState state = new UploadState();
+            state.stateFile = new File(file.getPath() + UPLOAD_STATE_SUFFIX);
+            state.file = file;
+            state.endpoint = endpoint;
+
+            if (!state.stateFile.exists()) {
+                return state;
+            }
+
+            Properties properties = new Properties();
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(state.stateFile);
+                properties.load(in);
+
+                boolean sameUpload = endpoint.equals(properties.getProperty(KEY_ENDPOINT))
+                        && String.valueOf(file.length()).equals(properties.getProperty(KEY_FILE_LENGTH))
+                        && String.valueOf(file.lastModified()).equals(properties.getProperty(KEY_FILE_LAST_MODIFIED));
+                if (sameUpload) {
+                    state.sessionUrl = properties.getProperty(KEY_SESSION_URL);
+                    state.offset = Long.parseLong(properties.getProperty(KEY_OFFSET, "0"));
+                }
+            } catch (IOException | NumberFormatException e) {
+                state.sessionUrl = null;
+                state.offset = 0;
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            return state;
+        }
+
+        void save() throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty(KEY_ENDPOINT, endpoint);
+            properties.setProperty(KEY_SESSION_URL, sessionUrl);
+            properties.setProperty(KEY_OFFSET, String.valueOf(offset));
+            properties.setProperty(KEY_FILE_LENGTH, String.valueOf(file.length()));
+            properties.setProperty(KEY_FILE_LAST_MODIFIED, String.valueOf(file.lastModified()));
+
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(stateFile);
+                properties.store(out, null);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+        }
+
+        void delete() {
+            stateFile.delete();
+        }
+    }
+
+    private static class UploadStatus {
+        private int progress;
+        private boolean finished;
+        private String response;
+
+        public static UploadStatus create(int progress) {
+            UploadStatus status = new UploadStatus();
+            status.setProgress(progress);
+            return status;
+        }
+
+        public static UploadStatus create(String response) {
+            UploadStatus status = new UploadStatus();
+            status.setProgress(100);
+            status.setFinished(true);
+            status.setResponse(response);
+            return status;
+        }
+
+        public int getProgress() {
+            return progress;
+        }
+
+        public void setProgress(int progress) {
+            this.progress = progress;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        public void setFinished(boolean finished) {
+            this.finished = finished;
+        }
+
+        public String getResponse() {
+            return response;
+        }
+
+        public void setResponse(String response) {
+            this.response = response;
+        }
+    }
+
+    public interface AudioUploadListener {
+        void onAudioUploadStarted(String path);
+        void onAudioUploadFinished(String path, boolean successful);
+        void onAudioUploadProgress(String path, int percentUploaded);
+        void onAudioUploadError(Throwable e);
+        void onAudioUploadComplete(String path, String response);
+    }
+}
@@ -5,72 +5,246 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Environment;
 import android.support.v4.app.ActivityCompat;
-import android.util.Log;
-
-import org.apache.commons.io.FilenameUtils;
+import android.util.Base64;
+import android.util.Base64OutputStream;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
 
 /**
  * Created by andranik on 7/11/16.
  */
 public class AudioUtils {
 
-    private static final long DAY_MILIS = 86400000;
-
     private static final String APP_DIR_NAME = "AudioDemo";
     private static final String AUDIO_FILES_DIR = "audio";
 
-    public static String getAudioDirPath() {
-        String dirPath = String.format("%s/%s/%s",
-                Environment.getExternalStorageDirectory().getAbsolutePath(),
-                APP_DIR_NAME,
-                AUDIO_FILES_DIR);
+    private static final int BASE64_CHUNK_SIZE = 3 * 1024; // a multiple of 3, so chunks encode without padding
 
-        File dir = new File(dirPath);
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    private static final String PARTIAL_META_SUFFIX = ".part.meta";
 
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
+    private static final int CLEANUP_BATCH_SIZE = 32; // files handled per step of cleanUp()
 
+    private static volatile String audioDirPath;
+
+    private static volatile boolean audioDirCreated;
+
+    /**
+     * Resolved once and without touching the disk; writers call {@link #ensureAudioDir()} first.
+     */
+    public static String getAudioDirPath() {
+        String dirPath = audioDirPath;
+        if (dirPath == null) {
+            dirPath = Environment.getExternalStorageDirectory().getAbsolutePath() + '/' + APP_DIR_NAME + '/' + AUDIO_FILES_DIR;
+            audioDirPath = dirPath;
+        }
         return dirPath;
     }
 
+    /**
+     * Creates the audio directory if needed, checking the disk only until it exists. Call it off the
+     * main thread before writing into the directory.
+     */
+    static void ensureAudioDir() {
+        if (!audioDirCreated) {
+            File dir = new File(getAudioDirPath());
+            audioDirCreated = dir.isDirectory() || dir.mkdirs();
+        }
+    }
+
+    /**
+     * @return where the clip of {@code url} is (or will be) cached, following content aliases once
+     * the cache index is loaded, see {@link AudioCache#resolve(String)}
+     */
     public static String getAudioFilePath(String url) {
-        return String.format("%s/%s", getAudioDirPath(), getFileNameFromUri(url));
+        return getAudioDirPath() + '/' + getCache().resolve(getFileNameFromUri(url));
+    }
+
+    public static String getPartialFilePath(String url) {
+        return getAudioDirPath() + '/' + getFileNameFromUri(url) + PARTIAL_FILE_SUFFIX;
+    }
+
+    public static String getPartialMetaPath(String url) {
+        return getAudioDirPath() + '/' + getFileNameFromUri(url) + PARTIAL_META_SUFFIX;
+    }
+
+    private static AudioCache cache;
+
+    private static volatile boolean contentDedupe;
+
+    public static synchronized AudioCache getCache() {
+        if (cache == null) {
+            cache = new AudioCache(new File(getAudioDirPath()), AudioCache.DEFAULT_MAX_SIZE);
+            cache.initializeInBackground();
+        }
+        return cache;
+    }
+
+    private static WaveformIndex waveformIndex;
+
+    public static synchronized WaveformIndex getWaveformIndex() {
+        if (waveformIndex == null) {
+            waveformIndex = new WaveformIndex();
+        }
+        return waveformIndex;
+    }
+
+    private static Transcoder transcoder;
+
+    public static synchronized Transcoder getTranscoder() {
+        if (transcoder == null) {
+            transcoder = new Transcoder();
+        }
+        return transcoder;
     }
 
+    /**
+     * @param maxSize byte budget of the downloaded files, the least recently played ones are evicted first
+     */
+    public static void setCacheMaxSize(long maxSize) {
+        getCache().setMaxSize(maxSize);
+    }
+
+    /**
+     * Looks the url up in the cache index, which is read from disk on the first call; prefer
+     * {@link #isCached(String)} on the main thread.
+     */
     public static boolean checkIfFileExists(String url) {
-        File file = new File(getAudioFilePath(url));
+        return getCache().contains(getFileNameFromUri(url));
+    }
 
-        return file.exists();
+    /**
+     * Same as {@link #checkIfFileExists(String)}, answered right away once the cache index is loaded
+     * and on the main thread after loading it in the background otherwise.
+     */
+    public static Observable<Boolean> isCached(String url) {
+        AudioCache cache = getCache();
+        if (cache.isInitialized()) {
+            return Observable.just(cache.contains(getFileNameFromUri(url)));
+        }
+
+        return Observable.fromCallable(() -> cache.contains(getFileNameFromUri(url)))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * When enabled, downloaded files are stored under the hash of their content, so the same
+     * clip served from several urls is kept only once.
+     */
+    public static void setContentDedupe(boolean enabled) {
+        contentDedupe = enabled;
+    }
+
+    /**
+     * Registers a file downloaded to the path of {@code url}'s key. Runs on the download thread.
+     *
+     * @return the final path of the file
+     */
+    static String onFileCached(String url) throws IOException {
+        String key = getFileNameFromUri(url);
+        if (contentDedupe) {
+            key = getCache().putDeduplicated(key);
+        } else {
+            getCache().put(key);
+        }
+        return getAudioDirPath() + '/' + key;
     }
 
+    /**
+     * @return the cache key of {@code url}, a hash of the normalized url
+     */
     public static String getFileNameFromUri(String url) {
-        return FilenameUtils.getBaseName(url);
+        return CacheKey.forUrl(url);
     }
 
+    /**
+     * Starts {@link #cleanUp(Context)} in the background, safe to call from the main thread at startup.
+     */
     public static void makeCleanUp(Context context) {
+        cleanUp(context).subscribe(deleted -> {
+        }, ExceptionTracker::trackException);
+    }
+
+    /**
+     * Loads the cache index, evicts the least recently played files until the cache fits its byte
+     * budget, then deletes what no cache entry accounts for (sidecars of evicted clips, abandoned
+     * partial downloads, temporary files). Runs on the io scheduler in steps of a few files, so the
+     * cache lock is never held for long.
+     *
+     * @return the number of entries evicted and files deleted, on the main thread
+     */
+    public static Observable<Integer> cleanUp(Context context) {
         if (ActivityCompat.checkSelfPermission(context, Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED
                 || ActivityCompat.checkSelfPermission(context, Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
-            return;
+            return Observable.just(0);
+        }
+
+        AudioCache cache = getCache();
+        Observable<Integer> evictions = Observable.fromCallable(() -> cache.trimToSize(CLEANUP_BATCH_SIZE)) // loads the journal first
+                .repeat()
+                .takeUntil(evicted -> evicted < CLEANUP_BATCH_SIZE);
+
+        Observable<Integer> orphans = Observable.fromCallable(() -> cache.getDirectory().list())
+                .flatMap(names -> names != null ? Observable.from(Arrays.asList(names)) : Observable.<String>empty())
+                .buffer(CLEANUP_BATCH_SIZE)
+                .map(cache::deleteOrphans);
+
+        return evictions.concatWith(orphans)
+                .reduce(0, (total, count) -> total + count)
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * Base64 encodes the file into {@code out} (with {@link Base64#DEFAULT} flags) taking it from a
+     * memory mapping in {@link #BASE64_CHUNK_SIZE} chunks, so memory use doesn't depend on the file size.
+     *
+     * @param out left open
+     */
+    public static void writeBase64(File file, OutputStream out) throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException("The audio file was not found");
+        }
+
+        ByteBuffer source = map(file, 0, file.length());
+        Base64OutputStream base64 = new Base64OutputStream(out, Base64.DEFAULT | Base64.NO_CLOSE);
+        byte[] buffer = new byte[BASE64_CHUNK_SIZE];
+        while (source.hasRemaining()) {
+            int count = Math.min(buffer.length, source.remaining());
+            source.get(buffer, 0, count);
+            base64.write(buffer, 0, count);
         }
+        base64.close(); // writes the padding, out stays open
+    }
 
-        String dirPath = getAudioDirPath();
-        File dir = new File(dirPath);
-        File[] files = dir.listFiles();
-        if (files.length <= 0) {
-            Log.d("time", "no files to delete...");
-            return;
+    /**
+     * Maps {@code length} bytes of the file from {@code offset} read-only. The mapping stays valid
+     * after the file is closed, renamed or deleted, and is released when the buffer is collected.
+     */
+    static MappedByteBuffer map(File file, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to map");
         }
-        for (File file : files) {
-            Log.d("time", "file - " + file.getName());
-
-            long diff = System.currentTimeMillis() - file.lastModified();
-            if (diff > DAY_MILIS) {
-                Log.d("time", "difference" + diff);
-                file.delete();
-            }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } finally {
+            randomAccessFile.close();
         }
     }
 
@@ -0,0 +1,37 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.File;
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Uploads a file as Base64 text, encoding it chunk by chunk while the request is written.
+ */
+public class Base64RequestBody extends RequestBody {
+
+    private static final MediaType MEDIA_TYPE = MediaType.parse("text/plain; charset=US-ASCII");
+
+    private final File file;
+
+    public Base64RequestBody(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return -1; // sent chunked, the encoder doesn't know the line breaks in advance
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        AudioUtils.writeBase64(file, sink.outputStream());
+    }
+}
@@ -0,0 +1,120 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Cache file names: 16 hex chars for a url, 32 hex chars for the content of a file,
+ * so the two can never collide.
+ */
+final class CacheKey {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int CONTENT_KEY_BYTES = 16;
+
+    private CacheKey() {
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the normalized url, computed in one pass without building the
+     * normalized string: scheme and host are lower-cased, the default port and the fragment are
+     * dropped, an empty path becomes "/". The query string is kept, so versioned urls get new keys.
+     */
+    static String forUrl(String url) {
+        int end = url.indexOf('#');
+        if (end < 0) {
+            end = url.length();
+        }
+
+        int schemeEnd = url.indexOf("://");
+        int authorityStart = schemeEnd < 0 ? 0 : schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < end && url.charAt(authorityEnd) != '/' && url.charAt(authorityEnd) != '?') {
+            authorityEnd++;
+        }
+
+        int hostEnd = authorityEnd;
+        if (isDefaultPort(url, schemeEnd, authorityStart, authorityEnd)) {
+            hostEnd = url.lastIndexOf(':', authorityEnd - 1);
+        }
+
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < hostEnd; i++) {
+            hash = (hash ^ Character.toLowerCase(url.charAt(i))) * FNV_PRIME;
+        }
+        if (schemeEnd >= 0 && (authorityEnd == end || url.charAt(authorityEnd) == '?')) {
+            hash = (hash ^ '/') * FNV_PRIME;
+        }
+        for (int i = authorityEnd; i < end; i++) {
+            hash = (hash ^ url.charAt(i)) * FNV_PRIME;
+        }
+
+        char[] chars = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = HEX[(int) (hash & 0xf)];
+            hash >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Hash of the file content, used to store identical clips served from different urls once.
+     */
+    static String forContent(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        digest.update(AudioUtils.map(file, 0, file.length())); // hashed from the page cache, no read buffer
+
+        byte[] bytes = digest.digest();
+        char[] chars = new char[CONTENT_KEY_BYTES * 2];
+        for (int i = 0; i < CONTENT_KEY_BYTES; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return whether {@code name} is a key produced by {@link #forUrl(String)} or {@link #forContent(File)}
+     */
+    static boolean isKey(String name) {
+        if (name.length() != 16 && name.length() != CONTENT_KEY_BYTES * 2) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDefaultPort(String url, int schemeEnd, int authorityStart, int authorityEnd) {
+        if (schemeEnd < 0) {
+            return false;
+        }
+        if (schemeEnd == 4 && url.regionMatches(true, 0, "http", 0, 4)) {
+            return endsWith(url, authorityStart, authorityEnd, ":80");
+        }
+        if (schemeEnd == 5 && url.regionMatches(true, 0, "https", 0, 5)) {
+            return endsWith(url, authorityStart, authorityEnd, ":443");
+        }
+        return false;
+    }
+
+    private static boolean endsWith(String url, int start, int end, String suffix) {
+        return end - start > suffix.length() && url.regionMatches(end - suffix.length(), suffix, 0, suffix.length());
+    }
+}
@@ -0,0 +1,30 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Allows prefetching while connected, optionally only on unmetered networks.
+ */
+public class ConnectivityNetworkPolicy implements NetworkPolicy {
+
+    private final ConnectivityManager connectivityManager;
+
+    private final boolean pauseOnMetered;
+
+    public ConnectivityNetworkPolicy(Context context, boolean pauseOnMetered) {
+        this.connectivityManager = (ConnectivityManager) context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.pauseOnMetered = pauseOnMetered;
+    }
+
+    @Override
+    public boolean isPrefetchAllowed() {
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return false;
+        }
+
+        return !pauseOnMetered || !connectivityManager.isActiveNetworkMetered();
+    }
+}
@@ -0,0 +1,205 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import rx.Subscription;
+
+/**
+ * Merges requests for the same url into one {@link DownloadTask} and runs at most
+ * {@code maxConcurrent} tasks at a time, higher priority first, then in request order.
+ * <p>
+ * Prefetches queue behind every other request and start one at a time, only while nothing
+ * else is running and the {@link PrefetchGate} lets them.
+ * <p>
+ * A cancelled task keeps its slot and its url until its workers have returned, so that a new
+ * request for the url never writes the ".part" file together with the old one.
+ */
+class DownloadScheduler {
+
+    interface TaskExecutor {
+        Subscription execute(DownloadTask task);
+    }
+
+    interface PrefetchGate {
+        boolean canStartPrefetch();
+    }
+
+    private final TaskExecutor executor;
+
+    private final Map<String, DownloadTask> tasks = new HashMap<>();
+
+    private final Set<String> stopping = new HashSet<>(); // urls of cancelled tasks whose workers still run
+
+    private final PriorityQueue<DownloadTask> pending = new PriorityQueue<>(11, (first, second) -> {
+        if (first.isPrefetch() != second.isPrefetch()) {
+            return first.isPrefetch() ? 1 : -1;
+        }
+        if (first.getPriority() != second.getPriority()) {
+            return first.getPriority() > second.getPriority() ? -1 : 1;
+        }
+        return first.getSequence() < second.getSequence() ? -1 : (first.getSequence() == second.getSequence() ? 0 : 1);
+    });
+
+    private PrefetchGate prefetchGate;
+
+    private int maxConcurrent;
+    private int maxConcurrentPrefetches = 1;
+    private int running;
+    private int runningPrefetches;
+    private long sequence;
+
+    DownloadScheduler(TaskExecutor executor, int maxConcurrent) {
+        this.executor = executor;
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    synchronized void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        promote();
+    }
+
+    synchronized void setPrefetchGate(PrefetchGate prefetchGate) {
+        this.prefetchGate = prefetchGate;
+    }
+
+    synchronized void setMaxConcurrentPrefetches(int maxConcurrentPrefetches) {
+        this.maxConcurrentPrefetches = Math.max(0, maxConcurrentPrefetches);
+        promote();
+    }
+
+    synchronized void enqueue(String url, AudioDownloader.AudioDownloadListener listener, int priority, boolean prefetch) {
+        DownloadTask task = tasks.get(url);
+        if (task != null) {
+            task.addListener(listener);
+
+            boolean promoted = task.isPrefetch() && !prefetch;
+            if (promoted || (task.isPrefetch() == prefetch && priority > task.getPriority())) {
+                boolean queued = pending.remove(task); // re-insert so the queue sees the new priority
+                task.setPriority(priority);
+                task.setPrefetch(prefetch);
+                if (queued) {
+                    pending.add(task);
+                }
+            }
+            if (promoted && task.isStartedAsPrefetch()) {
+                // already running, from now on as a download someone is waiting for
+                task.setStartedAsPrefetch(false);
+                runningPrefetches--;
+            }
+            return;
+        }
+
+        task = new DownloadTask(url, priority, prefetch, sequence++);
+        task.addListener(listener);
+        tasks.put(url, task);
+        pending.add(task);
+
+        promote();
+    }
+
+    /**
+     * Detaches the listener; the fetch is cancelled when it was the last one.
+     */
+    synchronized void cancel(String url, AudioDownloader.AudioDownloadListener listener) {
+        DownloadTask task = tasks.get(url);
+        if (task == null || task.removeListener(listener)) {
+            return;
+        }
+
+        tasks.remove(url);
+        if (task.isRunning()) {
+            if (task.cancel(() -> onWorkersExited(task))) {
+                onTaskStopped(task);
+            } else {
+                stopping.add(url);
+            }
+        } else {
+            pending.remove(task);
+        }
+
+        promote();
+    }
+
+    synchronized void onTaskFinished(DownloadTask task) {
+        if (tasks.get(task.getUrl()) != task) {
+            return; // already cancelled
+        }
+
+        tasks.remove(task.getUrl());
+        onTaskStopped(task);
+
+        promote();
+    }
+
+    private synchronized void onWorkersExited(DownloadTask task) {
+        stopping.remove(task.getUrl());
+        onTaskStopped(task);
+
+        promote();
+    }
+
+    /**
+     * Gives queued prefetches another chance to start, e.g. after the network changed.
+     */
+    synchronized void promotePending() {
+        promote();
+    }
+
+    private boolean canStartPrefetch() {
+        if (running > runningPrefetches || runningPrefetches >= maxConcurrentPrefetches) {
+            return false; // never compete with downloads someone is waiting for
+        }
+        return prefetchGate == null || prefetchGate.canStartPrefetch();
+    }
+
+    synchronized boolean isScheduled(String url) {
+        return tasks.containsKey(url);
+    }
+
+    private void onTaskStopped(DownloadTask task) {
+        running--;
+        if (task.isStartedAsPrefetch()) {
+            runningPrefetches--;
+        }
+    }
+
+    private void promote() {
+        List<DownloadTask> waiting = null; // for the previous task of their url to stop
+        while (running < maxConcurrent && !pending.isEmpty()) {
+            DownloadTask task = pending.peek();
+            if (task.isPrefetch() && !canStartPrefetch()) {
+                break; // everything left in the queue is a prefetch
+            }
+
+            pending.poll();
+            if (stopping.contains(task.getUrl())) {
+                if (waiting == null) {
+                    waiting = new ArrayList<>();
+                }
+                waiting.add(task);
+                continue;
+            }
+
+            running++;
+            if (task.isPrefetch()) {
+                task.setStartedAsPrefetch(true);
+                runningPrefetches++;
+            }
+
+            Subscription subscription = executor.execute(task);
+            if (tasks.get(task.getUrl()) == task) {
+                task.setSubscription(subscription);
+            }
+        }
+
+        if (waiting != null) {
+            pending.addAll(waiting);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import rx.Observable;
+import rx.Subscription;
+
+/**
+ * One in-flight fetch of a url, shared by every listener that asked for it.
+ */
+class DownloadTask implements AudioDownloader.AudioDownloadListener {
+
+    private final String url;
+    private final long sequence;
+    private final List<AudioDownloader.AudioDownloadListener> listeners = new ArrayList<>();
+
+    private int priority;
+    private boolean prefetch;
+    private boolean startedAsPrefetch;
+    private Subscription subscription;
+
+    private int workers; // threads inside asWorker(), i.e. possibly writing the ".part" file
+    private boolean cancelled;
+    private Runnable onWorkersExited;
+
+    DownloadTask(String url, int priority, boolean prefetch, long sequence) {
+        this.url = url;
+        this.priority = priority;
+        this.prefetch = prefetch;
+        this.sequence = sequence;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return true while only prefetches asked for this url; the priority then only ranks it among other prefetches
+     */
+    boolean isPrefetch() {
+        return prefetch;
+    }
+
+    void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    boolean isStartedAsPrefetch() {
+        return startedAsPrefetch;
+    }
+
+    void setStartedAsPrefetch(boolean startedAsPrefetch) {
+        this.startedAsPrefetch = startedAsPrefetch;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    boolean isRunning() {
+        return subscription != null;
+    }
+
+    void setSubscription(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    /**
+     * Unsubscribes, which cancels the HTTP calls, and keeps workers that haven't started from
+     * touching the files.
+     *
+     * @param onWorkersExited run on the thread of the last worker to return, if some are still running
+     * @return true if no worker is running anymore
+     */
+    boolean cancel(Runnable onWorkersExited) {
+        if (subscription != null && !subscription.isUnsubscribed()) {
+            subscription.unsubscribe();
+        }
+
+        synchronized (this) {
+            cancelled = true;
+            if (workers == 0) {
+                return true;
+            }
+            this.onWorkersExited = onWorkersExited;
+            return false;
+        }
+    }
+
+    /**
+     * Subscribes to {@code work} as a worker of this task, or not at all once the task is cancelled.
+     * {@code work} has to do its blocking part while being subscribed to, so that the task knows when
+     * it no longer touches the files of the url.
+     */
+    <T> Observable<T> asWorker(Observable<T> work) {
+        return Observable.create(subscriber -> {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                workers++;
+            }
+
+            try {
+                work.unsafeSubscribe(subscriber);
+            } finally {
+                Runnable exited;
+                synchronized (this) {
+                    workers--;
+                    exited = workers == 0 ? onWorkersExited : null;
+                    if (exited != null) {
+                        onWorkersExited = null;
+                    }
+                }
+                if (exited != null) {
+                    exited.run();
+                }
+            }
+        });
+    }
+
+    synchronized void addListener(AudioDownloader.AudioDownloadListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    synchronized boolean removeListener(AudioDownloader.AudioDownloadListener listener) {
+        listeners.remove(listener);
+        return !listeners.isEmpty();
+    }
+
+    private synchronized AudioDownloader.AudioDownloadListener[] getListeners() {
+        return listeners.toArray(new AudioDownloader.AudioDownloadListener[listeners.size()]);
+    }
+
+    @Override
+    public void onAudioDownloadStarted(String path) {
+        for (AudioDownloader.AudioDownloadListener listener : getListeners()) {
+            listener.onAudioDownloadStarted(path);
+        }
+    }
+
+    @Override
+    public void onAudioDownloadFinished(String path, boolean successful) {
+        for (AudioDownloader.AudioDownloadListener listener : getListeners()) {
+            listener.onAudioDownloadFinished(path, successful);
+        }
+    }
+
+    @Override
+    public void onAudioDownloadProgress(String path, int percentPlayed) {
+        for (AudioDownloader.AudioDownloadListener listener : getListeners()) {
+            listener.onAudioDownloadProgress(path, percentPlayed);
+        }
+    }
+
+    @Override
+    public void onAudioDownloadError(Throwable e) {
+        for (AudioDownloader.AudioDownloadListener listener : getListeners()) {
+            listener.onAudioDownloadError(e);
+        }
+    }
+
+    @Override
+    public void onAudioDownloadComplete(String url) {
+        for (AudioDownloader.AudioDownloadListener listener : getListeners()) {
+            listener.onAudioDownloadComplete(url);
+        }
+    }
+}
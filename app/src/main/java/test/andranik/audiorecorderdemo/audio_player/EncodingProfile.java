@@ -0,0 +1,45 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+/**
+ * Sample rate, channel count and AAC bit rate that recordings are encoded with, see
+ * {@link AudioRecorder#setEncodingProfile(EncodingProfile)} and {@link Transcoder}.
+ */
+public class EncodingProfile {
+
+    /**
+     * What the PCM backend recorded before profiles existed.
+     */
+    public static final EncodingProfile MUSIC = new EncodingProfile(44100, 1, AacEncoderStage.DEFAULT_BIT_RATE);
+
+    /**
+     * Wideband speech: everything up to 8 kHz, about a third of the bytes of {@link #MUSIC}.
+     */
+    public static final EncodingProfile VOICE = new EncodingProfile(16000, 1, 24000);
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int bitRate;
+
+    public EncodingProfile(int sampleRate, int channelCount, int bitRate) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bitRate = bitRate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + " Hz, " + channelCount + " ch, " + bitRate / 1000 + " kbit/s";
+    }
+}
@@ -0,0 +1,308 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
+
+/**
+ * Where every compressed frame of a clip starts, saved as its ".idx" sidecar: a 28 byte header
+ * ("FIDX", version, sample rate, channels, samples per frame, frame count, flags) and, for ADTS
+ * files, the little endian byte offset of every frame. Frames have a fixed number of samples, so
+ * finding the frame of a position and the position of a frame are both constant time.
+ */
+public class FrameIndex {
+
+    static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x58444946; // "FIDX" read as a little endian int
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int FLAG_OFFSETS = 1;
+
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int samplesPerFrame;
+    private final int frameCount;
+    private final int[] offsets; // null unless the file is ADTS
+
+    private FrameIndex(int sampleRate, int channelCount, int samplesPerFrame, int frameCount, int[] offsets) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.samplesPerFrame = samplesPerFrame;
+        this.frameCount = frameCount;
+        this.offsets = offsets;
+    }
+
+    public static File forAudio(String audioPath) {
+        return new File(audioPath + SUFFIX);
+    }
+
+    /**
+     * @return the index of {@code frame} containing {@code millis}
+     */
+    public int getFrameAt(long millis) {
+        long frame = Math.max(0, millis) * sampleRate / (1000L * samplesPerFrame);
+        return (int) Math.min(frame, Math.max(0, frameCount - 1));
+    }
+
+    public long getFrameStartMillis(int frame) {
+        return (long) frame * samplesPerFrame * 1000 / sampleRate;
+    }
+
+    /**
+     * @return {@code millis} rounded down to the start of its frame
+     */
+    public long alignMillis(long millis) {
+        return getFrameStartMillis(getFrameAt(millis));
+    }
+
+    public long getDurationMillis() {
+        return getFrameStartMillis(frameCount);
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    int getChannelCount() {
+        return channelCount;
+    }
+
+    boolean hasOffsets() {
+        return offsets != null;
+    }
+
+    long getOffset(int frame) {
+        return offsets[frame];
+    }
+
+    /**
+     * @return the saved index of {@code audioPath}, or null if there is none or it is damaged
+     */
+    public static FrameIndex load(String audioPath) {
+        File file = forAudio(audioPath);
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ByteBuffer buffer = ByteBuffer.wrap(IOUtils.toByteArray(in)).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+
+            int sampleRate = buffer.getInt();
+            int channelCount = buffer.getInt();
+            int samplesPerFrame = buffer.getInt();
+            int frameCount = buffer.getInt();
+            int flags = buffer.getInt();
+            if (sampleRate <= 0 || samplesPerFrame <= 0 || frameCount < 0) {
+                return null;
+            }
+
+            int[] offsets = null;
+            if ((flags & FLAG_OFFSETS) != 0) {
+                if (buffer.remaining() != frameCount * 4) {
+                    return null;
+                }
+                offsets = new int[frameCount];
+                buffer.asIntBuffer().get(offsets);
+            }
+            return new FrameIndex(sampleRate, channelCount, samplesPerFrame, frameCount, offsets);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Indexes {@code audioPath} and saves the sidecar. ADTS files are indexed by walking the frame
+     * headers without decoding, other containers by walking their samples with {@link MediaExtractor}.
+     */
+    public static FrameIndex build(String audioPath) throws IOException {
+        FrameIndex index = isAdts(audioPath) ? buildAdts(audioPath) : buildWithExtractor(audioPath);
+        index.save(forAudio(audioPath));
+        return index;
+    }
+
+    /**
+     * Builds the index on a background thread unless it exists already, e.g. when a file was cached or recorded.
+     */
+    static void buildInBackground(String audioPath) {
+        Observable.fromCallable(() -> forAudio(audioPath).exists() ? null : build(audioPath))
+                .subscribeOn(Schedulers.io())
+                .subscribe(index -> {
+                }, ExceptionTracker::trackException);
+    }
+
+    private static boolean isAdts(String audioPath) throws IOException {
+        InputStream in = new FileInputStream(audioPath);
+        try {
+            byte[] sync = new byte[2];
+            return in.read(sync) == 2 && AdtsFrameReader.isSync(sync, 0);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static FrameIndex buildAdts(String audioPath) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(audioPath));
+        try {
+            byte[] header = new byte[AdtsFrameReader.HEADER_SIZE];
+            int[] offsets = new int[256];
+            int frameCount = 0;
+            int sampleRate = 0;
+            int channelCount = 0;
+            long position = 0;
+
+            while (readFully(in, header)) {
+                if (!AdtsFrameReader.isSync(header, 0)) {
+                    throw new IOException("Lost ADTS sync at " + position + " in " + audioPath);
+                }
+                int frameLength = AdtsFrameReader.getFrameLength(header, 0);
+                if (frameLength < AdtsFrameReader.HEADER_SIZE) {
+                    throw new IOException("Corrupt ADTS header at " + position + " in " + audioPath);
+                }
+                if (frameCount == 0) {
+                    sampleRate = AdtsFrameReader.getSampleRate(header, 0);
+                    channelCount = AdtsFrameReader.getChannelConfig(header, 0);
+                }
+
+                if (frameCount == offsets.length) {
+                    int[] grown = new int[offsets.length * 2];
+                    System.arraycopy(offsets, 0, grown, 0, frameCount);
+                    offsets = grown;
+                }
+                offsets[frameCount++] = (int) position;
+
+                long toSkip = frameLength - AdtsFrameReader.HEADER_SIZE;
+                while (toSkip > 0) {
+                    long skipped = in.skip(toSkip);
+                    if (skipped <= 0) {
+                        break; // a truncated last frame, still indexed
+                    }
+                    toSkip -= skipped;
+                }
+                position += frameLength;
+            }
+
+            if (frameCount == 0) {
+                throw new IOException("No ADTS frames in " + audioPath);
+            }
+            int[] trimmed = new int[frameCount];
+            System.arraycopy(offsets, 0, trimmed, 0, frameCount);
+            return new FrameIndex(sampleRate, channelCount, AAC_SAMPLES_PER_FRAME, frameCount, trimmed);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static FrameIndex buildWithExtractor(String audioPath) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(audioPath);
+
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount() && format == null; i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                }
+            }
+            if (format == null) {
+                throw new IOException("No audio track in " + audioPath);
+            }
+
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+            int frameCount = 0;
+            long firstTimeUs = -1;
+            long secondTimeUs = -1;
+            do {
+                long timeUs = extractor.getSampleTime();
+                if (timeUs < 0) {
+                    break;
+                }
+                if (frameCount == 0) {
+                    firstTimeUs = timeUs;
+                } else if (frameCount == 1) {
+                    secondTimeUs = timeUs;
+                }
+                frameCount++;
+            } while (extractor.advance());
+
+            int samplesPerFrame = secondTimeUs > firstTimeUs
+                    ? (int) Math.round((secondTimeUs - firstTimeUs) * sampleRate / 1000000.0)
+                    : AAC_SAMPLES_PER_FRAME;
+            return new FrameIndex(sampleRate, channelCount, samplesPerFrame, frameCount, null);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private void save(File file) throws IOException {
+        int offsetBytes = offsets != null ? offsets.length * 4 : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + offsetBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(sampleRate)
+                .putInt(channelCount)
+                .putInt(samplesPerFrame)
+                .putInt(frameCount)
+                .putInt(offsets != null ? FLAG_OFFSETS : 0);
+        if (offsets != null) {
+            buffer.asIntBuffer().put(offsets);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read == -1) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,39 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.IOException;
+
+/**
+ * Scales the samples by a gain that can be changed from any thread, clipping at full scale.
+ * Passes the samples through untouched at unity gain.
+ */
+public class GainStage extends PcmFilterStage {
+
+    private volatile float gain = 1f;
+
+    private short[] output = new short[0];
+
+    /**
+     * @param gain linear, e.g. 0.5 for -6 dB
+     */
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        float factor = gain;
+        if (factor == 1f) {
+            super.onSamples(samples, offset, count);
+            return;
+        }
+
+        if (output.length < count) {
+            output = new short[count];
+        }
+        for (int i = 0; i < count; i++) {
+            int scaled = Math.round(samples[offset + i] * factor);
+            output[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled));
+        }
+        super.onSamples(output, 0, count);
+    }
+}
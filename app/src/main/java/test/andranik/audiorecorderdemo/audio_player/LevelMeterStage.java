@@ -0,0 +1,144 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures the signal while passing it on unchanged: one peak and RMS per window of
+ * 1 / {@link #PEAKS_PER_SECOND} seconds. The latest level and the recent peaks can be read from
+ * any thread without locking; the peaks are also written to a {@link PeakFile} sidecar.
+ * Nothing is allocated after {@link #onStart(PcmFormat)}.
+ */
+public class LevelMeterStage extends PcmFilterStage {
+
+    public static final int PEAKS_PER_SECOND = 50;
+
+    private static final int WAVEFORM_CAPACITY = 256; // a few seconds, far more than a frame needs
+
+    private final File peakFile;
+    private final short[] waveform = new short[WAVEFORM_CAPACITY];
+
+    private PeakFile.Writer peakWriter;
+
+    private int samplesPerWindow;
+    private int windowSamples;
+    private int windowPeak;
+    private double windowSquares;
+
+    private volatile long peakCount;
+    private volatile float rms;
+    private volatile float peak;
+
+    /**
+     * @param peakFile where to save the peaks, or null to only meter
+     */
+    public LevelMeterStage(File peakFile) {
+        this.peakFile = peakFile;
+    }
+
+    @Override
+    public void onStart(PcmFormat format) throws IOException {
+        samplesPerWindow = Math.max(1, format.getSampleRate() * format.getChannelCount() / PEAKS_PER_SECOND);
+        windowSamples = 0;
+        windowPeak = 0;
+        windowSquares = 0;
+        peakCount = 0;
+        rms = 0;
+        peak = 0;
+
+        if (peakFile != null) {
+            peakWriter = new PeakFile.Writer(peakFile, PEAKS_PER_SECOND);
+        }
+
+        super.onStart(format);
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        for (int i = offset; i < offset + count; i++) {
+            int sample = samples[i];
+            int abs = sample < 0 ? -sample : sample;
+            if (abs > windowPeak) {
+                windowPeak = abs;
+            }
+            windowSquares += sample * sample;
+
+            if (++windowSamples == samplesPerWindow) {
+                endWindow();
+            }
+        }
+
+        super.onSamples(samples, offset, count);
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        try {
+            if (windowSamples > 0) {
+                endWindow();
+            }
+            if (peakWriter != null) {
+                peakWriter.close();
+                peakWriter = null;
+            }
+        } finally {
+            super.onStop();
+        }
+    }
+
+    private void endWindow() throws IOException {
+        short windowValue = (short) Math.min(windowPeak, Short.MAX_VALUE);
+
+        long index = peakCount;
+        waveform[(int) (index % WAVEFORM_CAPACITY)] = windowValue;
+        rms = (float) Math.sqrt(windowSquares / windowSamples) / Short.MAX_VALUE;
+        peak = windowValue / (float) Short.MAX_VALUE;
+        peakCount = index + 1; // publishes the window to readers
+
+        if (peakWriter != null) {
+            peakWriter.write(windowValue);
+        }
+
+        windowSamples = 0;
+        windowPeak = 0;
+        windowSquares = 0;
+    }
+
+    /**
+     * @return RMS of the latest window, 0..1 of full scale
+     */
+    public float getRms() {
+        return rms;
+    }
+
+    /**
+     * @return peak of the latest window, 0..1 of full scale
+     */
+    public float getPeak() {
+        return peak;
+    }
+
+    /**
+     * @return the number of windows measured so far
+     */
+    public long getPeakCount() {
+        return peakCount;
+    }
+
+    /**
+     * Copies the peaks of the windows from {@code from} on into {@code dest}. Only the last few seconds
+     * are buffered, older windows are skipped.
+     *
+     * @return the number of peaks copied
+     */
+    public int copyPeaks(long from, short[] dest, int offset, int maxCount) {
+        long end = peakCount;
+        from = Math.max(from, end - WAVEFORM_CAPACITY);
+
+        int count = (int) Math.max(0, Math.min(maxCount, end - from));
+        for (int i = 0; i < count; i++) {
+            dest[offset + i] = waveform[(int) ((from + i) % WAVEFORM_CAPACITY)];
+        }
+        return count;
+    }
+}
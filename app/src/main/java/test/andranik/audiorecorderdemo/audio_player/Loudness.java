@@ -0,0 +1,146 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
+
+/**
+ * Integrated loudness and peak of a clip, measured once by {@link LoudnessMeter} and kept in its
+ * ".loudness" sidecar: "LOUD", version, then loudness (LUFS) and peak (0..1) as little endian floats.
+ */
+public final class Loudness {
+
+    static final String SUFFIX = ".loudness";
+
+    /**
+     * Where clips are brought to, the usual level of spoken word on phones.
+     */
+    public static final float TARGET_LUFS = -16f;
+
+    private static final float MAX_GAIN_DB = 12f; // quieter clips stay a bit quiet, rather than boosting noise
+    private static final float PEAK_CEILING_DB = -1f;
+
+    private static final int MAGIC = 0x44554f4c; // "LOUD" read as a little endian int
+    private static final int VERSION = 1;
+    private static final int SIZE = 16;
+
+    private final float integratedLufs;
+    private final float peak;
+
+    Loudness(float integratedLufs, float peak) {
+        this.integratedLufs = integratedLufs;
+        this.peak = peak;
+    }
+
+    public static File forAudio(String audioPath) {
+        return new File(audioPath + SUFFIX);
+    }
+
+    /**
+     * @return NaN if the clip was too short or silent to measure
+     */
+    public float getIntegratedLufs() {
+        return integratedLufs;
+    }
+
+    /**
+     * @return the sample peak, 0..1 of full scale
+     */
+    public float getPeak() {
+        return peak;
+    }
+
+    /**
+     * @return the gain that brings the clip to {@link #TARGET_LUFS}, limited so that its peak stays below -1 dBFS
+     */
+    public float getGainDb() {
+        if (Float.isNaN(integratedLufs)) {
+            return 0;
+        }
+
+        float gain = Math.min(TARGET_LUFS - integratedLufs, MAX_GAIN_DB);
+        if (peak > 0) {
+            gain = Math.min(gain, PEAK_CEILING_DB - (float) (20 * Math.log10(peak)));
+        }
+        return gain;
+    }
+
+    /**
+     * @return the measurement saved for {@code audioPath}, or null if there is none
+     */
+    public static Loudness read(String audioPath) {
+        File file = forAudio(audioPath);
+        if (file.length() != SIZE) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ByteBuffer buffer = ByteBuffer.wrap(IOUtils.toByteArray(in)).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            return new Loudness(buffer.getFloat(), buffer.getFloat());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    void write(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putFloat(integratedLufs)
+                .putFloat(peak);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Blocking: decodes the whole clip through a {@link LoudnessMeter} and saves the sidecar.
+     */
+    static Loudness analyze(String audioPath) throws IOException {
+        LoudnessMeter meter = new LoudnessMeter(forAudio(audioPath));
+        PcmDecoder.decode(audioPath, meter);
+        return meter.getLoudness();
+    }
+
+    /**
+     * Analyzes the clip on a background thread unless it has been already, e.g. when a file was cached or recorded.
+     */
+    static void analyzeInBackground(String audioPath) {
+        Observable.fromCallable(() -> forAudio(audioPath).exists() ? null : analyze(audioPath))
+                .subscribeOn(Schedulers.io())
+                .subscribe(loudness -> {
+                }, ExceptionTracker::trackException);
+    }
+
+    @Override
+    public String toString() {
+        return integratedLufs + " LUFS, peak " + peak;
+    }
+}
@@ -0,0 +1,216 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures integrated loudness (ITU-R BS.1770: K-weighting, 400 ms blocks every 100 ms, absolute
+ * gate at -70 LUFS and relative gate 10 LU below the ungated level) and the sample peak while
+ * passing the samples on unchanged. Gated blocks are counted in a histogram of 0.1 LU bins, so
+ * memory doesn't grow with the length of the input. Writes a {@link Loudness} sidecar on stop if
+ * given a file. Can be the last stage of a pipeline.
+ */
+public class LoudnessMeter extends PcmFilterStage {
+
+    private static final double ABSOLUTE_GATE_LUFS = -70;
+    private static final double RELATIVE_GATE_LU = -10;
+    private static final double MAX_BLOCK_LUFS = 10;
+    private static final double BIN_LU = 0.1;
+
+    private static final int SUB_BLOCK_MILLIS = 100;
+    private static final int SUB_BLOCKS_PER_BLOCK = 4; // 400 ms blocks, 75% overlap
+
+    private final File loudnessFile;
+
+    private final int[] binCounts = new int[(int) ((MAX_BLOCK_LUFS - ABSOLUTE_GATE_LUFS) / BIN_LU)];
+    private final double[] binPowers = new double[binCounts.length];
+
+    private int channels;
+    private double[][] shelf; // per channel: b0, b1, b2, a1, a2 and two state values
+    private double[][] highPass;
+
+    private int subBlockFrames;
+    private int frameInSubBlock;
+    private double subBlockEnergy;
+    private final double[] recentEnergies = new double[SUB_BLOCKS_PER_BLOCK];
+    private long subBlockCount;
+
+    private int peak;
+
+    private Loudness loudness;
+
+    /**
+     * @param loudnessFile where to save the result, or null to only measure
+     */
+    public LoudnessMeter(File loudnessFile) {
+        this.loudnessFile = loudnessFile;
+    }
+
+    @Override
+    public void onStart(PcmFormat format) throws IOException {
+        channels = format.getChannelCount();
+        shelf = new double[channels][];
+        highPass = new double[channels][];
+        for (int c = 0; c < channels; c++) {
+            shelf[c] = shelfFilter(format.getSampleRate());
+            highPass[c] = highPassFilter(format.getSampleRate());
+        }
+
+        subBlockFrames = format.samplesForMillis(SUB_BLOCK_MILLIS) / channels;
+        frameInSubBlock = 0;
+        subBlockEnergy = 0;
+        subBlockCount = 0;
+        peak = 0;
+        loudness = null;
+        for (int i = 0; i < binCounts.length; i++) {
+            binCounts[i] = 0;
+            binPowers[i] = 0;
+        }
+
+        if (next != null) {
+            super.onStart(format);
+        }
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        for (int i = offset; i < offset + count; i += channels) {
+            for (int c = 0; c < channels; c++) {
+                int sample = samples[i + c];
+                int abs = sample < 0 ? -sample : sample;
+                if (abs > peak) {
+                    peak = abs;
+                }
+
+                double weighted = filter(highPass[c], filter(shelf[c], sample / 32768.0));
+                subBlockEnergy += weighted * weighted; // every channel weighs 1 for mono and stereo
+            }
+
+            if (++frameInSubBlock == subBlockFrames) {
+                endSubBlock();
+            }
+        }
+
+        if (next != null) {
+            super.onSamples(samples, offset, count);
+        }
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        loudness = new Loudness((float) integrate(), Math.min(1f, peak / 32767f));
+        if (loudnessFile != null) {
+            loudness.write(loudnessFile);
+        }
+
+        if (next != null) {
+            super.onStop();
+        }
+    }
+
+    /**
+     * @return the result, null before {@link #onStop()}
+     */
+    public Loudness getLoudness() {
+        return loudness;
+    }
+
+    private void endSubBlock() {
+        recentEnergies[(int) (subBlockCount % SUB_BLOCKS_PER_BLOCK)] = subBlockEnergy;
+        subBlockCount++;
+        frameInSubBlock = 0;
+        subBlockEnergy = 0;
+
+        if (subBlockCount < SUB_BLOCKS_PER_BLOCK) {
+            return;
+        }
+
+        double energy = 0;
+        for (double recent : recentEnergies) {
+            energy += recent;
+        }
+        double power = energy / (subBlockFrames * SUB_BLOCKS_PER_BLOCK);
+        double lufs = toLufs(power);
+        if (lufs <= ABSOLUTE_GATE_LUFS) {
+            return;
+        }
+
+        int bin = Math.min(binCounts.length - 1, (int) ((lufs - ABSOLUTE_GATE_LUFS) / BIN_LU));
+        binCounts[bin]++;
+        binPowers[bin] += power;
+    }
+
+    /**
+     * @return the gated loudness in LUFS, NaN if nothing passed the absolute gate
+     */
+    private double integrate() {
+        double power = 0;
+        long blocks = 0;
+        for (int i = 0; i < binCounts.length; i++) {
+            power += binPowers[i];
+            blocks += binCounts[i];
+        }
+        if (blocks == 0) {
+            return Double.NaN; // shorter than a block, or silent
+        }
+
+        double relativeGate = toLufs(power / blocks) + RELATIVE_GATE_LU;
+        power = 0;
+        blocks = 0;
+        for (int i = 0; i < binCounts.length; i++) {
+            double binCenter = ABSOLUTE_GATE_LUFS + (i + 0.5) * BIN_LU;
+            if (binCenter > relativeGate) {
+                power += binPowers[i];
+                blocks += binCounts[i];
+            }
+        }
+        return blocks > 0 ? toLufs(power / blocks) : Double.NaN;
+    }
+
+    private static double toLufs(double power) {
+        return -0.691 + 10 * Math.log10(power);
+    }
+
+    /**
+     * The head model of the K-weighting: +4 dB above about 1.7 kHz. Coefficients for any sample rate,
+     * matching the ones the standard gives for 48 kHz.
+     */
+    private static double[] shelfFilter(int sampleRate) {
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        return new double[]{
+                (vh + vb * k / q + k * k) / a0,
+                2 * (k * k - vh) / a0,
+                (vh - vb * k / q + k * k) / a0,
+                2 * (k * k - 1) / a0,
+                (1 - k / q + k * k) / a0,
+                0, 0};
+    }
+
+    /**
+     * The second stage of the K-weighting: a high pass at about 38 Hz.
+     */
+    private static double[] highPassFilter(int sampleRate) {
+        double k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        double q = 0.5003270373238773;
+        double a0 = 1 + k / q + k * k;
+        return new double[]{
+                1, -2, 1,
+                2 * (k * k - 1) / a0,
+                (1 - k / q + k * k) / a0,
+                0, 0};
+    }
+
+    /**
+     * One sample through a biquad in transposed direct form II.
+     */
+    private static double filter(double[] f, double x) {
+        double y = f[0] * x + f[5];
+        f[5] = f[1] * x - f[3] * y + f[6];
+        f[6] = f[2] * x - f[4] * y;
+        return y;
+    }
+}
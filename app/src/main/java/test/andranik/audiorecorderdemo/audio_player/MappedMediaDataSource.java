@@ -0,0 +1,51 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds {@link android.media.MediaPlayer} from a memory-mapped file, e.g. from
+ * {@link AudioCache#map(String)}: reads are copied straight out of the page cache, without a
+ * system call or an intermediate buffer.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class MappedMediaDataSource extends MediaDataSource {
+
+    private ByteBuffer buffer;
+
+    /**
+     * @param buffer the whole file, from position 0 to its limit; not modified
+     */
+    public MappedMediaDataSource(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] destination, int offset, int size) throws IOException {
+        if (buffer == null) {
+            throw new IOException("closed");
+        }
+        if (position >= buffer.limit()) {
+            return -1; // end of stream
+        }
+
+        int count = (int) Math.min(size, buffer.limit() - position);
+        buffer.position((int) position);
+        buffer.get(destination, offset, count);
+        return count;
+    }
+
+    @Override
+    public synchronized long getSize() throws IOException {
+        return buffer != null ? buffer.limit() : -1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer = null; // unmapped once collected, there is no way to unmap it earlier
+    }
+}
@@ -0,0 +1,50 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Uploads a memory-mapped file or range, e.g. from {@link AudioCache#map(String)}, through one
+ * reused 8 KB heap chunk instead of reading the whole file into memory. Can be written again when a
+ * request is retried.
+ */
+public class MappedRequestBody extends RequestBody {
+
+    private static final int CHUNK_SIZE = 8 * 1024; // one Okio segment
+
+    private final ByteBuffer buffer;
+    private final MediaType contentType;
+
+    /**
+     * @param buffer the bytes between its position and limit are sent; not modified
+     */
+    public MappedRequestBody(ByteBuffer buffer, MediaType contentType) {
+        this.buffer = buffer.duplicate();
+        this.contentType = contentType;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, source.remaining())]; // Okio 1.x can't take a ByteBuffer
+        while (source.hasRemaining()) {
+            int count = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, count);
+            sink.write(chunk, 0, count);
+        }
+    }
+}
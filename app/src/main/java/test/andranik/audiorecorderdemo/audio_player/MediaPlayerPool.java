@@ -0,0 +1,180 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.MediaPlayer;
+import android.support.annotation.MainThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+
+/**
+ * A few {@link MediaPlayer}s prepared ahead for the clips most likely to be played next, e.g. the
+ * visible rows of a list. Keyed by path, least recently requested evicted first. A player handed out
+ * by {@link #acquire} belongs to the caller; every other one is released by the pool, so native
+ * decoders are never leaked. Main thread only; only the data source is set in the background,
+ * since that opens the file and probes its format.
+ */
+@MainThread
+public class MediaPlayerPool {
+    public static final String TAG = "MediaPlayerPool";
+
+    public static final int DEFAULT_CAPACITY = 3;
+
+    private final LinkedHashMap<String, PooledPlayer> players = new LinkedHashMap<>(8, 0.75f, true);
+
+    private int capacity;
+
+    public MediaPlayerPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        trimToCapacity();
+    }
+
+    /**
+     * Starts preparing a player for {@code path} unless one is pooled already. Missing files are
+     * ignored, without checking for them up front on the main thread.
+     */
+    public void prepare(String path) {
+        if (players.get(path) != null) { // get() refreshes the LRU order
+            return;
+        }
+        if (capacity <= 0) {
+            return;
+        }
+
+        PooledPlayer pooled = new PooledPlayer(path);
+        players.put(path, pooled);
+        trimToCapacity();
+
+        Observable.fromCallable(() -> {
+            pooled.player.setDataSource(path);
+            return pooled;
+        })
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(this::onDataSourceSet, e -> onDataSourceFailed(pooled, e));
+    }
+
+    private void onDataSourceSet(PooledPlayer pooled) {
+        pooled.sourceSet = true;
+        if (pooled.discarded) {
+            pooled.player.release();
+            return;
+        }
+
+        try {
+            pooled.player.prepareAsync();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "could not prepare " + pooled.path, e);
+            drop(pooled);
+        }
+    }
+
+    private void onDataSourceFailed(PooledPlayer pooled, Throwable e) {
+        pooled.sourceSet = true; // the player isn't used in the background anymore
+        if (!(e instanceof IOException)) { // most likely not downloaded yet otherwise
+            Log.w(TAG, "could not prepare " + pooled.path, e);
+        }
+        drop(pooled);
+    }
+
+    /**
+     * Takes the player of {@code path} out of the pool. {@code listener} is called right away if the
+     * player is prepared, otherwise as soon as it is.
+     *
+     * @return the player, now owned by the caller, or null if none was pooled for {@code path} or its
+     * data source is still being set
+     */
+    public MediaPlayer acquire(String path, MediaPlayer.OnPreparedListener listener) {
+        PooledPlayer pooled = players.remove(path);
+        if (pooled == null) {
+            return null;
+        }
+        if (!pooled.sourceSet) {
+            discard(pooled); // the caller would have to wait for the background thread to be done with it
+            return null;
+        }
+
+        pooled.player.setOnErrorListener(null);
+        if (pooled.prepared) {
+            pooled.player.setOnPreparedListener(null);
+            listener.onPrepared(pooled.player);
+        } else {
+            pooled.player.setOnPreparedListener(listener);
+        }
+        return pooled.player;
+    }
+
+    /**
+     * Releases the pooled player of {@code path}, e.g. when its row scrolls away or the file is deleted.
+     */
+    public void release(String path) {
+        PooledPlayer pooled = players.remove(path);
+        if (pooled != null) {
+            discard(pooled);
+        }
+    }
+
+    public void releaseAll() {
+        for (PooledPlayer pooled : players.values()) {
+            discard(pooled);
+        }
+        players.clear();
+    }
+
+    /**
+     * Releases the player of {@code pooled}, or marks it to be released once its data source is set.
+     */
+    private void discard(PooledPlayer pooled) {
+        if (pooled.sourceSet) {
+            pooled.player.release();
+        } else {
+            pooled.discarded = true;
+        }
+    }
+
+    private void drop(PooledPlayer pooled) {
+        if (players.get(pooled.path) == pooled) {
+            players.remove(pooled.path);
+        }
+        pooled.player.release();
+    }
+
+    private void trimToCapacity() {
+        Iterator<Map.Entry<String, PooledPlayer>> iterator = players.entrySet().iterator();
+        while (players.size() > capacity && iterator.hasNext()) {
+            PooledPlayer eldest = iterator.next().getValue();
+            iterator.remove();
+            discard(eldest);
+        }
+    }
+
+    private class PooledPlayer {
+        final String path;
+        final MediaPlayer player = new MediaPlayer();
+
+        boolean sourceSet; // until then the player belongs to the background thread
+        boolean discarded;
+        boolean prepared;
+
+        PooledPlayer(String path) {
+            this.path = path;
+
+            player.setOnPreparedListener(mp -> prepared = true);
+            player.setOnErrorListener((mp, what, extra) -> {
+                Log.w(TAG, "dropping " + path + ", error " + what + "/" + extra);
+                drop(this);
+                return true;
+            });
+        }
+    }
+}
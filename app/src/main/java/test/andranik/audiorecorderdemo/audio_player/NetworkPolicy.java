@@ -0,0 +1,8 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+/**
+ * Decides whether background downloads may use the current network.
+ */
+public interface NetworkPolicy {
+    boolean isPrefetchAllowed();
+}
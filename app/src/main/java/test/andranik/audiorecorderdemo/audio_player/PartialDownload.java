@@ -0,0 +1,266 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * State of an unfinished download: the ".part" file holding the bytes received so far and
+ * a small sidecar with the validator (ETag / Last-Modified) needed to resume it with If-Range.
+ * <p>
+ * A single stream fills the file from the start, so the sidecar records how many bytes reached it.
+ * Segments fill a preallocated file in any order, so the sidecar records the byte ranges completed instead.
+ */
+class PartialDownload {
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_BYTES_WRITTEN = "bytesWritten";
+    private static final String KEY_CONTENT_LENGTH = "contentLength";
+    private static final String KEY_COMPLETED_RANGES = "completedRanges"; // 0-262143,524288-786431
+
+    private final File partFile;
+    private final File metaFile;
+
+    private String etag;
+    private String lastModified;
+    private long bytesWritten;
+    private long contentLength = -1;
+    private final TreeMap<Long, Long> completedRanges = new TreeMap<>(); // first byte to last byte
+
+    private PartialDownload(File partFile, File metaFile) {
+        this.partFile = partFile;
+        this.metaFile = metaFile;
+    }
+
+    static PartialDownload load(String url) {
+        AudioUtils.ensureAudioDir(); // the first write into it, on the download thread
+        PartialDownload download = new PartialDownload(
+                new File(AudioUtils.getPartialFilePath(url)),
+                new File(AudioUtils.getPartialMetaPath(url)));
+
+        if (!download.partFile.exists() || !download.metaFile.exists()) {
+            download.reset();
+            return download;
+        }
+
+        Properties properties = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(download.metaFile);
+            properties.load(in);
+
+            download.etag = properties.getProperty(KEY_ETAG);
+            download.lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+            download.bytesWritten = Long.parseLong(properties.getProperty(KEY_BYTES_WRITTEN, "0"));
+            download.contentLength = Long.parseLong(properties.getProperty(KEY_CONTENT_LENGTH, "-1"));
+            download.parseCompletedRanges(properties.getProperty(KEY_COMPLETED_RANGES));
+        } catch (IOException | NumberFormatException e) {
+            download.reset();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        // the sidecar is written after the data is flushed, so the file can only be longer
+        if (download.partFile.length() < download.bytesWritten) {
+            download.reset();
+        }
+        if (!download.completedRanges.isEmpty() && download.partFile.length() != download.contentLength) {
+            download.reset(); // not the preallocated file the ranges were written into
+        }
+
+        return download;
+    }
+
+    /**
+     * @return the value for the If-Range header, or null if there is nothing to resume
+     */
+    String getIfRange() {
+        if (bytesWritten <= 0) {
+            return null;
+        }
+        return getStrongValidator();
+    }
+
+    private String getStrongValidator() {
+        if (etag != null && !etag.startsWith("W/")) { // weak validators are not allowed in If-Range
+            return etag;
+        }
+        return lastModified;
+    }
+
+    boolean canResume() {
+        return getIfRange() != null;
+    }
+
+    void reset() {
+        etag = null;
+        lastModified = null;
+        bytesWritten = 0;
+        contentLength = -1;
+        completedRanges.clear();
+    }
+
+    /**
+     * @return whether the completed ranges were written from the remote file described by the arguments
+     */
+    boolean hasRangesOf(long contentLength, String etag, String lastModified) {
+        return !completedRanges.isEmpty()
+                && this.contentLength == contentLength
+                && getStrongValidator() != null
+                && equal(this.etag, etag)
+                && equal(this.lastModified, lastModified);
+    }
+
+    void addCompletedRange(long first, long last) {
+        completedRanges.put(first, last);
+    }
+
+    /**
+     * @return the first and last byte of every range of the file that isn't completed yet
+     */
+    List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long next = 0;
+        for (Map.Entry<Long, Long> range : completedRanges.entrySet()) {
+            if (range.getKey() > next) {
+                missing.add(new long[]{next, range.getKey() - 1});
+            }
+            next = Math.max(next, range.getValue() + 1);
+        }
+        if (next < contentLength) {
+            missing.add(new long[]{next, contentLength - 1});
+        }
+        return missing;
+    }
+
+    long getCompletedBytes() {
+        long completed = 0;
+        for (Map.Entry<Long, Long> range : completedRanges.entrySet()) {
+            completed += range.getValue() - range.getKey() + 1;
+        }
+        return completed;
+    }
+
+    void setValidators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    void save() throws IOException {
+        Properties properties = new Properties();
+        if (etag != null) properties.setProperty(KEY_ETAG, etag);
+        if (lastModified != null) properties.setProperty(KEY_LAST_MODIFIED, lastModified);
+        properties.setProperty(KEY_BYTES_WRITTEN, String.valueOf(bytesWritten));
+        properties.setProperty(KEY_CONTENT_LENGTH, String.valueOf(contentLength));
+        if (!completedRanges.isEmpty()) properties.setProperty(KEY_COMPLETED_RANGES, formatCompletedRanges());
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(metaFile);
+            properties.store(out, null);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Opens the ".part" file for writing right after the last byte recorded in the sidecar,
+     * dropping anything written after the sidecar was last saved.
+     */
+    BufferedSink openSink() throws IOException {
+        if (bytesWritten <= 0) {
+            return Okio.buffer(Okio.sink(partFile));
+        }
+
+        if (partFile.length() > bytesWritten) {
+            RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+            try {
+                file.setLength(bytesWritten);
+            } finally {
+                file.close();
+            }
+        }
+
+        return Okio.buffer(Okio.appendingSink(partFile));
+    }
+
+    /**
+     * Moves the completed ".part" file to its final place and drops the sidecar.
+     */
+    void commit(File target) throws IOException {
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Could not replace " + target);
+        }
+        if (!partFile.renameTo(target)) {
+            throw new IOException("Could not rename " + partFile + " to " + target);
+        }
+        metaFile.delete();
+    }
+
+    private String formatCompletedRanges() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Long, Long> range : completedRanges.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(range.getKey()).append('-').append(range.getValue());
+        }
+        return builder.toString();
+    }
+
+    private void parseCompletedRanges(String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        for (String range : value.split(",")) {
+            int dash = range.indexOf('-');
+            if (dash <= 0) {
+                throw new NumberFormatException("Not a byte range: " + range);
+            }
+            completedRanges.put(Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1)));
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    void discard() {
+        partFile.delete();
+        metaFile.delete();
+        reset();
+    }
+
+    File getPartFile() {
+        return partFile;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    void setBytesWritten(long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+}
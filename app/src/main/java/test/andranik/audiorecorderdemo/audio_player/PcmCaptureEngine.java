@@ -0,0 +1,427 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import test.andranik.audiorecorderdemo.App;
+import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
+
+/**
+ * Captures 16 bit PCM with {@link AudioRecord} on a dedicated urgent-audio thread that only copies
+ * samples into a preallocated {@link PcmRingBuffer}. A second, long-lived thread drains the ring into a
+ * {@link PcmStage}, so encoding, metering and the like never hold up the capture loop.
+ * <p>
+ * Every time the microphone is opened is a capture session with its own capture thread, which waits
+ * for the one of the previous session to release the microphone. The main thread never waits for
+ * either thread, except in {@link #release()}. Recordings are handed to the processing thread one
+ * after another, so a recording that is still being finished doesn't share the ring with the next one.
+ * <p>
+ * In warm mode the microphone keeps running between recordings and the ring always holds the
+ * last {@link #PRE_ROLL_MILLIS}, which become the start of the next recording. This way the
+ * first syllable said right at the tap isn't lost to the microphone start-up time.
+ */
+public class PcmCaptureEngine {
+    public static final String TAG = "PcmCaptureEngine";
+
+    public static final int PRE_ROLL_MILLIS = 500;
+
+    private static final int CHUNK_MILLIS = 20;
+    private static final int RING_MILLIS = 2000;
+    private static final long JOIN_TIMEOUT_MS = 500;
+
+    public interface Callback {
+        /**
+         * Called on the main thread once the stage was stopped and its output is complete.
+         */
+        void onCaptureStopped(boolean successful);
+    }
+
+    private final PcmFormat format;
+    private final PcmRingBuffer ring;
+    private final short[] captureBuffer;
+    private final short[] processBuffer;
+    private final int preRollSamples;
+
+    private Thread processingThread;
+
+    private volatile CaptureSession session; // the latest one, may have finished already
+    private volatile boolean warm;
+
+    private volatile Recording pending; // handed to the processing thread
+    private volatile Recording current; // the one stop() ends
+
+    public PcmCaptureEngine(PcmFormat format) {
+        this.format = format;
+
+        int chunkSamples = format.samplesForMillis(CHUNK_MILLIS);
+        ring = new PcmRingBuffer(format.samplesForMillis(RING_MILLIS));
+        captureBuffer = new short[chunkSamples];
+        processBuffer = new short[chunkSamples];
+        preRollSamples = format.samplesForMillis(PRE_ROLL_MILLIS);
+    }
+
+    public PcmFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Starts capturing into the pre-roll buffer without recording. Call it when the recording
+     * screen becomes visible and {@link #stopWarm()} when it goes away, the microphone stays busy meanwhile.
+     *
+     * @throws IOException if the capture format isn't supported
+     */
+    public void startWarm() throws IOException {
+        warm = true;
+        try {
+            ensureCapturing();
+        } catch (IOException e) {
+            warm = false;
+            throw e;
+        }
+    }
+
+    /**
+     * Leaves warm mode. A recording in progress keeps the microphone until it is stopped.
+     */
+    public void stopWarm() {
+        warm = false;
+        if (current == null && pending == null) {
+            stopCapturing();
+        }
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Starts feeding {@code stage}, beginning with the pre-roll if the engine is warm. If the
+     * microphone can't be opened, the recording stops right away as unsuccessful.
+     *
+     * @throws IOException if the capture format isn't supported
+     */
+    public void start(PcmStage stage, Callback callback) throws IOException {
+        if (current != null) {
+            throw new IllegalStateException("Already recording");
+        }
+
+        ensureCapturing();
+
+        Recording recording = new Recording(stage, callback, session, ring.getWritePosition());
+        current = recording;
+        pending = recording;
+        LockSupport.unpark(processingThread);
+    }
+
+    /**
+     * Ends the recording at the samples captured so far. The stage gets what is left of them,
+     * then its {@link PcmStage#onStop()}.
+     */
+    public void stop() {
+        Recording recording = current;
+        if (recording == null) {
+            return;
+        }
+
+        recording.stopAt = ring.getWritePosition();
+        current = null;
+        if (!warm) {
+            stopCapturing();
+        }
+        LockSupport.unpark(processingThread);
+    }
+
+    /**
+     * Stops everything and waits until the microphone is released, e.g. before MediaRecorder takes it over.
+     */
+    public void release() {
+        warm = false;
+        stop();
+        stopCapturing();
+
+        CaptureSession last = session;
+        if (last != null) {
+            joinQuietly(last.thread);
+        }
+    }
+
+    public boolean isRecording() {
+        return current != null;
+    }
+
+    /**
+     * @return milliseconds captured since {@link #start} (not counting the pre-roll), from the samples
+     * actually read from the microphone
+     */
+    public long getRecordingMillis() {
+        Recording recording = current;
+        if (recording == null) {
+            return 0;
+        }
+        return format.millisForSamples(Math.max(0, ring.getWritePosition() - recording.getFirstPosition()));
+    }
+
+    private void ensureCapturing() throws IOException {
+        CaptureSession previous = session;
+        if (previous != null && previous.running && !previous.finished) {
+            return;
+        }
+
+        int channelMask = format.getChannelCount() == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        int minBufferSize = AudioRecord.getMinBufferSize(format.getSampleRate(), channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IOException("Unsupported capture format " + format);
+        }
+        int bufferSize = Math.max(minBufferSize, captureBuffer.length * PcmFormat.BYTES_PER_SAMPLE * 4);
+
+        if (processingThread == null) {
+            processingThread = new Thread(this::process, "PcmProcessing");
+            processingThread.setDaemon(true);
+            processingThread.start();
+        }
+
+        CaptureSession next = new CaptureSession();
+        next.thread = new Thread(() -> capture(next, previous, channelMask, bufferSize), "PcmCapture");
+        session = next;
+        next.thread.start();
+    }
+
+    private void stopCapturing() {
+        CaptureSession capturing = session;
+        if (capturing != null) {
+            capturing.running = false;
+        }
+    }
+
+    private void capture(CaptureSession capturing, CaptureSession previous, int channelMask, int bufferSize) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        AudioRecord record = null;
+        try {
+            if (previous != null) {
+                joinUninterruptibly(previous.thread); // it still holds the microphone and writes to the ring
+            }
+            if (!capturing.running) {
+                return;
+            }
+
+            record = new AudioRecord(MediaRecorder.AudioSource.MIC, format.getSampleRate(), channelMask,
+                    AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                throw new IOException("Could not initialize AudioRecord");
+            }
+
+            capturing.startPosition = ring.getWritePosition();
+            record.startRecording();
+            while (capturing.running) {
+                int read = record.read(captureBuffer, 0, captureBuffer.length);
+                if (read < 0) {
+                    Log.e(TAG, "AudioRecord.read() failed: " + read);
+                    break;
+                }
+
+                ring.write(captureBuffer, 0, read);
+                LockSupport.unpark(processingThread);
+            }
+            record.stop();
+        } catch (IOException | IllegalStateException e) {
+            ExceptionTracker.trackException(e);
+        } finally {
+            if (record != null) {
+                record.release();
+            }
+            capturing.running = false;
+            capturing.finished = true;
+            LockSupport.unpark(processingThread);
+        }
+    }
+
+    private void process() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        Recording active = null;
+        while (true) {
+            if (active == null) {
+                active = pending;
+                if (active != null) {
+                    pending = null;
+                    if (!active.start(format)) {
+                        finish(active);
+                        active = null;
+                    }
+                    continue;
+                }
+                ring.skipToLast(preRollSamples);
+            } else if (!active.positioned) {
+                CaptureSession capturing = active.session;
+                boolean finished = capturing.finished; // before the position, which is set first
+                long sessionStart = capturing.startPosition;
+                if (sessionStart >= 0) {
+                    // the pre-roll, but nothing from before this session
+                    ring.skipTo(Math.max(sessionStart, active.getFirstPosition() - preRollSamples));
+                    active.positioned = true;
+                    continue;
+                }
+                ring.skipTo(Long.MAX_VALUE); // the tail of an earlier session, the microphone isn't open yet
+                active.positioned = finished; // the microphone couldn't be opened
+            } else {
+                long stopAt = active.stopAt;
+                int toRead = processBuffer.length;
+                if (stopAt >= 0) { // nothing said after the tap on stop goes into this recording
+                    toRead = (int) Math.max(0, Math.min(toRead, stopAt - ring.getReadPosition()));
+                }
+
+                int read = toRead > 0 ? ring.read(processBuffer, 0, toRead) : 0;
+                if (read > 0 && active.deliver(processBuffer, read)) {
+                    continue;
+                }
+
+                boolean reachedStop = stopAt >= 0 && ring.getReadPosition() >= stopAt;
+                boolean drained = active.session.finished && ring.available() == 0;
+                if (active.failed || reachedStop || drained) {
+                    finish(active);
+                    active = null;
+                    continue;
+                }
+                if (read > 0) {
+                    continue;
+                }
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(CHUNK_MILLIS));
+        }
+    }
+
+    private void finish(Recording recording) {
+        if (current == recording) { // the capture side failed before anyone called stop()
+            current = null;
+            if (!warm) {
+                stopCapturing();
+            }
+        }
+
+        boolean successful = recording.stop();
+        if (ring.getOverrun() > 0) {
+            Log.w(TAG, "dropped " + ring.getOverrun() + " samples so far, the pipeline is too slow");
+        }
+
+        App.getInstance().getUiHandler().post(() -> recording.callback.onCaptureStopped(successful));
+    }
+
+    private static void joinQuietly(Thread thread) {
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One opening of the microphone, from its capture thread starting to the microphone being released.
+     */
+    private static class CaptureSession {
+        Thread thread;
+
+        volatile boolean running = true; // the microphone is wanted, by warm mode or by a recording
+        volatile long startPosition = -1; // of the first sample captured, -1 until the microphone is open
+        volatile boolean finished;
+    }
+
+    /**
+     * One recording: the stage it feeds, the capture session it is part of and where in the captured stream it ends.
+     */
+    private static class Recording {
+        final PcmStage stage;
+        final Callback callback;
+        final CaptureSession session;
+        final long startPosition;
+
+        volatile long stopAt = -1;
+
+        boolean positioned; // the ring is at the start of the pre-roll
+        boolean started;
+        boolean failed;
+        long delivered;
+
+        Recording(PcmStage stage, Callback callback, CaptureSession session, long startPosition) {
+            this.stage = stage;
+            this.callback = callback;
+            this.session = session;
+            this.startPosition = startPosition;
+        }
+
+        /**
+         * @return the position of the first sample captured after the tap, {@link Long#MAX_VALUE}
+         * while the microphone isn't open yet
+         */
+        long getFirstPosition() {
+            long sessionStart = session.startPosition;
+            return sessionStart >= 0 ? Math.max(startPosition, sessionStart) : Long.MAX_VALUE;
+        }
+
+        boolean start(PcmFormat format) {
+            try {
+                stage.onStart(format);
+                started = true;
+            } catch (IOException | RuntimeException e) {
+                ExceptionTracker.trackException(e);
+                failed = true;
+            }
+            return started;
+        }
+
+        /**
+         * @return false if the stage failed
+         */
+        boolean deliver(short[] samples, int count) {
+            if (failed) {
+                return false;
+            }
+            try {
+                stage.onSamples(samples, 0, count);
+                delivered += count;
+                return true;
+            } catch (IOException | RuntimeException e) {
+                ExceptionTracker.trackException(e);
+                failed = true;
+                return false;
+            }
+        }
+
+        boolean stop() {
+            if (!started) {
+                return false;
+            }
+            try {
+                stage.onStop();
+            } catch (IOException | RuntimeException e) {
+                ExceptionTracker.trackException(e);
+                failed = true;
+            }
+            return !failed && delivered > 0;
+        }
+    }
+}
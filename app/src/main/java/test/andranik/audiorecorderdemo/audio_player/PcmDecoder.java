@@ -0,0 +1,318 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes the audio track of a file to 16 bit PCM with {@link MediaExtractor} and {@link MediaCodec},
+ * feeding it to a {@link PcmStage}. Blocking; stops with an {@link InterruptedIOException} when the
+ * calling thread is interrupted, e.g. by unsubscribing.
+ */
+class PcmDecoder {
+
+    private static final long TIMEOUT_US = 10000;
+    private static final int CHUNK_SAMPLES = 4096;
+
+    private static final String AAC_MIME_TYPE = "audio/mp4a-latm";
+
+    /**
+     * Compressed frames for the codec.
+     */
+    private interface Input {
+        /**
+         * @return the frame size, -1 at the end
+         */
+        int readSampleData(ByteBuffer buffer) throws IOException;
+
+        long getSampleTime();
+
+        void advance() throws IOException;
+    }
+
+    private PcmDecoder() {
+    }
+
+    static void decode(String path, PcmStage stage) throws IOException {
+        decode(path, 0, stage);
+    }
+
+    /**
+     * @param startUs where to start, rounded down to the previous sync sample (every AAC frame is one)
+     */
+    static void decode(String path, long startUs, PcmStage stage) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(path);
+            MediaFormat trackFormat = selectAudioTrack(extractor);
+            if (trackFormat == null) {
+                throw new IOException("No audio track in " + path);
+            }
+
+            if (startUs > 0) {
+                extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+
+            codec = MediaCodec.createDecoderByType(trackFormat.getString(MediaFormat.KEY_MIME));
+            codec.configure(trackFormat, null, null, 0);
+            codec.start();
+
+            decode(new ExtractorInput(extractor), codec, trackFormat, stage);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    /**
+     * Decodes an ADTS file from the frame starting at byte {@code offset}, e.g. taken from a
+     * {@link FrameIndex}. Seeks in constant time and exactly, unlike {@link MediaExtractor} on ADTS.
+     */
+    static void decodeAdts(String path, long offset, PcmStage stage) throws IOException {
+        InputStream in = new FileInputStream(path);
+        MediaCodec codec = null;
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long step = in.skip(offset - skipped);
+                if (step <= 0) {
+                    throw new IOException("Offset " + offset + " is past the end of " + path);
+                }
+                skipped += step;
+            }
+
+            AdtsInput input = new AdtsInput(new AdtsFrameReader(new BufferedInputStream(in)));
+            byte[] first = input.peek();
+            if (first == null) {
+                throw new IOException("No ADTS frame at " + offset + " in " + path);
+            }
+
+            int sampleRate = AdtsFrameReader.getSampleRate(first, 0);
+            int channelCount = AdtsFrameReader.getChannelConfig(first, 0);
+            MediaFormat format = MediaFormat.createAudioFormat(AAC_MIME_TYPE, sampleRate, channelCount);
+            format.setByteBuffer("csd-0", audioSpecificConfig(first, sampleRate, channelCount));
+
+            codec = MediaCodec.createDecoderByType(AAC_MIME_TYPE);
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            decode(input, codec, format, stage);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                codec.release();
+            }
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * The 2 byte AudioSpecificConfig the decoder needs in place of the ADTS headers.
+     */
+    private static ByteBuffer audioSpecificConfig(byte[] header, int sampleRate, int channelCount) {
+        int objectType = AdtsFrameReader.getAudioObjectType(header, 0);
+        int sampleRateIndex = AdtsFrameReader.getSampleRateIndex(sampleRate);
+        int config = (objectType << 11) | (sampleRateIndex << 7) | (channelCount << 3);
+        return ByteBuffer.wrap(new byte[]{(byte) (config >> 8), (byte) config});
+    }
+
+    private static void decode(Input input, MediaCodec codec, MediaFormat trackFormat, PcmStage stage) throws IOException {
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaFormat outputFormat = trackFormat;
+        short[] samples = new short[CHUNK_SAMPLES];
+
+        boolean inputDone = false;
+        boolean started = false;
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Decoding interrupted");
+            }
+
+            if (!inputDone) {
+                int index = codec.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0) {
+                    int size = input.readSampleData(inputBuffers[index]);
+                    if (size < 0) {
+                        codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(index, 0, size, input.getSampleTime(), 0);
+                        input.advance();
+                    }
+                }
+            }
+
+            int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                outputFormat = codec.getOutputFormat();
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (index >= 0) {
+                if (!started) {
+                    stage.onStart(toPcmFormat(outputFormat));
+                    started = true;
+                }
+
+                ByteBuffer output = outputBuffers[index];
+                output.position(info.offset);
+                output.limit(info.offset + info.size);
+                ShortBuffer shorts = output.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+                while (shorts.hasRemaining()) {
+                    int count = Math.min(shorts.remaining(), samples.length);
+                    shorts.get(samples, 0, count);
+                    stage.onSamples(samples, 0, count);
+                }
+                codec.releaseOutputBuffer(index, false);
+
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        }
+
+        if (!started) {
+            stage.onStart(toPcmFormat(outputFormat));
+        }
+        stage.onStop();
+    }
+
+    /**
+     * @return the duration of the audio track as declared by the container, -1 if unknown
+     */
+    static long readDurationMillis(String path) throws IOException {
+        MediaFormat format = readTrackFormat(path);
+        if (format == null || !format.containsKey(MediaFormat.KEY_DURATION)) {
+            return -1;
+        }
+        return format.getLong(MediaFormat.KEY_DURATION) / 1000;
+    }
+
+    /**
+     * @return the format of the audio track, null if there is none
+     */
+    static MediaFormat readTrackFormat(String path) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            return selectAudioTrack(extractor);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private static PcmFormat toPcmFormat(MediaFormat format) {
+        return new PcmFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+    }
+
+    private static class ExtractorInput implements Input {
+        private final MediaExtractor extractor;
+
+        ExtractorInput(MediaExtractor extractor) {
+            this.extractor = extractor;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer) {
+            return extractor.readSampleData(buffer, 0);
+        }
+
+        @Override
+        public long getSampleTime() {
+            return extractor.getSampleTime();
+        }
+
+        @Override
+        public void advance() {
+            extractor.advance();
+        }
+    }
+
+    /**
+     * ADTS frames with their headers stripped. Times count from the first frame read.
+     */
+    private static class AdtsInput implements Input {
+        private final AdtsFrameReader reader;
+
+        private byte[] frame;
+        private boolean ended;
+        private long frameIndex;
+        private int sampleRate;
+
+        AdtsInput(AdtsFrameReader reader) {
+            this.reader = reader;
+        }
+
+        byte[] peek() throws IOException {
+            if (frame == null && !ended) {
+                ByteBuffer next = reader.readFrame();
+                if (next == null) {
+                    ended = true;
+                } else {
+                    frame = next.array();
+                    if (sampleRate == 0) {
+                        sampleRate = AdtsFrameReader.getSampleRate(frame, 0);
+                    }
+                }
+            }
+            return frame;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer) throws IOException {
+            byte[] current = peek();
+            if (current == null) {
+                return -1;
+            }
+            int headerSize = AdtsFrameReader.getHeaderSize(current, 0);
+            buffer.clear();
+            buffer.put(current, headerSize, current.length - headerSize);
+            return current.length - headerSize;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return sampleRate == 0 ? 0 : frameIndex * 1024 * 1000000L / sampleRate;
+        }
+
+        @Override
+        public void advance() {
+            frame = null;
+            frameIndex++;
+        }
+    }
+}
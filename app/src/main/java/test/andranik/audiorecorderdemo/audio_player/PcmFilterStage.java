@@ -0,0 +1,31 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.IOException;
+
+/**
+ * A stage that passes (possibly modified) samples on to the next one. By default everything is
+ * forwarded unchanged, so taps like meters only override what they need.
+ */
+public abstract class PcmFilterStage implements PcmStage {
+
+    protected PcmStage next;
+
+    void setNext(PcmStage next) {
+        this.next = next;
+    }
+
+    @Override
+    public void onStart(PcmFormat format) throws IOException {
+        next.onStart(format);
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        next.onSamples(samples, offset, count);
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        next.onStop();
+    }
+}
@@ -0,0 +1,44 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+/**
+ * 16 bit PCM: sample rate and channel count. Samples are interleaved when there is more than one channel.
+ */
+public class PcmFormat {
+
+    public static final int BYTES_PER_SAMPLE = 2;
+
+    private final int sampleRate;
+    private final int channelCount;
+
+    public PcmFormat(int sampleRate, int channelCount) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * @return the number of interleaved samples (all channels) in {@code millis} of audio
+     */
+    public int samplesForMillis(int millis) {
+        return (int) ((long) sampleRate * millis / 1000) * channelCount;
+    }
+
+    /**
+     * @return the duration of {@code samples} interleaved samples
+     */
+    public long millisForSamples(long samples) {
+        return samples / channelCount * 1000 / sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + " Hz, " + channelCount + " ch";
+    }
+}
@@ -0,0 +1,43 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.IOException;
+
+/**
+ * Chains filter stages in front of a final stage, usually an encoder.
+ */
+public class PcmPipeline implements PcmStage {
+
+    private final PcmStage head;
+
+    /**
+     * @param stages every stage but the last has to be a {@link PcmFilterStage}
+     */
+    public PcmPipeline(PcmStage... stages) {
+        if (stages.length == 0) {
+            throw new IllegalArgumentException("A pipeline needs at least one stage");
+        }
+
+        for (int i = 0; i < stages.length - 1; i++) {
+            if (!(stages[i] instanceof PcmFilterStage)) {
+                throw new IllegalArgumentException(stages[i] + " can't pass samples on");
+            }
+            ((PcmFilterStage) stages[i]).setNext(stages[i + 1]);
+        }
+        head = stages[0];
+    }
+
+    @Override
+    public void onStart(PcmFormat format) throws IOException {
+        head.onStart(format);
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        head.onSamples(samples, offset, count);
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        head.onStop();
+    }
+}
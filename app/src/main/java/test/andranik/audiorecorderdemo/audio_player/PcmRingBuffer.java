@@ -0,0 +1,135 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Fixed size ring of 16 bit samples in a preallocated direct buffer, for exactly one writer thread
+ * and one reader thread. Neither side locks or allocates; when the reader falls behind, the samples
+ * that don't fit are dropped and counted as overrun.
+ */
+public class PcmRingBuffer {
+
+    private final int capacity;
+
+    // separate views so that each side moves its own position
+    private final ShortBuffer writeView;
+    private final ShortBuffer readView;
+
+    private volatile long written;
+    private volatile long read;
+    private volatile long overrun;
+
+    public PcmRingBuffer(int capacity) {
+        this.capacity = capacity;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity * PcmFormat.BYTES_PER_SAMPLE).order(ByteOrder.nativeOrder());
+        writeView = buffer.asShortBuffer();
+        readView = writeView.duplicate();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of samples written, less than {@code count} if the ring is full
+     */
+    public int write(short[] samples, int offset, int count) {
+        long writePosition = written;
+        int free = (int) (capacity - (writePosition - read));
+        int toWrite = Math.min(count, free);
+        if (toWrite < count) {
+            overrun += count - toWrite;
+        }
+        if (toWrite <= 0) {
+            return 0;
+        }
+
+        int index = (int) (writePosition % capacity);
+        int first = Math.min(toWrite, capacity - index);
+        writeView.position(index);
+        writeView.put(samples, offset, first);
+        if (toWrite > first) {
+            writeView.position(0);
+            writeView.put(samples, offset + first, toWrite - first);
+        }
+
+        written = writePosition + toWrite; // publishes the samples to the reader
+        return toWrite;
+    }
+
+    /**
+     * @return the number of samples read, 0 if the ring is empty
+     */
+    public int read(short[] samples, int offset, int count) {
+        long readPosition = read;
+        int toRead = (int) Math.min(count, written - readPosition);
+        if (toRead <= 0) {
+            return 0;
+        }
+
+        int index = (int) (readPosition % capacity);
+        int first = Math.min(toRead, capacity - index);
+        readView.position(index);
+        readView.get(samples, offset, first);
+        if (toRead > first) {
+            readView.position(0);
+            readView.get(samples, offset + first, toRead - first);
+        }
+
+        read = readPosition + toRead; // hands the space back to the writer
+        return toRead;
+    }
+
+    /**
+     * Drops the oldest unread samples so that at most {@code count} remain. Reader side only.
+     */
+    public void skipToLast(int count) {
+        long readPosition = read;
+        long available = written - readPosition;
+        if (available > count) {
+            read = readPosition + (available - count);
+        }
+    }
+
+    /**
+     * Drops the unread samples written before {@code position}, see {@link #getWritePosition()}.
+     * Reader side only.
+     */
+    public void skipTo(long position) {
+        long readPosition = read;
+        if (position > readPosition) {
+            read = Math.min(position, written);
+        }
+    }
+
+    /**
+     * @return the total number of samples written since the ring was created
+     */
+    public long getWritePosition() {
+        return written;
+    }
+
+    /**
+     * @return the total number of samples read or skipped since the ring was created
+     */
+    public long getReadPosition() {
+        return read;
+    }
+
+    /**
+     * @return the number of samples waiting to be read
+     */
+    public int available() {
+        return (int) (written - read);
+    }
+
+    /**
+     * @return the number of samples dropped because the ring was full
+     */
+    public long getOverrun() {
+        return overrun;
+    }
+}
@@ -0,0 +1,17 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.IOException;
+
+/**
+ * A step of the recording pipeline, fed with captured 16 bit PCM off the capture thread.
+ * Calls come from a single thread: {@link #onStart} once, {@link #onSamples} any number of
+ * times, then {@link #onStop} once. The samples array is reused, so copy what has to be kept.
+ */
+public interface PcmStage {
+
+    void onStart(PcmFormat format) throws IOException;
+
+    void onSamples(short[] samples, int offset, int count) throws IOException;
+
+    void onStop() throws IOException;
+}
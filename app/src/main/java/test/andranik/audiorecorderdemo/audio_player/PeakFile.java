@@ -0,0 +1,198 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The ".peaks" sidecar of a clip, so a waveform can be drawn without decoding. After a 12 byte header
+ * ("PEAK", version, peaks per second) comes either
+ * <ul>
+ * <li>version 1, streamed while recording: one little endian 16 bit peak (max absolute sample) per window</li>
+ * <li>version 2, a {@link PeakPyramid}: the level count, the length of every level, then all levels</li>
+ * </ul>
+ */
+public final class PeakFile {
+
+    static final String SUFFIX = ".peaks";
+    static final int HEADER_SIZE = 12;
+
+    private static final int MAGIC = 0x4b414550; // "PEAK" read as a little endian int
+    private static final int VERSION_PEAKS = 1;
+    private static final int VERSION_PYRAMID = 2;
+
+    private static final int MAX_LEVELS = 32;
+
+    private PeakFile() {
+    }
+
+    public static File forAudio(String audioPath) {
+        return new File(audioPath + SUFFIX);
+    }
+
+    /**
+     * @return the peaks stored for {@code audioPath} while recording, or null if there is no such sidecar
+     */
+    public static Peaks read(String audioPath) {
+        File file = forAudio(audioPath);
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] bytes = IOUtils.toByteArray(in);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION_PEAKS) {
+                return null;
+            }
+
+            int peaksPerSecond = buffer.getInt();
+            short[] peaks = new short[buffer.remaining() / 2];
+            buffer.asShortBuffer().get(peaks);
+            return new Peaks(peaksPerSecond, peaks);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Maps a version 2 sidecar read-only; the pyramid reads straight from the page cache.
+     *
+     * @return null if the file is missing, of another version or damaged
+     */
+    static PeakPyramid mapPyramid(File file) {
+        if (!file.exists() || file.length() < HEADER_SIZE + 4) {
+            return null;
+        }
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            MappedByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION_PYRAMID) {
+                return null;
+            }
+            int peaksPerSecond = mapped.getInt();
+            int levelCount = mapped.getInt();
+            if (peaksPerSecond <= 0 || levelCount <= 0 || levelCount > MAX_LEVELS || mapped.remaining() < levelCount * 4) {
+                return null;
+            }
+
+            int[] lengths = new int[levelCount];
+            long total = 0;
+            for (int i = 0; i < levelCount; i++) {
+                lengths[i] = mapped.getInt();
+                total += lengths[i];
+            }
+            if (total * 2 != mapped.remaining()) {
+                return null;
+            }
+
+            ShortBuffer data = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            return new PeakPyramid(peaksPerSecond, data, lengths);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(randomAccessFile); // the mapping stays valid
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Replaces {@code file} with {@code pyramid} atomically, so readers never map a half written file.
+     */
+    static void writePyramid(File file, PeakPyramid pyramid) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        int levelCount = pyramid.getLevelCount();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 + levelCount * 4).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION_PYRAMID).putInt(pyramid.getPeaksPerSecond()).putInt(levelCount);
+        for (int i = 0; i < levelCount; i++) {
+            header.putInt(pyramid.getLength(i));
+        }
+
+        ShortBuffer data = pyramid.getData().duplicate();
+        data.rewind();
+        ByteBuffer body = ByteBuffer.allocate(data.remaining() * 2).order(ByteOrder.LITTLE_ENDIAN);
+        body.asShortBuffer().put(data);
+
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(header.array());
+            out.write(body.array());
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    public static class Peaks {
+        public final int peaksPerSecond;
+        public final short[] peaks;
+
+        Peaks(int peaksPerSecond, short[] peaks) {
+            this.peaksPerSecond = peaksPerSecond;
+            this.peaks = peaks;
+        }
+    }
+
+    /**
+     * Appends peaks through a small fixed buffer.
+     */
+    static class Writer {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[2];
+
+        Writer(File file, int peaksPerSecond) throws IOException {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+
+            byte[] header = new byte[HEADER_SIZE];
+            ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(MAGIC)
+                    .putInt(VERSION_PEAKS)
+                    .putInt(peaksPerSecond);
+            out.write(header);
+        }
+
+        void write(short peak) throws IOException {
+            buffer[0] = (byte) peak;
+            buffer[1] = (byte) (peak >> 8);
+            out.write(buffer, 0, 2);
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Peaks of a clip at several resolutions: level 0 has one peak per window, every next level the
+ * max of two neighbours of the previous one. Drawing reads from the coarsest level that still has
+ * enough peaks for the requested width, so a thumbnail costs about as much as its pixel count.
+ * All levels live in one {@link ShortBuffer}, usually a memory-mapped {@link PeakFile}.
+ */
+public class PeakPyramid {
+
+    static final int MIN_LEVEL_SIZE = 32;
+
+    private final int peaksPerSecond;
+    private final ShortBuffer data;
+    private final int[] offsets;
+    private final int[] lengths;
+
+    PeakPyramid(int peaksPerSecond, ShortBuffer data, int[] lengths) {
+        this.peaksPerSecond = peaksPerSecond;
+        this.data = data;
+        this.lengths = lengths;
+
+        offsets = new int[lengths.length];
+        for (int i = 1; i < lengths.length; i++) {
+            offsets[i] = offsets[i - 1] + lengths[i - 1];
+        }
+    }
+
+    /**
+     * @param base {@code count} peaks of the finest level
+     */
+    static PeakPyramid build(short[] base, int count, int peaksPerSecond) {
+        int levelCount = 1;
+        int total = count;
+        for (int length = count; length > MIN_LEVEL_SIZE; length = (length + 1) / 2) {
+            levelCount++;
+            total += (length + 1) / 2;
+        }
+
+        short[] data = new short[total];
+        int[] lengths = new int[levelCount];
+        System.arraycopy(base, 0, data, 0, count);
+        lengths[0] = count;
+
+        int previous = 0;
+        int offset = count;
+        for (int level = 1; level < levelCount; level++) {
+            int previousLength = lengths[level - 1];
+            int length = (previousLength + 1) / 2;
+            for (int i = 0; i < length; i++) {
+                int a = data[previous + i * 2];
+                int b = i * 2 + 1 < previousLength ? data[previous + i * 2 + 1] : 0;
+                data[offset + i] = (short) Math.max(a, b);
+            }
+            lengths[level] = length;
+            previous = offset;
+            offset += length;
+        }
+
+        return new PeakPyramid(peaksPerSecond, ShortBuffer.wrap(data), lengths);
+    }
+
+    public int getPeaksPerSecond() {
+        return peaksPerSecond;
+    }
+
+    public int getLevelCount() {
+        return lengths.length;
+    }
+
+    public int getLength(int level) {
+        return lengths[level];
+    }
+
+    public long getDurationMillis() {
+        return lengths[0] * 1000L / peaksPerSecond;
+    }
+
+    ShortBuffer getData() {
+        return data;
+    }
+
+    /**
+     * @return exactly {@code width} peaks (0..32767) covering the whole clip
+     */
+    public short[] getPeaks(int width) {
+        short[] peaks = new short[width];
+        if (lengths[0] == 0 || width == 0) {
+            return peaks;
+        }
+
+        int level = 0;
+        while (level + 1 < lengths.length && lengths[level + 1] >= width) {
+            level++;
+        }
+
+        int offset = offsets[level];
+        int length = lengths[level];
+        for (int i = 0; i < width; i++) {
+            int start = (int) ((long) i * length / width);
+            int end = Math.max(start + 1, (int) ((long) (i + 1) * length / width));
+
+            short max = 0;
+            for (int j = start; j < end; j++) {
+                short peak = data.get(offset + j); // absolute reads, safe to share between threads
+                if (peak > max) {
+                    max = peak;
+                }
+            }
+            peaks[i] = max;
+        }
+        return peaks;
+    }
+}
@@ -0,0 +1,124 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
+
+/**
+ * Warms the cache with clips the user is likely to play, within a byte budget and
+ * only while the {@link NetworkPolicy} allows it.
+ */
+class Prefetcher implements DownloadScheduler.PrefetchGate {
+
+    public static final long DEFAULT_BYTE_BUDGET = 20 * 1024 * 1024;
+
+    private final AudioDownloader downloader;
+
+    private final Map<String, PrefetchListener> queued = new HashMap<>();
+
+    private NetworkPolicy networkPolicy;
+
+    private long byteBudget = DEFAULT_BYTE_BUDGET;
+    private long bytesUsed;
+
+    Prefetcher(AudioDownloader downloader) {
+        this.downloader = downloader;
+        downloader.setPrefetchGate(this);
+    }
+
+    synchronized void setNetworkPolicy(NetworkPolicy networkPolicy) {
+        this.networkPolicy = networkPolicy;
+    }
+
+    synchronized void setByteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Starts counting the budget from zero again, e.g. once a day or per screen.
+     */
+    synchronized void resetBudget() {
+        bytesUsed = 0;
+    }
+
+    void prefetch(List<String> urls, int priority) {
+        for (String url : urls) {
+            PrefetchListener listener;
+            synchronized (this) {
+                if (queued.containsKey(url)) {
+                    continue;
+                }
+                listener = new PrefetchListener(url);
+                queued.put(url, listener);
+            }
+            downloader.prefetch(url, listener, priority).subscribe(enqueued -> {
+                if (!enqueued) {
+                    onPrefetchFinished(listener, 0); // cached already, may be prefetched again once evicted
+                }
+            }, e -> {
+                onPrefetchFinished(listener, 0);
+                ExceptionTracker.trackException(e);
+            });
+        }
+    }
+
+    void cancel() {
+        PrefetchListener[] listeners;
+        synchronized (this) {
+            listeners = queued.values().toArray(new PrefetchListener[queued.size()]);
+            queued.clear();
+        }
+
+        for (PrefetchListener listener : listeners) {
+            downloader.cancelDownload(listener.url, listener);
+        }
+    }
+
+    @Override
+    public synchronized boolean canStartPrefetch() {
+        if (bytesUsed >= byteBudget) {
+            return false;
+        }
+        return networkPolicy == null || networkPolicy.isPrefetchAllowed();
+    }
+
+    private synchronized void onPrefetchFinished(PrefetchListener listener, long size) {
+        if (queued.get(listener.url) == listener) {
+            queued.remove(listener.url);
+        }
+        bytesUsed += size;
+    }
+
+    private class PrefetchListener implements AudioDownloader.AudioDownloadListener {
+        private final String url;
+
+        private PrefetchListener(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void onAudioDownloadStarted(String path) {
+        }
+
+        @Override
+        public void onAudioDownloadFinished(String path, boolean successful) {
+            long size = successful ? AudioUtils.getCache().sizeOf(new File(path).getName()) : 0;
+            onPrefetchFinished(this, size);
+        }
+
+        @Override
+        public void onAudioDownloadProgress(String path, int percentPlayed) {
+        }
+
+        @Override
+        public void onAudioDownloadError(Throwable e) {
+        }
+
+        @Override
+        public void onAudioDownloadComplete(String url) {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.support.annotation.MainThread;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * One timer for the progress of every active player and recorder. Ticks every {@link #TICK_MS} on
+ * a display frame through {@link Choreographer}, on the main thread, and only while a session is
+ * registered. Sessions read the real media position on each tick.
+ */
+@MainThread
+final class ProgressClock {
+
+    static final long TICK_MS = 100;
+
+    interface Session {
+        void onTick();
+    }
+
+    private static ProgressClock instance;
+
+    private final ArrayList<Session> sessions = new ArrayList<>();
+
+    private boolean scheduled;
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            scheduled = false;
+
+            // backwards and bounds checked, sessions may remove themselves while ticking
+            for (int i = sessions.size() - 1; i >= 0; i--) {
+                if (i < sessions.size()) {
+                    sessions.get(i).onTick();
+                }
+            }
+            schedule();
+        }
+    };
+
+    private ProgressClock() {
+    }
+
+    static ProgressClock getInstance() {
+        if (instance == null) {
+            instance = new ProgressClock();
+        }
+        return instance;
+    }
+
+    void add(Session session) {
+        if (!sessions.contains(session)) {
+            sessions.add(session);
+        }
+        schedule();
+    }
+
+    void remove(Session session) {
+        sessions.remove(session);
+    }
+
+    private void schedule() {
+        if (!scheduled && !sessions.isEmpty()) {
+            scheduled = true;
+            Choreographer.getInstance().postFrameCallbackDelayed(frameCallback, TICK_MS);
+        }
+    }
+}
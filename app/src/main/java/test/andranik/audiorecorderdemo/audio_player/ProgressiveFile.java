@@ -0,0 +1,108 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * A file that is still being downloaded, shared between the download thread writing it and
+ * the readers streaming it. Readers block until the bytes they need have reached the disk.
+ */
+class ProgressiveFile {
+
+    private static final long WAIT_SLICE_MILLIS = 250;
+
+    private File file;
+    private long available;
+    private long contentLength = -1;
+    private boolean completed;
+    private IOException error;
+
+    ProgressiveFile(File partFile) {
+        this.file = partFile;
+    }
+
+    /**
+     * @param available number of bytes from the start of the file that are on disk
+     */
+    synchronized void onProgress(long available, long contentLength) {
+        if (completed) {
+            return;
+        }
+        this.contentLength = contentLength;
+        if (available != this.available) {
+            this.available = available;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @param completedFile where the data lives now that the ".part" file was moved into the cache
+     */
+    synchronized void onCompleted(File completedFile) {
+        if (completed) {
+            return;
+        }
+        file = completedFile;
+        available = completedFile.length(); // onProgress() may have missed the tail, or never been called
+        contentLength = available;
+        completed = true;
+        notifyAll();
+    }
+
+    synchronized void onFailed(IOException e) {
+        error = e;
+        notifyAll();
+    }
+
+    synchronized long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Opens the data for reading. Files that are already open keep working after the download
+     * renames the ".part" file, so this only has to be synchronized with the rename itself.
+     */
+    synchronized RandomAccessFile open() throws IOException {
+        return new RandomAccessFile(file, "r");
+    }
+
+    /**
+     * Maps the data once the download is complete, see {@link AudioUtils#map(File, long, long)}.
+     *
+     * @return null while it is still being written
+     */
+    synchronized ByteBuffer mapCompleted() throws IOException {
+        return completed ? AudioUtils.map(file, 0, contentLength) : null;
+    }
+
+    /**
+     * Blocks until the byte at {@code position} is on disk or the download ends.
+     *
+     * @param reader checked between waits, so that closing a reader releases it
+     * @return the number of bytes available from the start of the file
+     */
+    synchronized long awaitAvailable(long position, Reader reader) throws IOException {
+        while (available <= position && !completed) {
+            if (error != null) {
+                throw error;
+            }
+            if (reader.isClosed()) {
+                throw new InterruptedIOException("reader closed");
+            }
+
+            try {
+                wait(WAIT_SLICE_MILLIS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        return available;
+    }
+
+    interface Reader {
+        boolean isClosed();
+    }
+}
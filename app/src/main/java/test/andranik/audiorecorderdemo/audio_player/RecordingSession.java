@@ -0,0 +1,216 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Observable;
+import rx.exceptions.Exceptions;
+import rx.schedulers.Schedulers;
+import rx.subjects.AsyncSubject;
+import test.andranik.audiorecorderdemo.App;
+
+/**
+ * One recording and its own file, returned by {@link AudioRecorder#startRecording()}. Files are
+ * never reused, so the next recording can start while this one is still being uploaded or
+ * encoded. Once done with it, {@link #moveToCache(String)} or {@link #delete()} it.
+ */
+public class RecordingSession {
+
+    private static final String RECORDINGS_DIR = "recordings";
+
+    private static final String TRANSCODED_EXTENSION = ".aac"; // Transcoder writes ADTS
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    private volatile String fileName;
+
+    private final AsyncSubject<RecordingSession> finished = AsyncSubject.create();
+
+    private volatile boolean stopped;
+
+    private RecordingSession(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * @param extension e.g. ".m4a"
+     */
+    static RecordingSession create(String extension) {
+        return new RecordingSession(newFile(extension).getAbsolutePath());
+    }
+
+    private static File newFile(String extension) {
+        File dir = getRecordingsDir();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        String name = System.currentTimeMillis() + "-" + sequence.incrementAndGet() + extension;
+        return new File(dir, name);
+    }
+
+    private static File getRecordingsDir() {
+        return new File(App.getInstance().getFilesDir().getAbsoluteFile(), RECORDINGS_DIR);
+    }
+
+    /**
+     * @return the recorded file, in the cache directory after {@link #moveToCache(String)}
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean isRecording() {
+        return !stopped;
+    }
+
+    /**
+     * Emits this session once the file is complete, or an error if the recording failed. It is safe
+     * to hand the file to an upload or an encoder from then on.
+     */
+    public Observable<RecordingSession> whenFinished() {
+        return finished.asObservable();
+    }
+
+    /**
+     * Called on the main thread by the recorder once the file is finalized.
+     */
+    void onStopped(boolean successful) {
+        stopped = true;
+        if (successful) {
+            finished.onNext(this);
+            finished.onCompleted();
+        } else {
+            delete();
+            finished.onError(new IOException("Recording failed: " + fileName));
+        }
+    }
+
+    /**
+     * Moves the finished recording into the cache as the clip of {@code url}, e.g. the url it was
+     * uploaded to, so playing that url needs no download. The file appears in the cache only once
+     * it is complete there. Don't call it while the file is still being uploaded.
+     *
+     * @return the new path of the file, also returned by {@link #getFileName()} from then on
+     */
+    public Observable<String> moveToCache(String url) {
+        return whenFinished()
+                .observeOn(Schedulers.io())
+                .map(session -> {
+                    try {
+                        return moveToCacheBlocking(url);
+                    } catch (IOException e) {
+                        throw Exceptions.propagate(e);
+                    }
+                });
+    }
+
+    private synchronized String moveToCacheBlocking(String url) throws IOException {
+        File file = new File(fileName);
+        if (!getRecordingsDir().equals(file.getParentFile())) {
+            return fileName; // moved already
+        }
+
+        // through the partial file, which the cache ignores, so the entry never shows up half copied
+        AudioUtils.ensureAudioDir();
+        File partial = new File(AudioUtils.getPartialFilePath(url));
+        move(file, partial);
+        File target = new File(AudioUtils.getAudioDirPath(), AudioUtils.getFileNameFromUri(url));
+        if (!partial.renameTo(target)) {
+            partial.delete();
+            throw new IOException("Could not rename " + partial + " to " + target);
+        }
+        String cachedPath = AudioUtils.onFileCached(url);
+
+        moveSidecar(PeakFile.forAudio(file.getPath()), PeakFile.forAudio(cachedPath));
+        moveSidecar(FrameIndex.forAudio(file.getPath()), FrameIndex.forAudio(cachedPath));
+        moveSidecar(Loudness.forAudio(file.getPath()), Loudness.forAudio(cachedPath));
+        AudioUtils.getWaveformIndex().invalidate(file.getPath());
+
+        fileName = cachedPath;
+        return cachedPath;
+    }
+
+    /**
+     * Blocking: re-encodes the finished file to {@code profile} with {@link Transcoder}, into a new
+     * file that replaces the current one once it is complete.
+     *
+     * @return the new path of the file, also returned by {@link #getFileName()} from then on
+     */
+    synchronized String transcode(EncodingProfile profile) throws IOException {
+        File file = new File(fileName);
+        if (!getRecordingsDir().equals(file.getParentFile())) {
+            Transcoder.transcodeInPlace(fileName, profile); // managed by the cache now
+            return fileName;
+        }
+        if (!Transcoder.needsTranscoding(fileName, profile)) {
+            return fileName;
+        }
+
+        File target = newFile(TRANSCODED_EXTENSION);
+        Transcoder.transcode(fileName, target, profile);
+        delete();
+
+        fileName = target.getAbsolutePath();
+        FrameIndex.build(fileName);
+        return fileName;
+    }
+
+    /**
+     * Renames {@code from}, or copies it when {@code to} is on another file system (app files vs. external storage).
+     */
+    private static void move(File from, File to) throws IOException {
+        if (from.renameTo(to)) {
+            return;
+        }
+        try {
+            FileUtils.copyFile(from, to);
+        } catch (IOException e) {
+            to.delete();
+            throw e;
+        }
+        from.delete();
+    }
+
+    private static void moveSidecar(File from, File to) {
+        if (!from.exists()) {
+            return;
+        }
+        try {
+            if (to.exists()) {
+                from.delete(); // the same content was cached already, with its own sidecar
+            } else {
+                move(from, to);
+            }
+        } catch (IOException e) {
+            from.delete(); // sidecars are rebuilt on demand
+        }
+    }
+
+    /**
+     * Base64 encodes the file into {@code out}, see {@link AudioUtils#writeBase64(File, OutputStream)}.
+     */
+    public void writeBase64(OutputStream out) throws IOException {
+        AudioUtils.writeBase64(new File(fileName), out);
+    }
+
+    /**
+     * Deletes the file and its sidecars, unless it was moved to the cache, which manages it from then on.
+     */
+    public synchronized boolean delete() {
+        File file = new File(fileName);
+        if (!getRecordingsDir().equals(file.getParentFile())) {
+            return false;
+        }
+
+        PeakFile.forAudio(fileName).delete();
+        FrameIndex.forAudio(fileName).delete();
+        Loudness.forAudio(fileName).delete();
+        AudioUtils.getWaveformIndex().invalidate(fileName);
+        return file.delete();
+    }
+}
@@ -0,0 +1,211 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.IOException;
+
+/**
+ * Converts the samples to another sample rate and channel count. Channels are mixed first (down to
+ * mono by averaging, up by repeating), then every output frame is interpolated with a Blackman
+ * windowed sinc whose cutoff is below the lower of the two Nyquist frequencies, so downsampling
+ * doesn't alias. Output positions are kept as exact fractions of input frames, so long inputs don't
+ * drift. Plain Java; the history buffer only holds one input chunk plus the kernel width.
+ */
+public class Resampler extends PcmFilterStage {
+
+    private static final int ZERO_CROSSINGS = 8; // of the sinc on each side of the center
+    private static final int PHASES = 256; // kernels precomputed between two input frames
+    private static final double CUTOFF = 0.95; // of the lower Nyquist frequency, leaves room for the transition band
+
+    private static final int CHUNK_FRAMES = 1024;
+
+    private final int outputRate;
+    private final int outputChannels;
+
+    private int inputRate;
+    private int inputChannels;
+    private boolean passThrough;
+
+    private float[][] kernels; // [phase][tap]
+    private int halfTaps;
+
+    private float[] history; // mixed input frames, interleaved
+    private int historyFrames;
+    private long historyStart; // input frame of history[0]
+    private long inputFrames; // received so far
+    private long outputFrames; // produced so far
+
+    private short[] output;
+    private int outputCount;
+
+    public Resampler(int outputRate, int outputChannels) {
+        this.outputRate = outputRate;
+        this.outputChannels = outputChannels;
+    }
+
+    @Override
+    public void onStart(PcmFormat format) throws IOException {
+        inputRate = format.getSampleRate();
+        inputChannels = format.getChannelCount();
+        passThrough = inputRate == outputRate && inputChannels == outputChannels;
+
+        if (!passThrough) {
+            buildKernels();
+            history = new float[(CHUNK_FRAMES + 2 * halfTaps) * outputChannels];
+            historyFrames = halfTaps; // silence before the first frame
+            historyStart = -halfTaps;
+            inputFrames = 0;
+            outputFrames = 0;
+            output = new short[CHUNK_FRAMES * outputChannels];
+            outputCount = 0;
+        }
+
+        next.onStart(new PcmFormat(outputRate, outputChannels));
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        if (passThrough) {
+            next.onSamples(samples, offset, count);
+            return;
+        }
+
+        int frames = count / inputChannels;
+        while (frames > 0) {
+            int chunk = Math.min(frames, CHUNK_FRAMES);
+            append(samples, offset, chunk);
+            inputFrames += chunk;
+            offset += chunk * inputChannels;
+            frames -= chunk;
+
+            resample(inputFrames);
+        }
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        if (!passThrough) {
+            // silence after the last frame, so its kernels are complete
+            ensureCapacity(halfTaps);
+            for (int i = historyFrames * outputChannels; i < (historyFrames + halfTaps) * outputChannels; i++) {
+                history[i] = 0;
+            }
+            historyFrames += halfTaps;
+            resample(inputFrames);
+            flush();
+        }
+
+        next.onStop();
+    }
+
+    private void buildKernels() {
+        double cutoff = CUTOFF * Math.min(1.0, (double) outputRate / inputRate); // of the input Nyquist frequency
+        double halfWidth = ZERO_CROSSINGS / cutoff; // in input frames
+        halfTaps = (int) Math.ceil(halfWidth);
+
+        kernels = new float[PHASES][2 * halfTaps];
+        for (int phase = 0; phase < PHASES; phase++) {
+            double fraction = (double) phase / PHASES;
+            double sum = 0;
+            for (int tap = 0; tap < 2 * halfTaps; tap++) {
+                double t = tap - halfTaps + 1 - fraction; // distance of the input frame from the output position
+                double value = Math.abs(t) >= halfWidth ? 0 : sinc(cutoff * t) * blackman(t / halfWidth);
+                kernels[phase][tap] = (float) value;
+                sum += value;
+            }
+            for (int tap = 0; tap < 2 * halfTaps; tap++) {
+                kernels[phase][tap] /= sum; // unity gain at DC
+            }
+        }
+    }
+
+    private static double sinc(double x) {
+        return x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    /**
+     * @param x -1..1
+     */
+    private static double blackman(double x) {
+        return 0.42 + 0.5 * Math.cos(Math.PI * x) + 0.08 * Math.cos(2 * Math.PI * x);
+    }
+
+    private void append(short[] samples, int offset, int frames) {
+        ensureCapacity(frames);
+        int out = historyFrames * outputChannels;
+        for (int frame = 0; frame < frames; frame++) {
+            int in = offset + frame * inputChannels;
+            if (outputChannels == 1) {
+                int sum = 0;
+                for (int c = 0; c < inputChannels; c++) {
+                    sum += samples[in + c];
+                }
+                history[out++] = (float) sum / inputChannels;
+            } else {
+                for (int c = 0; c < outputChannels; c++) {
+                    history[out++] = samples[in + c % inputChannels];
+                }
+            }
+        }
+        historyFrames += frames;
+    }
+
+    /**
+     * Produces every output frame whose kernel lies within the history, then drops the frames
+     * no later output needs.
+     */
+    private void resample(long endFrame) throws IOException {
+        long available = historyStart + historyFrames; // first input frame not in the history
+        while (true) {
+            long position = outputFrames * inputRate; // in 1/outputRate input frames
+            long frame = position / outputRate;
+            if (frame >= endFrame || frame + halfTaps >= available) {
+                break;
+            }
+
+            float[] kernel = kernels[(int) (position % outputRate * PHASES / outputRate)];
+            int first = (int) (frame - halfTaps + 1 - historyStart);
+            for (int c = 0; c < outputChannels; c++) {
+                float sum = 0;
+                int index = first * outputChannels + c;
+                for (float weight : kernel) {
+                    sum += weight * history[index];
+                    index += outputChannels;
+                }
+                output[outputCount++] = clip(sum);
+            }
+            outputFrames++;
+
+            if (outputCount == output.length) {
+                flush();
+            }
+        }
+
+        long keepFrom = outputFrames * inputRate / outputRate - halfTaps + 1;
+        int drop = (int) Math.max(0, Math.min(keepFrom - historyStart, historyFrames));
+        if (drop > 0) {
+            System.arraycopy(history, drop * outputChannels, history, 0, (historyFrames - drop) * outputChannels);
+            historyFrames -= drop;
+            historyStart += drop;
+        }
+    }
+
+    private void ensureCapacity(int frames) {
+        int needed = (historyFrames + frames) * outputChannels;
+        if (needed > history.length) {
+            float[] grown = new float[needed];
+            System.arraycopy(history, 0, grown, 0, historyFrames * outputChannels);
+            history = grown;
+        }
+    }
+
+    private static short clip(float sample) {
+        int rounded = Math.round(sample);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, rounded));
+    }
+
+    private void flush() throws IOException {
+        if (outputCount > 0) {
+            next.onSamples(output, 0, outputCount);
+            outputCount = 0;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+import rx.Observable;
+import rx.exceptions.Exceptions;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Fetches a file as several concurrent byte ranges, each one written straight into its offset
+ * of a preallocated file. Only used when a HEAD request shows that the server supports ranges.
+ * Completed segments are recorded in the {@link PartialDownload} sidecar, so a retry or a later
+ * request fetches only the ranges that are still missing.
+ */
+class SegmentedDownload {
+
+    static final long MIN_SEGMENT_SIZE = 256 * 1024;
+
+    private static final int SEGMENT_BUFFER_SIZE = 16 * 1024;
+    private static final long PROGRESS_STEP = 64 * 1024; // bytes a segment reads before reporting
+
+    private final OkHttpClient client;
+    private final String url;
+    private final Probe probe;
+
+    private SegmentedDownload(OkHttpClient client, String url, Probe probe) {
+        this.client = client;
+        this.url = url;
+        this.probe = probe;
+    }
+
+    /**
+     * Sends a HEAD request to find out the content length and whether ranges can be used.
+     *
+     * @return the download, or null if the file must be fetched as a single stream
+     */
+    static SegmentedDownload prepare(OkHttpClient client, String url, int segmentCount) throws IOException {
+        Request request = new Request.Builder().url(url).head().build();
+
+        Response response = client.newCall(request).execute();
+        try {
+            if (!response.isSuccessful() || !"bytes".equalsIgnoreCase(response.header("Accept-Ranges"))) {
+                return null;
+            }
+
+            long contentLength = parseLong(response.header("Content-Length"));
+            if (contentLength < MIN_SEGMENT_SIZE * 2) {
+                return null;
+            }
+
+            Probe probe = new Probe();
+            probe.contentLength = contentLength;
+            probe.etag = response.header("ETag");
+            probe.lastModified = response.header("Last-Modified");
+            probe.segmentCount = (int) Math.min(segmentCount, contentLength / MIN_SEGMENT_SIZE);
+
+            return new SegmentedDownload(client, url, probe);
+        } finally {
+            response.close();
+        }
+    }
+
+    long getContentLength() {
+        return probe.contentLength;
+    }
+
+    /**
+     * Keeps the ranges an earlier attempt completed in {@code partial} if the remote file is still
+     * the same one, otherwise starts it over for this version of the file.
+     */
+    void resume(PartialDownload partial) throws IOException {
+        if (!partial.hasRangesOf(probe.contentLength, probe.etag, probe.lastModified)) {
+            partial.reset();
+            partial.setValidators(probe.etag, probe.lastModified);
+            partial.setContentLength(probe.contentLength);
+        }
+        partial.save();
+    }
+
+    /**
+     * Downloads the ranges still missing from {@code partial} into its ".part" file, which is
+     * preallocated to the full length first. Call {@link #resume(PartialDownload)} before.
+     * Each segment runs as a worker of {@code task}, see {@link DownloadTask#asWorker(Observable)}.
+     *
+     * @return an observable emitting the number of bytes fetched since the previous emission,
+     * serialized across segments
+     */
+    Observable<Long> download(PartialDownload partial, DownloadTask task) {
+        return Observable.using(
+                () -> {
+                    try {
+                        return openPreallocated(partial.getPartFile());
+                    } catch (IOException e) {
+                        throw Exceptions.propagate(e);
+                    }
+                },
+                channel -> Observable.from(getSegments(partial))
+                        .flatMap(segment -> task.asWorker(fetchSegment(channel, partial, segment[0], segment[1]))
+                                .subscribeOn(Schedulers.io()))
+                        .doOnCompleted(() -> forceQuietly(channel)),
+                SegmentedDownload::closeQuietly);
+    }
+
+    /**
+     * Splits the missing ranges into segments of about a {@code segmentCount}th of the file,
+     * which is all of them on the first attempt.
+     */
+    private List<long[]> getSegments(PartialDownload partial) {
+        long segmentSize = probe.contentLength / probe.segmentCount;
+
+        List<long[]> segments = new ArrayList<>();
+        for (long[] missing : partial.getMissingRanges()) {
+            long length = missing[1] - missing[0] + 1;
+            long count = Math.max(1, length / segmentSize);
+            for (long index = 0; index < count; index++) {
+                long start = missing[0] + index * (length / count);
+                long end = index == count - 1 ? missing[1] : start + length / count - 1;
+                segments.add(new long[]{start, end});
+            }
+        }
+        return segments;
+    }
+
+    private Observable<Long> fetchSegment(FileChannel channel, PartialDownload partial, long start, long end) {
+        return Observable.create(subscriber -> {
+            Request.Builder requestBuilder = new Request.Builder()
+                    .url(url)
+                    .header("Range", "bytes=" + start + "-" + end);
+
+            // makes the server send the whole file (and us fail) instead of mixing two versions
+            String ifRange = probe.etag != null && !probe.etag.startsWith("W/") ? probe.etag : probe.lastModified;
+            if (ifRange != null) {
+                requestBuilder.header("If-Range", ifRange);
+            }
+
+            Response response = null;
+            try {
+                Call call = client.newCall(requestBuilder.build());
+                subscriber.add(Subscriptions.create(call::cancel)); // a cancelled download must not stay blocked in a read
+                response = call.execute();
+                if (response.code() != 206) {
+                    throw new IOException("Range " + start + "-" + end + " of " + url
+                            + " was answered with " + response.code());
+                }
+
+                BufferedSource source = response.body().source();
+                byte[] bytes = new byte[SEGMENT_BUFFER_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long position = start;
+                long unreported = 0;
+                int read;
+                while (position <= end && !subscriber.isUnsubscribed() && (read = source.read(bytes, 0, (int) Math.min(bytes.length, end - position + 1))) != -1) {
+                    buffer.clear();
+                    buffer.limit(read);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+
+                    unreported += read;
+                    if (unreported >= PROGRESS_STEP) {
+                        subscriber.onNext(unreported);
+                        unreported = 0;
+                    }
+                }
+
+                if (subscriber.isUnsubscribed()) {
+                    return;
+                }
+                if (position != end + 1) {
+                    throw new IOException("Range " + start + "-" + end + " of " + url + " ended at " + position);
+                }
+
+                channel.force(false); // the sidecar must never claim bytes that aren't on the disk
+                synchronized (partial) {
+                    partial.addCompletedRange(start, end);
+                    partial.save();
+                }
+
+                if (unreported > 0) {
+                    subscriber.onNext(unreported);
+                }
+                subscriber.onCompleted();
+            } catch (IOException e) {
+                subscriber.onError(e);
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+        });
+    }
+
+    private FileChannel openPreallocated(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(probe.contentLength);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        return randomAccessFile.getChannel();
+    }
+
+    private static void forceQuietly(FileChannel channel) {
+        try {
+            channel.force(false);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Probe {
+        long contentLength;
+        String etag;
+        String lastModified;
+        int segmentCount;
+    }
+}
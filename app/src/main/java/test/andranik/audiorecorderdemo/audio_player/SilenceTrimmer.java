@@ -0,0 +1,248 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.IOException;
+
+/**
+ * Voice activity detection on 20 ms frames: a frame is speech when its RMS reaches the energy
+ * threshold, or half of it with a zero-crossing rate typical for fricatives ("s", "f") that carry
+ * little energy. Leading and trailing silence is dropped except for {@link #setPaddingMillis padding},
+ * pauses longer than {@link #setMaxPauseMillis} are shortened to their start and end.
+ * <p>
+ * Streaming with a bounded holdback: at most the padding before speech and one maximal pause are
+ * held back, in buffers allocated in {@link #onStart(PcmFormat)}. The output only depends on the input
+ * samples, so it can be checked with synthetic PCM on the JVM.
+ */
+public class SilenceTrimmer extends PcmFilterStage {
+
+    public static final int DEFAULT_ENERGY_THRESHOLD = 300; // RMS in sample units, about -40 dBFS
+    public static final int DEFAULT_PADDING_MILLIS = 200;
+    public static final int MAX_HOLDBACK_MILLIS = 5000; // longest pause kept as is
+
+    private static final int FRAME_MILLIS = 20;
+    private static final int FRICATIVE_CROSSINGS_PER_SECOND = 3000;
+
+    private static final int STATE_LEADING = 0;
+    private static final int STATE_SPEECH = 1;
+    private static final int STATE_PAUSE = 2;
+
+    private final int energyThreshold;
+
+    private int paddingMillis = DEFAULT_PADDING_MILLIS;
+    private int maxPauseMillis = MAX_HOLDBACK_MILLIS;
+
+    private PcmFormat format;
+    private short[] frame;
+    private int frameFill;
+
+    private int paddingFrames;
+    private FrameRing leadRing;
+    private FrameRing pauseRing;
+
+    private int state;
+    private int pauseFrames;
+
+    private long speechFrames;
+
+    public SilenceTrimmer() {
+        this(DEFAULT_ENERGY_THRESHOLD);
+    }
+
+    public SilenceTrimmer(int energyThreshold) {
+        this.energyThreshold = energyThreshold;
+    }
+
+    /**
+     * Silence kept before the first and after the last speech frame, and at both ends of a shortened pause.
+     */
+    public void setPaddingMillis(int paddingMillis) {
+        this.paddingMillis = paddingMillis;
+    }
+
+    /**
+     * Pauses inside the speech longer than this are shortened, keeping their start and end.
+     * Capped at {@link #MAX_HOLDBACK_MILLIS}, which is also the default.
+     */
+    public void setMaxPauseMillis(int maxPauseMillis) {
+        this.maxPauseMillis = Math.min(maxPauseMillis, MAX_HOLDBACK_MILLIS);
+    }
+
+    /**
+     * @return whether any speech was found since {@link #onStart(PcmFormat)}
+     */
+    public boolean hasSpeech() {
+        return speechFrames > 0;
+    }
+
+    @Override
+    public void onStart(PcmFormat format) throws IOException {
+        this.format = format;
+
+        int frameSamples = format.samplesForMillis(FRAME_MILLIS);
+        frame = new short[frameSamples];
+        frameFill = 0;
+
+        paddingFrames = paddingMillis / FRAME_MILLIS;
+        int pauseRingFrames = Math.max(0, Math.max(maxPauseMillis, paddingMillis * 2) / FRAME_MILLIS - paddingFrames * 2);
+        leadRing = new FrameRing(paddingFrames, frameSamples);
+        pauseRing = new FrameRing(paddingFrames + pauseRingFrames, frameSamples);
+
+        state = STATE_LEADING;
+        pauseFrames = 0;
+        speechFrames = 0;
+
+        super.onStart(format);
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        while (count > 0) {
+            int toCopy = Math.min(count, frame.length - frameFill);
+            System.arraycopy(samples, offset, frame, frameFill, toCopy);
+            frameFill += toCopy;
+            offset += toCopy;
+            count -= toCopy;
+
+            if (frameFill == frame.length) {
+                onFrame(frame, frameFill);
+                frameFill = 0;
+            }
+        }
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        if (frameFill > 0 && state == STATE_SPEECH) {
+            next.onSamples(frame, 0, frameFill); // a partial last frame only survives inside speech
+        }
+        frameFill = 0;
+
+        // whatever is held back is leading or trailing silence
+        leadRing.clear();
+        pauseRing.clear();
+        super.onStop();
+    }
+
+    private void onFrame(short[] samples, int count) throws IOException {
+        boolean speech = isSpeech(samples, count);
+
+        switch (state) {
+            case STATE_LEADING:
+                if (speech) {
+                    leadRing.flushTo(next);
+                    emitSpeech(samples, count);
+                } else {
+                    leadRing.add(samples, count);
+                }
+                break;
+
+            case STATE_SPEECH:
+                if (speech) {
+                    emitSpeech(samples, count);
+                } else {
+                    state = STATE_PAUSE;
+                    pauseFrames = 0;
+                    onPauseFrame(samples, count);
+                }
+                break;
+
+            case STATE_PAUSE:
+                if (speech) {
+                    pauseRing.flushTo(next);
+                    emitSpeech(samples, count);
+                } else {
+                    onPauseFrame(samples, count);
+                }
+                break;
+        }
+    }
+
+    private void onPauseFrame(short[] samples, int count) throws IOException {
+        if (pauseFrames++ < paddingFrames) {
+            next.onSamples(samples, 0, count); // the start of a pause is trailing padding either way
+        } else {
+            pauseRing.add(samples, count); // only the end of a long pause survives
+        }
+    }
+
+    private void emitSpeech(short[] samples, int count) throws IOException {
+        state = STATE_SPEECH;
+        speechFrames++;
+        next.onSamples(samples, 0, count);
+    }
+
+    boolean isSpeech(short[] samples, int count) {
+        long squares = 0;
+        for (int i = 0; i < count; i++) {
+            squares += samples[i] * samples[i];
+        }
+
+        double rms = Math.sqrt((double) squares / count);
+        if (rms >= energyThreshold) {
+            return true;
+        }
+        if (rms < energyThreshold / 2) {
+            return false;
+        }
+
+        // crossings of the first channel, interleaved samples of different channels don't compare
+        int channels = format.getChannelCount();
+        int crossings = 0;
+        for (int i = channels; i < count; i += channels) {
+            if ((samples[i] >= 0) != (samples[i - channels] >= 0)) {
+                crossings++;
+            }
+        }
+        long channelSamples = count / channels;
+        return crossings * (long) format.getSampleRate() >= FRICATIVE_CROSSINGS_PER_SECOND * channelSamples;
+    }
+
+    /**
+     * The last {@code capacity} frames, overwriting the oldest.
+     */
+    private static class FrameRing {
+        private final short[] samples;
+        private final int[] counts;
+        private final int frameSamples;
+
+        private int start;
+        private int size;
+
+        FrameRing(int capacity, int frameSamples) {
+            this.samples = new short[capacity * frameSamples];
+            this.counts = new int[capacity];
+            this.frameSamples = frameSamples;
+        }
+
+        void add(short[] frame, int count) {
+            int capacity = counts.length;
+            if (capacity == 0) {
+                return;
+            }
+
+            int slot;
+            if (size < capacity) {
+                slot = (start + size) % capacity;
+                size++;
+            } else {
+                slot = start;
+                start = (start + 1) % capacity;
+            }
+            System.arraycopy(frame, 0, samples, slot * frameSamples, count);
+            counts[slot] = count;
+        }
+
+        void flushTo(PcmStage stage) throws IOException {
+            int capacity = counts.length;
+            for (int i = 0; i < size; i++) {
+                int slot = (start + i) % capacity;
+                stage.onSamples(samples, slot * frameSamples, counts[slot]);
+            }
+            clear();
+        }
+
+        void clear() {
+            start = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds {@link android.media.MediaPlayer} from a file that {@link AudioDownloader} is still
+ * writing, blocking reads until the requested bytes have arrived. Once the download is complete
+ * the rest is read from a memory mapping of the cached file, see {@link MappedMediaDataSource}.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class StreamingMediaDataSource extends MediaDataSource implements ProgressiveFile.Reader {
+
+    private final ProgressiveFile progressiveFile;
+
+    private RandomAccessFile file;
+    private MappedMediaDataSource mapped;
+    private volatile boolean closed;
+
+    StreamingMediaDataSource(ProgressiveFile progressiveFile) {
+        this.progressiveFile = progressiveFile;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        long available = progressiveFile.awaitAvailable(position, this);
+        if (position >= available) {
+            return -1; // end of stream
+        }
+
+        if (mapped == null) {
+            ByteBuffer mapping = progressiveFile.mapCompleted();
+            if (mapping != null) {
+                mapped = new MappedMediaDataSource(mapping);
+                closeFile();
+            }
+        }
+        if (mapped != null) {
+            return mapped.readAt(position, buffer, offset, size);
+        }
+
+        if (file == null) {
+            file = progressiveFile.open();
+        }
+
+        file.seek(position);
+        return file.read(buffer, offset, (int) Math.min(size, available - position));
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return progressiveFile.getContentLength();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true; // releases a read waiting for data before we can take the lock
+        synchronized (this) {
+            closeFile();
+            if (mapped != null) {
+                mapped.close();
+                mapped = null;
+            }
+        }
+    }
+
+    private void closeFile() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+}
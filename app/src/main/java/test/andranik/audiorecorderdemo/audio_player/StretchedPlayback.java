@@ -0,0 +1,289 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import test.andranik.audiorecorderdemo.App;
+import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
+
+/**
+ * Plays a file at a different speed where {@code PlaybackParams} isn't available (before API 23):
+ * decoded with {@link PcmDecoder}, stretched by {@link TimeStretcher} and written to an
+ * {@link AudioTrack} on its own thread. Positions are content time, whatever the speed.
+ */
+class StretchedPlayback {
+    public static final String TAG = "StretchedPlayback";
+
+    private static final long DRAIN_POLL_MS = 20;
+
+    interface Callback {
+        /**
+         * Both called on the main thread, not after {@link #release()}.
+         */
+        void onStretchedPlaybackCompleted(StretchedPlayback playback);
+
+        void onStretchedPlaybackError(StretchedPlayback playback);
+    }
+
+    private final String path;
+    private final long startMillis;
+    private final Callback callback;
+    private final TimeStretcher stretcher = new TimeStretcher();
+    private final GainStage gainStage = new GainStage();
+    private final Thread thread;
+    private final Object lock = new Object();
+
+    private volatile boolean paused;
+    private volatile boolean released;
+
+    private volatile AudioTrack track;
+    private volatile PcmFormat format;
+    private volatile long decodedSamples;
+    private volatile long writtenFrames;
+    private volatile long durationMillis = -1;
+
+    private final FrameIndex frameIndex;
+
+    /**
+     * @param frameIndex the index of {@code path} if loaded; ADTS files then start decoding right at
+     *                   the byte offset of the frame, exactly and in constant time
+     */
+    StretchedPlayback(String path, long startMillis, float speed, FrameIndex frameIndex, Callback callback) {
+        this.path = path;
+        this.frameIndex = frameIndex;
+        this.startMillis = frameIndex != null ? frameIndex.alignMillis(startMillis) : startMillis;
+        this.callback = callback;
+        stretcher.setSpeed(speed);
+        thread = new Thread(this::run, TAG);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void setSpeed(float speed) {
+        stretcher.setSpeed(speed);
+    }
+
+    /**
+     * @param gain linear, may be above 1
+     */
+    void setGain(float gain) {
+        gainStage.setGain(gain);
+    }
+
+    void pause() {
+        synchronized (lock) {
+            paused = true;
+            AudioTrack audioTrack = track;
+            if (audioTrack != null) {
+                audioTrack.pause();
+            }
+        }
+    }
+
+    void resume() {
+        synchronized (lock) {
+            paused = false;
+            AudioTrack audioTrack = track;
+            if (audioTrack != null) {
+                audioTrack.play();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Stops right away; the track is released on the playback thread.
+     */
+    void release() {
+        synchronized (lock) {
+            released = true;
+            AudioTrack audioTrack = track;
+            if (audioTrack != null) {
+                audioTrack.stop(); // makes a blocked write() return
+            }
+            lock.notifyAll();
+        }
+        thread.interrupt();
+    }
+
+    /**
+     * @return the content position in milliseconds: decoded, minus what is still waiting in the
+     * stretcher and (scaled by the speed) in the track buffer
+     */
+    long getCurrentPosition() {
+        PcmFormat pcmFormat = format;
+        AudioTrack audioTrack = track;
+        if (pcmFormat == null || audioTrack == null) {
+            return startMillis;
+        }
+
+        long playedFrames;
+        try {
+            playedFrames = audioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        } catch (IllegalStateException e) {
+            playedFrames = writtenFrames;
+        }
+
+        long pendingOutput = Math.max(0, writtenFrames - playedFrames);
+        double contentFrames = decodedSamples / pcmFormat.getChannelCount() - stretcher.getBufferedFrames()
+                - pendingOutput * stretcher.getSpeed();
+        return startMillis + (long) (Math.max(0, contentFrames) * 1000 / pcmFormat.getSampleRate());
+    }
+
+    /**
+     * @return -1 until the file was opened
+     */
+    long getDuration() {
+        return durationMillis;
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        boolean completed = false;
+        try {
+            durationMillis = frameIndex != null ? frameIndex.getDurationMillis() : PcmDecoder.readDurationMillis(path);
+
+            PcmFilterStage counter = new PcmFilterStage() {
+                @Override
+                public void onSamples(short[] samples, int offset, int count) throws IOException {
+                    decodedSamples += count;
+                    super.onSamples(samples, offset, count);
+                }
+            };
+            PcmPipeline pipeline = new PcmPipeline(counter, stretcher, gainStage, new TrackStage());
+            if (frameIndex != null && frameIndex.hasOffsets()) {
+                PcmDecoder.decodeAdts(path, frameIndex.getOffset(frameIndex.getFrameAt(startMillis)), pipeline);
+            } else {
+                PcmDecoder.decode(path, startMillis * 1000, pipeline);
+            }
+            completed = !released;
+        } catch (InterruptedIOException e) {
+            // released
+        } catch (IOException | RuntimeException e) {
+            if (!released) {
+                ExceptionTracker.trackException(e);
+            }
+        } finally {
+            releaseTrack();
+        }
+
+        boolean successful = completed;
+        App.getInstance().getUiHandler().post(() -> {
+            if (released) {
+                return;
+            }
+            if (successful) {
+                callback.onStretchedPlaybackCompleted(this);
+            } else {
+                callback.onStretchedPlaybackError(this);
+            }
+        });
+    }
+
+    private void releaseTrack() {
+        synchronized (lock) {
+            AudioTrack audioTrack = track;
+            track = null;
+            if (audioTrack != null) {
+                audioTrack.release();
+            }
+        }
+    }
+
+    /**
+     * Writes to the track, blocking while paused.
+     */
+    private class TrackStage implements PcmStage {
+
+        private int channels;
+
+        @Override
+        public void onStart(PcmFormat pcmFormat) throws IOException {
+            channels = pcmFormat.getChannelCount();
+            int channelMask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+            int bufferSize = AudioTrack.getMinBufferSize(pcmFormat.getSampleRate(), channelMask, AudioFormat.ENCODING_PCM_16BIT);
+            if (bufferSize <= 0) {
+                throw new IOException("Unsupported playback format " + pcmFormat);
+            }
+
+            AudioTrack audioTrack = new AudioTrack(android.media.AudioManager.STREAM_MUSIC, pcmFormat.getSampleRate(), channelMask,
+                    AudioFormat.ENCODING_PCM_16BIT, bufferSize * 2, AudioTrack.MODE_STREAM);
+            if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+                audioTrack.release();
+                throw new IOException("Could not initialize AudioTrack");
+            }
+
+            synchronized (lock) {
+                if (released) {
+                    audioTrack.release();
+                    throw new InterruptedIOException("Released");
+                }
+                format = pcmFormat;
+                track = audioTrack;
+                if (!paused) {
+                    audioTrack.play();
+                }
+            }
+        }
+
+        @Override
+        public void onSamples(short[] samples, int offset, int count) throws IOException {
+            int written = 0;
+            while (written < count) {
+                awaitResumed();
+
+                int result = track.write(samples, offset + written, count - written);
+                if (result < 0) {
+                    throw new IOException("AudioTrack.write() failed: " + result);
+                }
+                if (released) {
+                    throw new InterruptedIOException("Released");
+                }
+                written += result;
+                writtenFrames += result / channels;
+            }
+        }
+
+        @Override
+        public void onStop() throws IOException {
+            // let the buffered tail play out before reporting completion
+            while (!released) {
+                long played = track.getPlaybackHeadPosition() & 0xffffffffL;
+                if (played >= writtenFrames) {
+                    break;
+                }
+                SystemClock.sleep(DRAIN_POLL_MS);
+            }
+            if (!released) {
+                track.stop();
+            }
+        }
+
+        private void awaitResumed() throws InterruptedIOException {
+            synchronized (lock) {
+                while (paused && !released) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Released");
+                    }
+                }
+                if (released) {
+                    throw new InterruptedIOException("Released");
+                }
+            }
+        }
+    }
+}
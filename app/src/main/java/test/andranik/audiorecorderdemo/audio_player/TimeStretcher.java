@@ -0,0 +1,199 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.IOException;
+
+/**
+ * Changes the tempo without changing the pitch (WSOLA): the input is cut into 40 ms sequences,
+ * each one placed where it best matches the tail of the previous one within a 15 ms window and
+ * cross-faded over 8 ms, while the read position advances {@code speed} times faster than the
+ * output. Plain Java, fixed buffers allocated in {@link #onStart(PcmFormat)}.
+ */
+public class TimeStretcher extends PcmFilterStage {
+
+    public static final float MIN_SPEED = 0.5f;
+    public static final float MAX_SPEED = 3f;
+
+    private static final int SEQUENCE_MILLIS = 40;
+    private static final int SEEK_WINDOW_MILLIS = 15;
+    private static final int OVERLAP_MILLIS = 8;
+
+    private static final int COARSE_STEP = 4; // candidate offsets tried in the first pass
+
+    private volatile float speed = 1f;
+
+    private int channels;
+    private int sequenceFrames;
+    private int seekFrames;
+    private int overlapFrames;
+
+    private short[] input;
+    private volatile int inputFrames;
+    private long pendingSkip; // frames to drop from input that hasn't arrived yet
+    private double skipFraction;
+
+    private short[] mid; // tail of the previous sequence, cross-faded into the next one
+    private boolean haveMid;
+
+    private short[] output;
+
+    public void setSpeed(float speed) {
+        this.speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return input frames received but not stretched yet
+     */
+    public int getBufferedFrames() {
+        return inputFrames;
+    }
+
+    @Override
+    public void onStart(PcmFormat format) throws IOException {
+        channels = format.getChannelCount();
+        sequenceFrames = format.samplesForMillis(SEQUENCE_MILLIS) / channels;
+        seekFrames = format.samplesForMillis(SEEK_WINDOW_MILLIS) / channels;
+        overlapFrames = format.samplesForMillis(OVERLAP_MILLIS) / channels;
+
+        input = new short[(sequenceFrames + seekFrames) * 2 * channels];
+        mid = new short[overlapFrames * channels];
+        output = new short[sequenceFrames * channels];
+        inputFrames = 0;
+        pendingSkip = 0;
+        skipFraction = 0;
+        haveMid = false;
+
+        super.onStart(format);
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        int frames = count / channels;
+        while (frames > 0) {
+            if (pendingSkip > 0) {
+                int skipped = (int) Math.min(pendingSkip, frames);
+                pendingSkip -= skipped;
+                offset += skipped * channels;
+                frames -= skipped;
+                continue;
+            }
+
+            int room = input.length / channels - inputFrames;
+            int toCopy = Math.min(room, frames);
+            System.arraycopy(samples, offset, input, inputFrames * channels, toCopy * channels);
+            inputFrames += toCopy;
+            offset += toCopy * channels;
+            frames -= toCopy;
+
+            while (inputFrames >= sequenceFrames + seekFrames) {
+                stretchSequence();
+            }
+        }
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        if (haveMid) {
+            next.onSamples(mid, 0, overlapFrames * channels);
+        }
+        if (inputFrames > 0) {
+            next.onSamples(input, 0, inputFrames * channels);
+        }
+        inputFrames = 0;
+        haveMid = false;
+
+        super.onStop();
+    }
+
+    private void stretchSequence() throws IOException {
+        int produced;
+        int offset;
+        if (!haveMid) {
+            offset = 0;
+            produced = sequenceFrames - overlapFrames;
+            System.arraycopy(input, 0, output, 0, produced * channels);
+        } else {
+            offset = findBestOffset();
+            crossFade(offset);
+            int plainFrames = sequenceFrames - 2 * overlapFrames;
+            System.arraycopy(input, (offset + overlapFrames) * channels, output, overlapFrames * channels, plainFrames * channels);
+            produced = sequenceFrames - overlapFrames;
+        }
+
+        System.arraycopy(input, (offset + sequenceFrames - overlapFrames) * channels, mid, 0, overlapFrames * channels);
+        haveMid = true;
+
+        next.onSamples(output, 0, produced * channels);
+
+        double exactSkip = speed * (sequenceFrames - overlapFrames) + skipFraction;
+        int skip = (int) exactSkip;
+        skipFraction = exactSkip - skip;
+        drop(skip);
+    }
+
+    private void drop(int frames) {
+        int dropped = Math.min(frames, inputFrames);
+        System.arraycopy(input, dropped * channels, input, 0, (inputFrames - dropped) * channels);
+        inputFrames -= dropped;
+        pendingSkip += frames - dropped;
+    }
+
+    private void crossFade(int offset) {
+        int base = offset * channels;
+        for (int i = 0; i < overlapFrames; i++) {
+            int fadeIn = i;
+            int fadeOut = overlapFrames - i;
+            for (int c = 0; c < channels; c++) {
+                int index = i * channels + c;
+                output[index] = (short) ((mid[index] * fadeOut + input[base + index] * fadeIn) / overlapFrames);
+            }
+        }
+    }
+
+    /**
+     * Searches the seek window for the start that correlates best with {@link #mid}: a coarse pass
+     * over every {@link #COARSE_STEP}th offset on every other frame, then a full one around the winner.
+     */
+    private int findBestOffset() {
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = 0; offset < seekFrames; offset += COARSE_STEP) {
+            double score = correlation(offset, 2);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+
+        int from = Math.max(0, best - COARSE_STEP + 1);
+        int to = Math.min(seekFrames - 1, best + COARSE_STEP - 1);
+        bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = from; offset <= to; offset++) {
+            double score = correlation(offset, 1);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        return best;
+    }
+
+    private double correlation(int offset, int step) {
+        long products = 0;
+        long energy = 0;
+        for (int i = 0; i < overlapFrames; i += step) {
+            int a = 0;
+            int b = 0;
+            for (int c = 0; c < channels; c++) {
+                a += mid[i * channels + c];
+                b += input[(offset + i) * channels + c];
+            }
+            products += (long) a * b;
+            energy += (long) b * b;
+        }
+        return products / Math.sqrt(energy + 1);
+    }
+}
@@ -0,0 +1,130 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.exceptions.Exceptions;
+import rx.schedulers.Schedulers;
+
+/**
+ * Re-encodes recorded or cached files to an {@link EncodingProfile} in the background. Decoding,
+ * {@link Resampler} and {@link AacEncoderStage} are chained as one streaming pipeline, so memory
+ * use is bounded by the codec buffers and one resampler chunk, whatever the length of the file.
+ * The output is ADTS and replaces the original only once it is complete.
+ */
+public class Transcoder {
+
+    static final String TMP_SUFFIX = ".transcoding";
+
+    private static final double BIT_RATE_TOLERANCE = 1.25; // files this close to the profile are left alone
+
+    private static final Object CODEC_LOCK = new Object(); // one codec pair at a time, whichever thread asks
+
+    /**
+     * Transcodes the recording once it is finished.
+     *
+     * @return the new path of the recording, on the main thread
+     */
+    public Observable<String> transcode(RecordingSession session, EncodingProfile profile) {
+        return session.whenFinished()
+                .observeOn(Schedulers.io())
+                .map(finished -> {
+                    try {
+                        return finished.transcode(profile);
+                    } catch (IOException e) {
+                        throw Exceptions.propagate(e);
+                    }
+                })
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * Transcodes a file in place, e.g. a cached clip, updating its size in the cache.
+     *
+     * @return true on the main thread if the file was transcoded, false if it already fits the profile
+     */
+    public Observable<Boolean> transcode(String path, EncodingProfile profile) {
+        return Observable.fromCallable(() -> transcodeInPlace(path, profile))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * @return false if the file is at most {@code profile}'s sample rate and channel count, and
+     * close to its bit rate
+     */
+    static boolean needsTranscoding(String path, EncodingProfile profile) throws IOException {
+        MediaFormat format = PcmDecoder.readTrackFormat(path);
+        if (format == null) {
+            throw new IOException("No audio track in " + path);
+        }
+        if (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) > profile.getSampleRate()
+                || format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) > profile.getChannelCount()) {
+            return true;
+        }
+
+        long durationMillis = format.containsKey(MediaFormat.KEY_DURATION)
+                ? format.getLong(MediaFormat.KEY_DURATION) / 1000
+                : FrameIndex.build(path).getDurationMillis(); // ADTS declares no duration
+        if (durationMillis <= 0) {
+            return false;
+        }
+        long bitRate = new File(path).length() * 8 * 1000 / durationMillis;
+        return bitRate > profile.getBitRate() * BIT_RATE_TOLERANCE;
+    }
+
+    /**
+     * Blocking: decodes {@code source} and encodes it into {@code target}, measuring the loudness of
+     * the result on the way into its sidecar, as mixing channels changes it. Waits for any other
+     * transcoding to finish first.
+     */
+    static void transcode(String source, File target, EncodingProfile profile) throws IOException {
+        File loudnessFile = Loudness.forAudio(target.getPath());
+        try {
+            synchronized (CODEC_LOCK) {
+                PcmDecoder.decode(source, new PcmPipeline(
+                        new Resampler(profile.getSampleRate(), profile.getChannelCount()),
+                        new LoudnessMeter(loudnessFile),
+                        new AacEncoderStage(target, profile.getBitRate())));
+            }
+        } catch (IOException | RuntimeException e) {
+            target.delete();
+            loudnessFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Blocking: replaces the file with its transcoded version, through a temporary file next to it.
+     */
+    static boolean transcodeInPlace(String path, EncodingProfile profile) throws IOException {
+        if (!needsTranscoding(path, profile)) {
+            return false;
+        }
+
+        File file = new File(path);
+        File tmp = new File(path + TMP_SUFFIX);
+        transcode(path, tmp, profile);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+
+        if (!Loudness.forAudio(tmp.getPath()).renameTo(Loudness.forAudio(path))) {
+            Loudness.forAudio(path).delete(); // measured again on the next playback
+        }
+        PeakFile.forAudio(path).delete();
+        AudioUtils.getWaveformIndex().invalidate(path);
+        FrameIndex.build(path); // the old one indexed the previous encoding
+
+        AudioCache cache = AudioUtils.getCache();
+        if (cache.getDirectory().equals(file.getParentFile()) && cache.contains(file.getName())) {
+            cache.put(file.getName()); // smaller now
+        }
+        return true;
+    }
+}
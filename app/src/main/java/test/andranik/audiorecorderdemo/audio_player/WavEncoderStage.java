@@ -0,0 +1,95 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes the samples as a 16 bit PCM WAV file. The sizes in the header are filled in on stop.
+ */
+public class WavEncoderStage implements PcmStage {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final File file;
+
+    private RandomAccessFile output;
+    private byte[] bytes = new byte[4096];
+    private long dataSize;
+
+    public WavEncoderStage(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void onStart(PcmFormat format) throws IOException {
+        output = new RandomAccessFile(file, "rw");
+        output.setLength(0);
+        dataSize = 0;
+
+        int byteRate = format.getSampleRate() * format.getChannelCount() * PcmFormat.BYTES_PER_SAMPLE;
+        byte[] header = new byte[HEADER_SIZE];
+        writeAscii(header, 0, "RIFF");
+        writeAscii(header, 8, "WAVE");
+        writeAscii(header, 12, "fmt ");
+        writeInt(header, 16, 16); // fmt chunk size
+        writeShort(header, 20, 1); // PCM
+        writeShort(header, 22, format.getChannelCount());
+        writeInt(header, 24, format.getSampleRate());
+        writeInt(header, 28, byteRate);
+        writeShort(header, 32, format.getChannelCount() * PcmFormat.BYTES_PER_SAMPLE);
+        writeShort(header, 34, 16);
+        writeAscii(header, 36, "data");
+        output.write(header); // sizes are patched in onStop()
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) throws IOException {
+        int byteCount = count * PcmFormat.BYTES_PER_SAMPLE;
+        if (bytes.length < byteCount) {
+            bytes = new byte[byteCount];
+        }
+
+        for (int i = 0; i < count; i++) {
+            short sample = samples[offset + i];
+            bytes[i * 2] = (byte) sample;
+            bytes[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        output.write(bytes, 0, byteCount);
+        dataSize += byteCount;
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        try {
+            byte[] size = new byte[4];
+            writeInt(size, 0, (int) (dataSize + HEADER_SIZE - 8));
+            output.seek(4);
+            output.write(size);
+
+            writeInt(size, 0, (int) dataSize);
+            output.seek(40);
+            output.write(size);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void writeAscii(byte[] buffer, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    private static void writeShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,164 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.exceptions.Exceptions;
+import rx.schedulers.Schedulers;
+import test.andranik.audiorecorderdemo.utils.ExceptionTracker;
+
+/**
+ * Waveforms of played clips. Each file is decoded once into a {@link PeakPyramid} saved as its
+ * ".peaks" sidecar; later requests map the sidecar, and the peaks computed for a given width are
+ * kept in a memory LRU, so binding a list row is normally just a cache lookup.
+ */
+public class WaveformIndex {
+    public static final String TAG = "WaveformIndex";
+
+    private static final int MEMORY_CACHE_BYTES = 1024 * 1024;
+
+    private final LruCache<String, short[]> memoryCache = new LruCache<String, short[]>(MEMORY_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, short[] value) {
+            return value.length * 2;
+        }
+    };
+
+    // decoding is CPU bound, one file at a time leaves the cores to the UI while scrolling
+    private final Scheduler decodeScheduler = Schedulers.from(Executors.newSingleThreadExecutor());
+
+    /**
+     * @return the peaks if they are already in memory, null otherwise. Cheap enough for onBindViewHolder.
+     */
+    @MainThread
+    public short[] getCached(String path, int width) {
+        return memoryCache.get(key(path, width));
+    }
+
+    /**
+     * Emits {@code width} peaks (0..32767) of the clip at {@code path} on the main thread, reading the
+     * sidecar if there is one and decoding the file otherwise. Unsubscribe when the row is recycled.
+     */
+    public Observable<short[]> getPeaks(String path, int width) {
+        short[] cached = getCached(path, width);
+        if (cached != null) {
+            return Observable.just(cached);
+        }
+
+        return Observable.fromCallable(() -> PeakFile.mapPyramid(PeakFile.forAudio(path)))
+                .subscribeOn(Schedulers.io())
+                .flatMap(pyramid -> pyramid != null
+                        ? Observable.just(pyramid)
+                        : Observable.fromCallable(() -> {
+                            try {
+                                return buildPyramid(path);
+                            } catch (IOException e) {
+                                throw Exceptions.propagate(e);
+                            }
+                        }).subscribeOn(decodeScheduler))
+                .map(pyramid -> pyramid.getPeaks(width))
+                .doOnNext(peaks -> memoryCache.put(key(path, width), peaks))
+                .doOnError(ExceptionTracker::trackException)
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * @return the pyramid of the clip, decoding it and saving the sidecar if needed
+     */
+    @WorkerThread
+    public PeakPyramid getPyramid(String path) throws IOException {
+        PeakPyramid pyramid = PeakFile.mapPyramid(PeakFile.forAudio(path));
+        return pyramid != null ? pyramid : buildPyramid(path);
+    }
+
+    /**
+     * Drops the memory copies of the peaks of {@code path}, e.g. after it was re-recorded.
+     */
+    public void invalidate(String path) {
+        String prefix = path + '#';
+        for (String key : memoryCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                memoryCache.remove(key);
+            }
+        }
+    }
+
+    private static PeakPyramid buildPyramid(String path) throws IOException {
+        File sidecar = PeakFile.forAudio(path);
+
+        PeakPyramid pyramid;
+        PeakFile.Peaks recorded = PeakFile.read(path); // streamed while recording, only needs the upper levels
+        if (recorded != null) {
+            pyramid = PeakPyramid.build(recorded.peaks, recorded.peaks.length, recorded.peaksPerSecond);
+        } else {
+            PeakCollector collector = new PeakCollector();
+            PcmDecoder.decode(path, collector);
+            pyramid = PeakPyramid.build(collector.peaks, collector.count, LevelMeterStage.PEAKS_PER_SECOND);
+        }
+
+        if (new File(path).exists()) { // don't leave a sidecar behind for a file evicted meanwhile
+            PeakFile.writePyramid(sidecar, pyramid);
+        }
+        return pyramid;
+    }
+
+    private static String key(String path, int width) {
+        return path + '#' + width;
+    }
+
+    /**
+     * Collects one peak per window of the decoded samples.
+     */
+    private static class PeakCollector implements PcmStage {
+        short[] peaks = new short[1024];
+        int count;
+
+        private int samplesPerWindow;
+        private int windowSamples;
+        private int windowPeak;
+
+        @Override
+        public void onStart(PcmFormat format) {
+            samplesPerWindow = Math.max(1, format.getSampleRate() * format.getChannelCount() / LevelMeterStage.PEAKS_PER_SECOND);
+        }
+
+        @Override
+        public void onSamples(short[] samples, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                int sample = samples[i];
+                int abs = sample < 0 ? -sample : sample;
+                if (abs > windowPeak) {
+                    windowPeak = abs;
+                }
+                if (++windowSamples == samplesPerWindow) {
+                    endWindow();
+                }
+            }
+        }
+
+        @Override
+        public void onStop() {
+            if (windowSamples > 0) {
+                endWindow();
+            }
+        }
+
+        private void endWindow() {
+            if (count == peaks.length) {
+                peaks = Arrays.copyOf(peaks, count * 2);
+            }
+            peaks[count++] = (short) Math.min(windowPeak, Short.MAX_VALUE);
+            windowSamples = 0;
+            windowPeak = 0;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class AudioCacheTest {
+
+    private static final int CLIP_SIZE = 100;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void evictsTheLeastRecentlyPlayed() throws IOException {
+        AudioCache cache = newCache();
+        put(cache, "a");
+        put(cache, "b");
+        put(cache, "c");
+
+        cache.touch("a");
+        cache.setMaxSize(2 * CLIP_SIZE);
+
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("c"));
+    }
+
+    @Test
+    public void lookupsDoNotCountAsPlays() throws IOException {
+        AudioCache cache = newCache();
+        put(cache, "a");
+        put(cache, "b");
+
+        assertEquals(CLIP_SIZE, cache.sizeOf("a"));
+        assertEquals(CLIP_SIZE, cache.map("a").remaining());
+        assertTrue(cache.contains("a"));
+        cache.setMaxSize(CLIP_SIZE);
+
+        assertFalse(cache.contains("a"));
+        assertTrue(cache.contains("b"));
+    }
+
+    @Test
+    public void restoresTheEvictionOrderFromTheJournal() throws Exception {
+        AudioCache cache = newCache();
+        put(cache, "a");
+        put(cache, "b");
+        put(cache, "c");
+        cache.touch("a");
+        cache.map("b");
+        cache.awaitPendingWrites();
+
+        AudioCache reopened = newCache();
+        reopened.setMaxSize(2 * CLIP_SIZE);
+        reopened.trimToSize();
+
+        assertFalse(reopened.contains("b"));
+        assertTrue(reopened.contains("a"));
+        assertTrue(reopened.contains("c"));
+    }
+
+    @Test
+    public void deletesFilesNamedBeforeTheKeysOnTheFirstRun() throws IOException {
+        String key = CacheKey.forUrl("http://example.com/clips/song.m4a");
+        FileUtils.writeByteArrayToFile(new File(folder.getRoot(), key), new byte[CLIP_SIZE]);
+        File unkeyed = new File(folder.getRoot(), "song.m4a");
+        FileUtils.writeByteArrayToFile(unkeyed, new byte[CLIP_SIZE]);
+
+        AudioCache cache = newCache();
+
+        assertTrue(cache.contains(key));
+        assertFalse(cache.contains("song.m4a"));
+        assertFalse(unkeyed.exists());
+    }
+
+    private AudioCache newCache() {
+        AudioCache cache = new AudioCache(folder.getRoot(), 10 * CLIP_SIZE);
+        cache.initialize();
+        return cache;
+    }
+
+    private void put(AudioCache cache, String key) throws IOException {
+        FileUtils.writeByteArrayToFile(new File(folder.getRoot(), key), new byte[CLIP_SIZE]);
+        cache.put(key);
+    }
+}
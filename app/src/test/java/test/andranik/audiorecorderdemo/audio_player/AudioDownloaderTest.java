@@ -0,0 +1,211 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class AudioDownloaderTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] body = new byte[64 * 1024];
+
+    private MockWebServer server;
+
+    @Rule
+    public final ImmediateMainThreadRule mainThread = new ImmediateMainThreadRule(); // listeners run on the download thread
+
+    @Before
+    public void setUp() throws Exception {
+        new File(AudioUtils.getAudioDirPath()).mkdirs(); // resolved once, the test runner cleans it up
+        new Random(42).nextBytes(body);
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void resumesWhereTheConnectionWasCut() throws Exception {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String range = request.getHeader("Range");
+                if (range == null) {
+                    return fullResponse().setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+                }
+                return partialResponse(Integer.parseInt(range.substring("bytes=".length(), range.length() - 1)));
+            }
+        });
+
+        String url = server.url("/cut.m4a").toString();
+        assertTrue(download(url));
+
+        assertEquals(2, server.getRequestCount());
+        assertNull(server.takeRequest().getHeader("Range"));
+        RecordedRequest resumed = server.takeRequest();
+        assertEquals(ETAG, resumed.getHeader("If-Range"));
+        int start = Integer.parseInt(resumed.getHeader("Range").replaceAll("\\D", ""));
+        assertTrue("resumed from " + start, start > 0 && start < body.length);
+
+        assertDownloaded(url);
+    }
+
+    @Test
+    public void restartsFromZeroWhenTheRangeIsNotSatisfiable() throws Exception {
+        String url = server.url("/changed.m4a").toString();
+
+        PartialDownload stale = PartialDownload.load(url);
+        FileUtils.writeByteArrayToFile(stale.getPartFile(), new byte[1000]);
+        stale.setValidators("\"v0\"", null);
+        stale.setBytesWritten(1000);
+        stale.save();
+
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return request.getHeader("Range") != null ? new MockResponse().setResponseCode(416) : fullResponse();
+            }
+        });
+
+        assertTrue(download(url));
+
+        assertEquals(2, server.getRequestCount());
+        assertEquals("bytes=1000-", server.takeRequest().getHeader("Range"));
+        assertNull(server.takeRequest().getHeader("Range"));
+
+        assertDownloaded(url);
+    }
+
+    @Test
+    public void refetchesOnlyTheSegmentThatFailed() throws Exception {
+        byte[] large = new byte[(int) SegmentedDownload.MIN_SEGMENT_SIZE * 4];
+        new Random(7).nextBytes(large);
+        String failing = "bytes=" + large.length / 4 + "-" + (large.length / 2 - 1);
+        List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if ("HEAD".equals(request.getMethod())) {
+                    return new MockResponse()
+                            .setHeader("ETag", ETAG)
+                            .setHeader("Accept-Ranges", "bytes")
+                            .setHeader("Content-Length", large.length);
+                }
+
+                String range = request.getHeader("Range");
+                ranges.add(range);
+                int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                int end = Integer.parseInt(range.substring(range.indexOf('-') + 1));
+                MockResponse response = new MockResponse()
+                        .setResponseCode(206)
+                        .setHeader("ETag", ETAG)
+                        .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + large.length)
+                        .setBody(new Buffer().write(large, start, end - start + 1));
+                if (range.equals(failing) && Collections.frequency(ranges, failing) == 1) {
+                    Thread.sleep(500); // the other segments are done by then
+                    response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+                }
+                return response;
+            }
+        });
+
+        String url = server.url("/segmented.m4a").toString();
+        assertTrue(download(url, 4));
+
+        assertEquals(5, ranges.size());
+        assertEquals(failing, ranges.get(4));
+        assertArrayEquals(large, FileUtils.readFileToByteArray(new File(AudioUtils.getAudioFilePath(url))));
+        assertFalse(new File(AudioUtils.getPartialMetaPath(url)).exists());
+    }
+
+    private MockResponse fullResponse() {
+        return new MockResponse()
+                .setHeader("ETag", ETAG)
+                .setBody(new Buffer().write(body));
+    }
+
+    private MockResponse partialResponse(int start) {
+        return new MockResponse()
+                .setResponseCode(206)
+                .setHeader("ETag", ETAG)
+                .setHeader("Content-Range", "bytes " + start + "-" + (body.length - 1) + "/" + body.length)
+                .setBody(new Buffer().write(body, start, body.length - start));
+    }
+
+    private boolean download(String url) throws InterruptedException {
+        return download(url, 1);
+    }
+
+    private boolean download(String url, int segmentCount) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(1);
+        boolean[] successful = new boolean[1];
+
+        AudioDownloader downloader = new AudioDownloader();
+        downloader.setSegmentCount(segmentCount);
+        downloader.startDownload(url, new AudioDownloader.AudioDownloadListener() {
+            @Override
+            public void onAudioDownloadStarted(String path) {
+            }
+
+            @Override
+            public void onAudioDownloadFinished(String path, boolean success) {
+                successful[0] = success;
+                finished.countDown();
+            }
+
+            @Override
+            public void onAudioDownloadProgress(String path, int percentPlayed) {
+            }
+
+            @Override
+            public void onAudioDownloadError(Throwable e) {
+            }
+
+            @Override
+            public void onAudioDownloadComplete(String url) {
+            }
+        });
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        return successful[0];
+    }
+
+    private void assertDownloaded(String url) throws Exception {
+        assertArrayEquals(body, FileUtils.readFileToByteArray(new File(AudioUtils.getAudioFilePath(url))));
+        assertFalse(new File(AudioUtils.getPartialFilePath(url)).exists());
+        assertFalse(new File(AudioUtils.getPartialMetaPath(url)).exists());
+    }
+}
@@ -0,0 +1,112 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26, shadows = AudioPlayerTest.ShadowSpeedMediaPlayer.class)
+public class AudioPlayerTest {
+
+    private static final int PREPARATION_MILLIS = 10;
+
+    @Rule
+    public final ImmediateMainThreadRule mainThread = new ImmediateMainThreadRule();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ShadowMediaPlayer> created = new ArrayList<>();
+
+    private List<String> clips;
+
+    @Before
+    public void setUp() throws IOException {
+        ShadowMediaPlayer.setCreateListener((player, shadow) -> created.add(shadow));
+
+        clips = new ArrayList<>();
+        for (String name : Arrays.asList("a.m4a", "b.m4a", "c.m4a")) {
+            File file = folder.newFile(name);
+            ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(file.getPath()), new ShadowMediaPlayer.MediaInfo(10000, PREPARATION_MILLIS));
+            clips.add(file.getPath());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ShadowMediaPlayer.setCreateListener(null);
+    }
+
+    @Test
+    public void releasesThePreparedNextItemWhenSkippingElsewhere() {
+        AudioPlayer player = new AudioPlayer();
+        player.setPreparedPlayerCount(0);
+
+        player.playQueue(clips);
+        settle(); // a plays, b is prepared and chained
+
+        player.skipToNext(); // b, handed over
+        settle();
+        player.skipToPrevious(); // a, the prepared c is not needed anymore
+        settle();
+        player.skipToPrevious(); // a again
+        settle();
+        player.skipToNext();
+        settle();
+
+        assertEquals(1, player.getQueueIndex());
+        assertEquals(2, countAlive()); // the playing b and the chained c
+
+        player.stopPlaying();
+        assertEquals(0, countAlive());
+    }
+
+    /**
+     * Lets the playing item and the one chained after it finish preparing.
+     */
+    private static void settle() {
+        ShadowLooper.idleMainLooper(3 * PREPARATION_MILLIS);
+    }
+
+    private int countAlive() {
+        int alive = 0;
+        for (ShadowMediaPlayer shadow : created) {
+            if (shadow.getState() != ShadowMediaPlayer.State.END) {
+                alive++;
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * The playback params are native, AudioPlayer reads them to change the speed.
+     */
+    @Implements(MediaPlayer.class)
+    public static class ShadowSpeedMediaPlayer extends ShadowMediaPlayer {
+        @Implementation
+        public PlaybackParams getPlaybackParams() {
+            return new PlaybackParams();
+        }
+    }
+}
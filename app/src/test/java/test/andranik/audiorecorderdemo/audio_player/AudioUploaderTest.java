@@ -0,0 +1,116 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class AudioUploaderTest {
+
+    private static final int SIZE = AudioUploader.UPLOAD_CHUNK_SIZE + 1000;
+
+    @Rule
+    public final ImmediateMainThreadRule mainThread = new ImmediateMainThreadRule(); // listeners run on the upload thread
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void resumesAfterTheNetworkDropped() throws Exception {
+        File file = folder.newFile("recording.m4a");
+        FileUtils.writeByteArrayToFile(file, new byte[SIZE]);
+
+        server.enqueue(new MockResponse().setHeader("Location", "/session"));
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST)); // first chunk lost
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START)); // still offline when asking for the offset
+        server.enqueue(new MockResponse().setResponseCode(308).setHeader("Range", "bytes=0-" + (AudioUploader.UPLOAD_CHUNK_SIZE - 1)));
+        server.enqueue(new MockResponse().setBody("uploaded"));
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .retryOnConnectionFailure(false) // the uploader is the one retrying
+                .build();
+        RecordingListener listener = new RecordingListener();
+        new AudioUploader(client, server.url("/upload").toString()).startUpload(file.getPath(), listener);
+
+        assertTrue(listener.finished.await(20, TimeUnit.SECONDS));
+        assertTrue(listener.successful);
+        assertEquals("uploaded", listener.response);
+
+        assertEquals(5, server.getRequestCount());
+        assertEquals("POST", server.takeRequest().getMethod());
+        assertEquals("bytes 0-" + (AudioUploader.UPLOAD_CHUNK_SIZE - 1) + "/" + SIZE, server.takeRequest().getHeader("Content-Range"));
+        server.takeRequest(); // the offset query that failed
+        assertEquals("bytes */" + SIZE, server.takeRequest().getHeader("Content-Range"));
+        RecordedRequest last = server.takeRequest();
+        assertEquals("bytes " + AudioUploader.UPLOAD_CHUNK_SIZE + "-" + (SIZE - 1) + "/" + SIZE, last.getHeader("Content-Range"));
+        assertEquals(SIZE - AudioUploader.UPLOAD_CHUNK_SIZE, last.getBodySize());
+
+        assertFalse(new File(file.getPath() + ".upload").exists());
+    }
+
+    private static class RecordingListener implements AudioUploader.AudioUploadListener {
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile boolean successful;
+        volatile String response;
+
+        @Override
+        public void onAudioUploadStarted(String path) {
+        }
+
+        @Override
+        public void onAudioUploadFinished(String path, boolean successful) {
+            this.successful = successful;
+            if (!successful) {
+                finished.countDown();
+            }
+        }
+
+        @Override
+        public void onAudioUploadProgress(String path, int percentUploaded) {
+        }
+
+        @Override
+        public void onAudioUploadError(Throwable e) {
+        }
+
+        @Override
+        public void onAudioUploadComplete(String path, String response) {
+            this.response = response;
+            finished.countDown();
+        }
+    }
+}
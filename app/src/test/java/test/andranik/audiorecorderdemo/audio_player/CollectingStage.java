@@ -0,0 +1,45 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import java.util.Arrays;
+
+/**
+ * Last stage for tests: keeps everything it is given.
+ */
+class CollectingStage implements PcmStage {
+
+    PcmFormat format;
+    boolean stopped;
+
+    private short[] samples = new short[1024];
+    private int count;
+
+    @Override
+    public void onStart(PcmFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public void onSamples(short[] samples, int offset, int count) {
+        if (stopped) {
+            throw new IllegalStateException("samples after onStop()");
+        }
+        if (this.count + count > this.samples.length) {
+            this.samples = Arrays.copyOf(this.samples, Math.max(this.samples.length * 2, this.count + count));
+        }
+        System.arraycopy(samples, offset, this.samples, this.count, count);
+        this.count += count;
+    }
+
+    @Override
+    public void onStop() {
+        stopped = true;
+    }
+
+    short[] getSamples() {
+        return Arrays.copyOf(samples, count);
+    }
+
+    int getSampleCount() {
+        return count;
+    }
+}
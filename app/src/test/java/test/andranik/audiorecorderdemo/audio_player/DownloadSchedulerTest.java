@@ -0,0 +1,31 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import rx.subscriptions.Subscriptions;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadSchedulerTest {
+
+    private final List<String> started = new ArrayList<>();
+
+    private final DownloadScheduler scheduler = new DownloadScheduler(task -> {
+        started.add(task.getUrl());
+        return Subscriptions.empty();
+    }, AudioDownloader.DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+
+    @Test
+    public void aPromotedPrefetchNoLongerCountsAsOne() {
+        scheduler.setMaxConcurrentPrefetches(2);
+        scheduler.enqueue("a", null, AudioDownloader.PRIORITY_PREFETCH, true);
+        scheduler.enqueue("a", null, AudioDownloader.PRIORITY_USER, false); // the user tapped it meanwhile
+
+        scheduler.enqueue("b", null, AudioDownloader.PRIORITY_PREFETCH, true);
+        assertEquals(Collections.singletonList("a"), started);
+    }
+}
@@ -0,0 +1,34 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.junit.rules.ExternalResource;
+
+import rx.Scheduler;
+import rx.android.plugins.RxAndroidPlugins;
+import rx.android.plugins.RxAndroidSchedulersHook;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+
+/**
+ * Runs what is observed on the main thread right away on the emitting thread, so that tests can
+ * wait for callbacks without driving a looper.
+ */
+public class ImmediateMainThreadRule extends ExternalResource {
+
+    @Override
+    protected void before() {
+        RxAndroidPlugins.getInstance().reset(); // an earlier test may have used the default hook
+        RxAndroidPlugins.getInstance().registerSchedulersHook(new RxAndroidSchedulersHook() {
+            @Override
+            public Scheduler getMainThreadScheduler() {
+                return Schedulers.immediate();
+            }
+        });
+        AndroidSchedulers.reset();
+    }
+
+    @Override
+    protected void after() {
+        RxAndroidPlugins.getInstance().reset();
+        AndroidSchedulers.reset();
+    }
+}
@@ -0,0 +1,121 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.MediaPlayer;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26, shadows = MediaPlayerPoolTest.ShadowSlowMediaPlayer.class)
+public class MediaPlayerPoolTest {
+
+    private static final int PREPARATION_MILLIS = 10;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ShadowMediaPlayer> created = new ArrayList<>();
+    private final MediaPlayerPool pool = new MediaPlayerPool(MediaPlayerPool.DEFAULT_CAPACITY);
+
+    private String path;
+
+    @Before
+    public void setUp() throws IOException {
+        ShadowMediaPlayer.setCreateListener((player, shadow) -> created.add(shadow));
+        path = folder.newFile("a.m4a").getPath();
+        ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(path), new ShadowMediaPlayer.MediaInfo(10000, PREPARATION_MILLIS));
+        ShadowSlowMediaPlayer.threads.clear();
+        ShadowSlowMediaPlayer.sourceSet = new CountDownLatch(0);
+    }
+
+    @After
+    public void tearDown() {
+        ShadowMediaPlayer.setCreateListener(null);
+    }
+
+    @Test
+    public void setsTheDataSourceOffTheMainThread() throws Exception {
+        pool.prepare(path);
+        awaitBackground();
+
+        List<MediaPlayer> prepared = new ArrayList<>();
+        MediaPlayer player = pool.acquire(path, prepared::add);
+
+        assertNotNull(player);
+        assertEquals(1, prepared.size());
+        assertNotSame(Looper.getMainLooper().getThread(), ShadowSlowMediaPlayer.threads.get(0));
+    }
+
+    @Test
+    public void releasesAPlayerWhoseDataSourceIsStillBeingSet() throws Exception {
+        ShadowSlowMediaPlayer.sourceSet = new CountDownLatch(1);
+        pool.prepare(path);
+
+        assertNull(pool.acquire(path, mp -> {
+        }));
+        assertEquals(ShadowMediaPlayer.State.IDLE, created.get(0).getState()); // still in use in the background
+
+        ShadowSlowMediaPlayer.sourceSet.countDown();
+        awaitBackground();
+        assertEquals(ShadowMediaPlayer.State.END, created.get(0).getState());
+    }
+
+    /**
+     * Waits for the data source to be set, then runs what was posted back and lets the player prepare.
+     */
+    private static void awaitBackground() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ShadowSlowMediaPlayer.threads.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(ShadowSlowMediaPlayer.sourceSet.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100); // the result is posted to the main thread right after
+        ShadowLooper.idleMainLooper(3 * PREPARATION_MILLIS);
+    }
+
+    /**
+     * Sets the data source once {@link #sourceSet} opens, noting the thread it is called on.
+     */
+    @Implements(MediaPlayer.class)
+    public static class ShadowSlowMediaPlayer extends ShadowMediaPlayer {
+        static final List<Thread> threads = new ArrayList<>();
+        static volatile CountDownLatch sourceSet;
+
+        @Implementation
+        public void setDataSource(String path) throws IOException {
+            try {
+                sourceSet.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            super.setDataSource(path);
+            synchronized (threads) {
+                threads.add(Thread.currentThread());
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import android.media.AudioRecord;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.andranik.audiorecorderdemo.App;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every opening of the fake microphone captures its own number, so the samples of a recording tell
+ * which capture session they come from.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26, application = App.class, shadows = PcmCaptureEngineTest.ShadowMicrophone.class)
+public class PcmCaptureEngineTest {
+
+    private static final PcmFormat FORMAT = new PcmFormat(8000, 1);
+
+    private final PcmCaptureEngine engine = new PcmCaptureEngine(FORMAT);
+    private final List<Boolean> results = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        engine.release();
+        ShadowMicrophone.sessions.set(0);
+    }
+
+    @Test
+    public void restartsWhileTheLastRecordingIsStillBeingFinished() throws Exception {
+        SlowStopStage first = new SlowStopStage(800); // longer than any join the main thread could afford
+        engine.start(first, results::add);
+        Thread.sleep(200);
+        engine.stop();
+
+        long before = System.currentTimeMillis();
+        CollectingStage second = new CollectingStage();
+        engine.start(second, results::add);
+        assertTrue("start() waited for the last session", System.currentTimeMillis() - before < 100);
+        Thread.sleep(300);
+        engine.stop();
+
+        awaitResults(2);
+        assertEquals(Arrays.asList(true, true), results);
+        assertOnlyFrom(first, 1);
+        assertOnlyFrom(second, 2);
+    }
+
+    @Test
+    public void takesThePreRollOfAWarmStartFromItsOwnSession() throws Exception {
+        SlowStopStage cold = new SlowStopStage(800);
+        engine.start(cold, results::add);
+        Thread.sleep(200);
+        engine.stop();
+
+        long before = System.currentTimeMillis();
+        engine.startWarm();
+        assertTrue("startWarm() waited for the last session", System.currentTimeMillis() - before < 100);
+        Thread.sleep(300); // less than the pre-roll, while the cold recording is still being finished
+        CollectingStage warm = new CollectingStage();
+        engine.start(warm, results::add);
+        Thread.sleep(200);
+        engine.stop();
+
+        awaitResults(2);
+        assertEquals(Arrays.asList(true, true), results);
+        assertOnlyFrom(cold, 1);
+        assertOnlyFrom(warm, 2);
+        long preRoll = warm.getSampleCount() - FORMAT.samplesForMillis(200);
+        assertTrue("pre-roll of " + preRoll + " samples", preRoll > FORMAT.samplesForMillis(200)
+                && preRoll < FORMAT.samplesForMillis(PcmCaptureEngine.PRE_ROLL_MILLIS));
+    }
+
+    private void awaitResults(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (results.size() < count && System.currentTimeMillis() < deadline) {
+            ShadowLooper.runUiThreadTasks();
+            Thread.sleep(10);
+        }
+        assertEquals(count, results.size());
+    }
+
+    private static void assertOnlyFrom(CollectingStage stage, int session) {
+        assertTrue(stage.stopped);
+        assertTrue(stage.getSampleCount() > 0);
+        for (short sample : stage.getSamples()) {
+            assertEquals(session, sample);
+        }
+    }
+
+    private static class SlowStopStage extends CollectingStage {
+        private final long stopMillis;
+
+        SlowStopStage(long stopMillis) {
+            this.stopMillis = stopMillis;
+        }
+
+        @Override
+        public void onStop() {
+            try {
+                Thread.sleep(stopMillis); // like draining an encoder
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.onStop();
+        }
+    }
+
+    /**
+     * A microphone that delivers its samples in real time.
+     */
+    @Implements(AudioRecord.class)
+    public static class ShadowMicrophone {
+        static final AtomicInteger sessions = new AtomicInteger();
+
+        private short value;
+
+        public void __constructor__(int audioSource, int sampleRate, int channelConfig, int audioFormat, int bufferSize) {
+            value = (short) sessions.incrementAndGet();
+        }
+
+        @Implementation
+        public static int getMinBufferSize(int sampleRate, int channelConfig, int audioFormat) {
+            return 1024;
+        }
+
+        @Implementation
+        public int getState() {
+            return AudioRecord.STATE_INITIALIZED;
+        }
+
+        @Implementation
+        public void startRecording() {
+        }
+
+        @Implementation
+        public int read(short[] audioData, int offsetInShorts, int sizeInShorts) {
+            try {
+                Thread.sleep(FORMAT.millisForSamples(sizeInShorts));
+            } catch (InterruptedException e) {
+                return AudioRecord.ERROR_INVALID_OPERATION;
+            }
+            Arrays.fill(audioData, offsetInShorts, offsetInShorts + sizeInShorts, value);
+            return sizeInShorts;
+        }
+
+        @Implementation
+        public void stop() {
+        }
+
+        @Implementation
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmPipelineTest {
+
+    @Test
+    public void passesEverythingThroughTheStagesInOrder() throws IOException {
+        CollectingStage sink = new CollectingStage();
+        PcmPipeline pipeline = new PcmPipeline(new Doubler(), new Doubler(), sink);
+        PcmFormat format = new PcmFormat(16000, 1);
+
+        pipeline.onStart(format);
+        pipeline.onSamples(new short[]{9, 1, 2, 3, 9}, 1, 3);
+        pipeline.onStop();
+
+        assertEquals(format, sink.format);
+        assertArrayEquals(new short[]{4, 8, 12}, sink.getSamples());
+        assertTrue(sink.stopped);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsFilterStagesInFrontOfTheLast() {
+        new PcmPipeline(new CollectingStage(), new CollectingStage());
+    }
+
+    @Test
+    public void convertsBetweenSamplesAndMillis() {
+        PcmFormat stereo = new PcmFormat(44100, 2);
+
+        assertEquals(8820, stereo.samplesForMillis(100));
+        assertEquals(100, stereo.millisForSamples(8820));
+    }
+
+    private static class Doubler extends PcmFilterStage {
+        @Override
+        public void onSamples(short[] samples, int offset, int count) throws IOException {
+            short[] doubled = new short[count];
+            for (int i = 0; i < count; i++) {
+                doubled[i] = (short) (samples[offset + i] * 2);
+            }
+            super.onSamples(doubled, 0, count);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PcmRingBufferTest {
+
+    @Test
+    public void wrapsAroundTheEnd() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        short[] out = new short[8];
+
+        assertEquals(6, ring.write(samples(1, 6), 0, 6));
+        assertEquals(5, ring.read(out, 0, 5));
+
+        assertEquals(6, ring.write(samples(7, 6), 0, 6)); // 2 before the end, 4 from the start
+        assertEquals(7, ring.available());
+        assertEquals(7, ring.read(out, 0, 8));
+        assertArrayEquals(samples(6, 7), Arrays.copyOf(out, 7));
+
+        assertEquals(12, ring.getWritePosition());
+        assertEquals(12, ring.getReadPosition());
+        assertEquals(0, ring.getOverrun());
+    }
+
+    @Test
+    public void dropsWhatDoesNotFitAndCountsIt() {
+        PcmRingBuffer ring = new PcmRingBuffer(4);
+
+        assertEquals(3, ring.write(samples(1, 3), 0, 3));
+        assertEquals(1, ring.write(samples(4, 3), 1, 2)); // room for one of the two
+        assertEquals(0, ring.write(samples(9, 2), 0, 2));
+        assertEquals(3, ring.getOverrun());
+
+        short[] out = new short[4];
+        assertEquals(4, ring.read(out, 0, 4));
+        assertArrayEquals(new short[]{1, 2, 3, 5}, out);
+        assertEquals(0, ring.read(out, 0, 4));
+    }
+
+    @Test
+    public void skipsToTheLastSamples() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        ring.write(samples(1, 7), 0, 7);
+
+        ring.skipToLast(3);
+        assertEquals(3, ring.available());
+        assertEquals(4, ring.getReadPosition());
+
+        ring.skipToLast(5); // fewer are left already
+        assertEquals(3, ring.available());
+
+        short[] out = new short[3];
+        ring.read(out, 0, 3);
+        assertArrayEquals(samples(5, 3), out);
+
+        ring.write(samples(8, 2), 0, 2);
+        ring.skipToLast(0);
+        assertEquals(0, ring.available());
+        assertEquals(ring.getWritePosition(), ring.getReadPosition());
+    }
+
+    @Test
+    public void skipsToAPosition() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        ring.write(samples(1, 5), 0, 5);
+
+        ring.skipTo(2);
+        assertEquals(3, ring.available());
+
+        ring.skipTo(1); // behind the reader
+        assertEquals(2, ring.getReadPosition());
+
+        ring.skipTo(100); // not written yet
+        assertEquals(5, ring.getReadPosition());
+        assertEquals(0, ring.available());
+    }
+
+    /**
+     * @return {@code count} consecutive values from {@code first}
+     */
+    private static short[] samples(int first, int count) {
+        short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) (first + i);
+        }
+        return samples;
+    }
+}
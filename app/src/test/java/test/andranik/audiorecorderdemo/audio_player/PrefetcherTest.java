@@ -0,0 +1,86 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class PrefetcherTest {
+
+    private static final String URL = "http://localhost/prefetched.m4a";
+
+    @Rule
+    public final ImmediateMainThreadRule mainThread = new ImmediateMainThreadRule();
+
+    private final FakeNetworkPolicy networkPolicy = new FakeNetworkPolicy();
+
+    private AudioDownloader downloader;
+    private Prefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        new File(AudioUtils.getAudioDirPath()).mkdirs();
+        AudioUtils.getCache().initialize(); // lookups answer synchronously from here on
+
+        downloader = new AudioDownloader();
+        prefetcher = new Prefetcher(downloader);
+        prefetcher.setNetworkPolicy(networkPolicy);
+    }
+
+    @Test
+    public void followsTheNetworkPolicy() {
+        networkPolicy.allowed = false;
+        assertFalse(prefetcher.canStartPrefetch());
+
+        networkPolicy.allowed = true;
+        assertTrue(prefetcher.canStartPrefetch());
+    }
+
+    @Test
+    public void stopsOnceTheBudgetIsUsedUp() {
+        prefetcher.setByteBudget(0);
+        assertFalse(prefetcher.canStartPrefetch());
+
+        prefetcher.resetBudget();
+        prefetcher.setByteBudget(Prefetcher.DEFAULT_BYTE_BUDGET);
+        assertTrue(prefetcher.canStartPrefetch());
+    }
+
+    @Test
+    public void prefetchesACachedUrlAgainOnceItIsEvicted() throws Exception {
+        networkPolicy.allowed = false; // keeps the prefetch queued, nothing goes to the network
+        String key = AudioUtils.getFileNameFromUri(URL);
+        FileUtils.writeByteArrayToFile(new File(AudioUtils.getAudioDirPath(), key), new byte[100]);
+        AudioUtils.getCache().put(key);
+
+        prefetcher.prefetch(Collections.singletonList(URL), AudioDownloader.PRIORITY_PREFETCH);
+        assertFalse(downloader.isDownloading(URL));
+
+        AudioUtils.getCache().remove(key);
+        prefetcher.prefetch(Collections.singletonList(URL), AudioDownloader.PRIORITY_PREFETCH);
+        assertTrue(downloader.isDownloading(URL));
+
+        prefetcher.cancel();
+        assertFalse(downloader.isDownloading(URL));
+    }
+
+    private static class FakeNetworkPolicy implements NetworkPolicy {
+        volatile boolean allowed = true;
+
+        @Override
+        public boolean isPrefetchAllowed() {
+            return allowed;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResamplerTest {
+
+    private static final double AMPLITUDE = 10000;
+
+    @Test
+    public void producesExactlyTheFramesCoveringTheInput() throws IOException {
+        assertEquals(16000, resample(new short[44100], 44100, 1, 16000, 1, 44100).length);
+        assertEquals(363, resample(new short[1000], 44100, 1, 16000, 1, 1000).length); // ceil(1000 * 16000 / 44100)
+        assertEquals(2 * 2 * 4999, resample(new short[4999], 8000, 1, 16000, 2, 333).length);
+        assertEquals(22050, resample(new short[2 * 48000], 48000, 2, 22050, 1, 4096).length);
+    }
+
+    @Test
+    public void doesNotDependOnHowTheInputIsChunked() throws IOException {
+        short[] input = sine(1000, 44100, 1, 30000);
+
+        assertArrayEquals(resample(input, 44100, 1, 16000, 1, input.length),
+                resample(input, 44100, 1, 16000, 1, 77));
+    }
+
+    @Test
+    public void keepsTheLevelOfThePassband() throws IOException {
+        short[] output = resample(sine(1000, 44100, 1, 44100), 44100, 1, 16000, 1, 4096);
+
+        double gainDb = 20 * Math.log10(rms(output) / (AMPLITUDE / Math.sqrt(2)));
+        assertEquals(0, gainDb, 0.1);
+    }
+
+    @Test
+    public void rejectsWhatWouldAlias() throws IOException {
+        // 12 kHz is above the 8 kHz Nyquist frequency of the output and would fold back to 4 kHz
+        short[] output = resample(sine(12000, 44100, 1, 44100), 44100, 1, 16000, 1, 4096);
+
+        double gainDb = 20 * Math.log10(rms(output) / (AMPLITUDE / Math.sqrt(2)));
+        assertTrue("rejected by " + -gainDb + " dB only", gainDb < -60);
+    }
+
+    @Test
+    public void mixesStereoDownToMono() throws IOException {
+        short[] input = new short[2 * 8000];
+        for (int i = 0; i < input.length; i += 2) {
+            input[i] = 1000;
+            input[i + 1] = 3000;
+        }
+
+        short[] output = resample(input, 8000, 2, 8000, 1, 8000);
+
+        assertEquals(8000, output.length);
+        assertEquals(2000, output[4000]);
+    }
+
+    @Test
+    public void passesMatchingFormatsThrough() throws IOException {
+        short[] input = sine(1000, 16000, 2, 1600);
+
+        assertArrayEquals(input, resample(input, 16000, 2, 16000, 2, 100));
+    }
+
+    private static short[] resample(short[] input, int inputRate, int inputChannels, int outputRate,
+                                    int outputChannels, int chunkFrames) throws IOException {
+        CollectingStage sink = new CollectingStage();
+        PcmPipeline pipeline = new PcmPipeline(new Resampler(outputRate, outputChannels), sink);
+        pipeline.onStart(new PcmFormat(inputRate, inputChannels));
+        int chunk = chunkFrames * inputChannels;
+        for (int offset = 0; offset < input.length; offset += chunk) {
+            pipeline.onSamples(input, offset, Math.min(chunk, input.length - offset));
+        }
+        pipeline.onStop();
+
+        assertEquals(outputRate, sink.format.getSampleRate());
+        assertEquals(outputChannels, sink.format.getChannelCount());
+        return sink.getSamples();
+    }
+
+    private static short[] sine(double frequency, int sampleRate, int channels, int frames) {
+        short[] samples = new short[frames * channels];
+        for (int frame = 0; frame < frames; frame++) {
+            short value = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * frame / sampleRate));
+            for (int c = 0; c < channels; c++) {
+                samples[frame * channels + c] = value;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Of the middle half, away from the edges where the kernels reach into the silence around the input.
+     */
+    private static double rms(short[] samples) {
+        int from = samples.length / 4;
+        int to = samples.length - samples.length / 4;
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (double) samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / (to - from));
+    }
+}
@@ -0,0 +1,166 @@
+package test.andranik.audiorecorderdemo.audio_player;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Synthetic fixtures at 8 kHz mono, where a 20 ms frame is 160 samples: speech is a loud 440 Hz tone,
+ * silence is digital zero.
+ */
+public class SilenceTrimmerTest {
+
+    private static final PcmFormat FORMAT = new PcmFormat(8000, 1);
+    private static final int FRAME = 160;
+
+    private static final int PADDING_MILLIS = 100;
+    private static final int MAX_PAUSE_MILLIS = 400;
+
+    @Test
+    public void trimsLeadingAndTrailingSilenceKeepingThePadding() throws IOException {
+        short[] speech = tone(300, 440, 3000);
+        short[] input = concat(silence(500), speech, silence(500));
+
+        SilenceTrimmer trimmer = newTrimmer();
+        short[] output = run(trimmer, input);
+
+        assertEquals(samples(PADDING_MILLIS + 300 + PADDING_MILLIS), output.length);
+        assertArrayEquals(speech, Arrays.copyOfRange(output, samples(PADDING_MILLIS), samples(PADDING_MILLIS + 300)));
+        assertTrue(trimmer.hasSpeech());
+    }
+
+    @Test
+    public void keepsAPauseJustUnderTheMaximum() throws IOException {
+        short[] input = concat(tone(100, 440, 3000), silence(MAX_PAUSE_MILLIS - 20), tone(100, 440, 3000));
+
+        assertArrayEquals(input, run(newTrimmer(), input));
+    }
+
+    @Test
+    public void shortensAPauseJustOverTheMaximum() throws IOException {
+        short[] first = tone(100, 440, 3000);
+        short[] second = tone(100, 523, 3000);
+        short[] input = concat(first, silence(MAX_PAUSE_MILLIS + 20), second);
+
+        short[] output = run(newTrimmer(), input);
+
+        assertArrayEquals(concat(first, silence(MAX_PAUSE_MILLIS), second), output);
+    }
+
+    @Test
+    public void keepsQuietFricatives() throws IOException {
+        short[] fricative = alternating(200, 200); // below the energy threshold, 8000 crossings per second
+        short[] input = concat(silence(200), fricative, silence(200));
+
+        SilenceTrimmer trimmer = newTrimmer();
+        short[] output = run(trimmer, input);
+
+        assertEquals(samples(PADDING_MILLIS + 200 + PADDING_MILLIS), output.length);
+        assertTrue(trimmer.hasSpeech());
+    }
+
+    @Test
+    public void dropsAQuietHumWithTheSameEnergy() throws IOException {
+        SilenceTrimmer trimmer = newTrimmer();
+        short[] output = run(trimmer, concat(silence(200), tone(200, 100, 283), silence(200)));
+
+        assertEquals(0, output.length);
+        assertFalse(trimmer.hasSpeech());
+    }
+
+    @Test
+    public void keepsAPartialLastFrameInsideSpeech() throws IOException {
+        short[] input = concat(tone(100, 440, 3000), Arrays.copyOf(tone(20, 440, 3000), 50));
+
+        assertArrayEquals(input, run(newTrimmer(), input));
+    }
+
+    @Test
+    public void dropsAPartialLastFrameInsideSilence() throws IOException {
+        short[] speech = tone(100, 440, 3000);
+        short[] input = concat(speech, silence(40), new short[50]);
+
+        assertArrayEquals(concat(speech, silence(40)), run(newTrimmer(), input));
+    }
+
+    @Test
+    public void doesNotDependOnHowTheInputIsChunked() throws IOException {
+        short[] input = concat(silence(300), tone(120, 440, 3000), silence(700), tone(80, 440, 3000), silence(300));
+        short[] whole = run(newTrimmer(), input);
+
+        SilenceTrimmer trimmer = newTrimmer();
+        CollectingStage sink = new CollectingStage();
+        PcmPipeline pipeline = new PcmPipeline(trimmer, sink);
+        pipeline.onStart(FORMAT);
+        for (int offset = 0; offset < input.length; offset += 77) {
+            pipeline.onSamples(input, offset, Math.min(77, input.length - offset));
+        }
+        pipeline.onStop();
+
+        assertArrayEquals(whole, sink.getSamples());
+    }
+
+    private static SilenceTrimmer newTrimmer() {
+        SilenceTrimmer trimmer = new SilenceTrimmer();
+        trimmer.setPaddingMillis(PADDING_MILLIS);
+        trimmer.setMaxPauseMillis(MAX_PAUSE_MILLIS);
+        return trimmer;
+    }
+
+    private static short[] run(SilenceTrimmer trimmer, short[] input) throws IOException {
+        CollectingStage sink = new CollectingStage();
+        PcmPipeline pipeline = new PcmPipeline(trimmer, sink);
+        pipeline.onStart(FORMAT);
+        pipeline.onSamples(input, 0, input.length);
+        pipeline.onStop();
+        assertTrue(sink.stopped);
+        return sink.getSamples();
+    }
+
+    private static int samples(int millis) {
+        return FORMAT.samplesForMillis(millis);
+    }
+
+    private static short[] silence(int millis) {
+        return new short[samples(millis)];
+    }
+
+    private static short[] tone(int millis, double frequency, double amplitude) {
+        short[] samples = new short[samples(millis)];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / FORMAT.getSampleRate()));
+        }
+        return samples;
+    }
+
+    /**
+     * The sign flips every sample, like the noise of an "s".
+     */
+    private static short[] alternating(int millis, int amplitude) {
+        short[] samples = new short[samples(millis)];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (i % 2 == 0 ? amplitude : -amplitude);
+        }
+        return samples;
+    }
+
+    private static short[] concat(short[]... parts) {
+        int length = 0;
+        for (short[] part : parts) {
+            length += part.length;
+        }
+        short[] result = new short[length];
+        int offset = 0;
+        for (short[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+}